@@ -1,5 +1,6 @@
 package client;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.scene.Scene;
@@ -10,34 +11,63 @@ import paramaters.ParameterInterpretation;
 import paramaters.ParameterInterpreter;
 import simulator.PositionInMaze;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.*;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class Client extends Application {
 
+    private static final int MIN_WINDOW_SIZE = 300; //The smallest width and height of the window
+    private static final int DEFAULT_WINDOW_SIZE = 600; //The initial width and height of the window
+
+    private static final int PENDING_CAPACITY = 64; //How many MapChangeEvents can wait for their predecessors
+    private static final int GAP_REPAIR_DELAY = 500; //How many milliseconds to wait for a missing MapChangeEvent
+    private static final int GAP_CATCH_UP_THRESHOLD = 32; //How many missing MapChangeEvents we fetch before we catch up instead
+    private static final int POLL_TIMEOUT = 20000; //How many milliseconds the server may wait for a tick before a poll returns
+    private static final int POLL_RETRY_DELAY = 1000; //How many milliseconds to wait before polling again after a failed poll
+
     private Stage stage; //The stage (window)
     private MazePane mazePane; //The pane that draws the maze and all the players
 
-    //The map representing how many players are at all points of the maze of the server this client is connected to
+    //The map representing how many players are at all points of the maze of the server this client is connected to,
+    //only accessed by whichever thread holds the lock of the UserImpl
     private int[][] players;
 
+    //The handoff of changes to {@link #players} from the RMI threads to the JavaFX application thread
+    private FrameBuffer frames;
+
     //An identifier that identifies which MapChangeEvent this client last processed
     private long tickIndex;
 
-    //The pending MapChangeEvents that have arrived out of order and is waiting for their index
-    private SortedSet<MapChangeEvent> pendingChanges;
+    //The pending MapChangeEvents that have arrived out of order and is waiting for their predecessors, the
+    //MapChangeEvent with index i is stored at i % PENDING_CAPACITY
+    private MapChangeEvent[] pendingChanges;
+
+    //The index of the newest MapChangeEvent that has been received, if it is greater than tickIndex there is a gap
+    private long newestPending;
+
+    //Fetches missing MapChangeEvents when a gap has not been filled in time, and tells the server what we can see
+    private ScheduledExecutorService gapRepairExecutor;
+    private boolean gapRepairScheduled;
+
+    //Sends the moves of the local player one at a time in the order of the key presses, so that the JavaFX application
+    //thread never waits for the server
+    private ExecutorService moveExecutor;
 
     //Parameters
     private static String host; //The address of the host
     private static String localhost; //The address of this client
     private static int port; //The port of the RMI registry
     private static int refreshRate; //The refresh rate (fps) of this client
+    private static boolean poll; //Whether to poll the server for updates instead of being called back
 
     /**
      * Interprets the parameters and launches the JavaFX application
@@ -47,7 +77,11 @@ public class Client extends Application {
                 new FunctionFlag("host", "h", "The address of the server host", String::new),
                 new FunctionFlag("port", "p", "The port of the host RMI registry", Integer::new),
                 new FunctionFlag("localhost", "lh", "The outside facing ip of the local machine", String::new),
-                new FunctionFlag("rate", "r", "The refresh rate of the rendering", Integer::new)
+                new FunctionFlag("rate", "r", "The refresh rate of the rendering", Integer::new),
+                new FunctionFlag("cache", "c", "The directory to cache mazes in, default is .maze-cache in the home directory", String::new),
+                new FunctionFlag("buffer", "b", "The size of the socket buffers of remote calls in bytes, the system default if not set", Integer::new),
+                new FunctionFlag("compress", "z", "Compress remote calls and results of at least this many bytes, nothing is compressed if not set", Integer::new),
+                new FunctionFlag("poll", "pl", "Whether to poll the server for updates instead of being called back, true or false", Boolean::new)
         );
         ParameterInterpretation intepretation = interpreter.intepret(args);
 
@@ -55,6 +89,16 @@ public class Client extends Application {
         localhost = intepretation.get("localhost", getLocalHostAddress()); //Set localhost to the localhost argument or local host
         port = intepretation.get("port", RMIServer.getRMIPort()); //Set port to the port argument or RMIServer.getRMIPort()
         refreshRate = intepretation.get("rate", 12); //Sets the refresh rate of the canvas to the rate argument or 12
+        String cache = intepretation.get("cache", null); //Set cache to the cache argument or null to use the default
+        int buffer = intepretation.get("buffer", 0); //Set buffer to the buffer argument or 0 for the system default
+        int compress = intepretation.get("compress", TunedSocketFactory.NEVER); //Set compress to the compress argument or never
+        poll = intepretation.get("poll", false); //Set poll to the poll argument or false to be called back
+
+        TunedSocketFactory.setDefault(new TunedSocketFactory(buffer, compress)); //Before any remote object is exported
+
+        if (cache != null) {
+            User.setMazeCache(new MazeCache(new File(cache)));
+        }
 
         System.out.println("Setting local address to " + localhost);
         System.setProperty("java.rmi.server.hostname", localhost);
@@ -81,15 +125,36 @@ public class Client extends Application {
     public void start(Stage stage) throws Exception {
         this.stage = stage;
 
-        pendingChanges = new TreeSet<>(Comparator.comparingLong(MapChangeEvent::getIndex));
+        pendingChanges = new MapChangeEvent[PENDING_CAPACITY];
+        gapRepairExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gap-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+        moveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "move");
+            thread.setDaemon(true);
+            return thread;
+        });
+        frames = new FrameBuffer();
 
         System.out.printf("Fetching registry at %s:%d\n", host, port);
 
         Registry registry = LocateRegistry.getRegistry(host, port);
         IGameServer gameServer = (IGameServer) registry.lookup(RMIServer.GameServerName);
 
-        System.out.printf("Registering client\n");
-        gameServer.register(new UserImpl());
+        if (poll) {
+            System.out.printf("Registering client to poll for updates\n");
+            UserImpl user = new UserImpl();
+            user.onGameReady(gameServer, gameServer.registerPolling());
+
+            Thread poller = new Thread(user::pollChanges, "poll");
+            poller.setDaemon(true);
+            poller.start();
+        } else {
+            System.out.printf("Registering client\n");
+            gameServer.register(new UserImpl());
+        }
     }
 
     /**
@@ -97,7 +162,7 @@ public class Client extends Application {
      */
     private class UserImpl extends User {
 
-        private PositionInMaze position; //The position of the player that belongs to this client
+        private volatile PositionInMaze position; //The position of the player that belongs to this client
 
         protected UserImpl() throws RemoteException {
         }
@@ -107,19 +172,54 @@ public class Client extends Application {
          * {@link #position} will not be changed. If it is then {@link #position} will be updated and
          * {@link MazePane#setPlayerPosition} will be called on {@link #mazePane} to update the players position.
          *
+         * The move is sent by {@link #moveExecutor}, since the server may wait for its next tick before it answers,
+         * and the position is handed back to the JavaFX application thread to be drawn.
+         *
          * @param dx the x direction of the move
          * @param dy the y direction of the move
          */
         private void movePlayer(int dx, int dy) {
-            try {
-                boolean moveSuccessful = getPlayer().moveTo(new PositionInMaze(position.getXpos() + dx, position.getYpos() + dy));
-                if (moveSuccessful) {
-                    position = new PositionInMaze(position.getXpos() + dx, position.getYpos() + dy);
-                    mazePane.setPlayerPosition(position);
+            moveExecutor.execute(() -> {
+                try {
+                    PositionInMaze next = getPositions().get(position.getXpos() + dx, position.getYpos() + dy);
+                    boolean moveSuccessful = getPlayer().moveTo(next);
+                    if (moveSuccessful) {
+                        position = next;
+                        Platform.runLater(() -> mazePane.setPlayerPosition(next));
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
                 }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+            });
+        }
+
+        /**
+         * Tells the server which columns {@link #mazePane} shows with {@link IGameServer#setView}, so that a server
+         * that owns only part of the maze sends us only the changes we can see. If we can see more than before then
+         * the server returns the player map, which replaces ours since we were not sent the changes in the part we
+         * could not see. If the map is older than ours then the changes since it are fetched with {@link #catchUp()}.
+         * The call is made by {@link #gapRepairExecutor} so that the JavaFX application thread never waits for it.
+         *
+         * @param fromX the first column that is shown
+         * @param toX the last column that is shown
+         */
+        private void setView(int fromX, int toX) {
+            gapRepairExecutor.execute(() -> {
+                try {
+                    PlayerMap map = getGameServer().setView(getPlayer(), fromX, toX);
+                    if (map != null) {
+                        synchronized (this) {
+                            long applied = tickIndex;
+                            applyUpdate(new PlayerMapUpdate(map));
+                            if (map.getIndex() < applied) {
+                                catchUp();
+                            }
+                        }
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            });
         }
 
         /**
@@ -137,24 +237,31 @@ public class Client extends Application {
 
             System.out.printf("Fetching map of players\n");
             PlayerMap map = gameServer.getPlayerMap();
-            tickIndex = map.getIndex(); //Sets the maps tickIndex so we can synchronize MapChangeEvents
-            players = map.getMap();
+            synchronized (this) {
+                tickIndex = map.getIndex(); //Sets the maps tickIndex so we can synchronize MapChangeEvents
+                newestPending = tickIndex;
+                players = map.getMap();
+                frames.publishSnapshot(players, tickIndex);
+            }
 
             System.out.printf("Fetching local players position\n");
             position = player.getPosition();
 
             //Run UI operations on the UI thread
             Platform.runLater(() -> {
+                if (mazePane != null) {
+                    mazePane.setPlayerPosition(position); //The server has recovered from a crash, the UI already exists
+                    return;
+                }
+
                 try {
-                    mazePane = new MazePane(getMaze(), players);
+                    mazePane = new MazePane(getMaze());
                     mazePane.setPlayerPosition(position);
 
                     mazePane.prefHeightProperty().bind(stage.heightProperty());
                     mazePane.prefWidthProperty().bind(stage.widthProperty());
                     mazePane.setVisible(true);
 
-                    mazePane.repaintPositions();
-
                     Scene scene = new Scene(mazePane);
                     scene.setOnKeyPressed(event -> {
                         switch (event.getCode()) {
@@ -170,13 +277,18 @@ public class Client extends Application {
                             case RIGHT:
                                 movePlayer(1, 0);
                                 break;
+                            case SPACE:
+                                mazePane.follow(); //Re-center the viewport on the player after panning
+                                break;
                         }
                     });
 
                     stage.setScene(scene);
 
-                    stage.minWidthProperty().set(getMaze().length * 10);
-                    stage.minHeightProperty().set(getMaze().length * 10 + 30);
+                    stage.minWidthProperty().set(MIN_WINDOW_SIZE);
+                    stage.minHeightProperty().set(MIN_WINDOW_SIZE + 30);
+                    stage.setWidth(DEFAULT_WINDOW_SIZE);
+                    stage.setHeight(DEFAULT_WINDOW_SIZE + 30);
 
                     //Exit application when window is closed
                     stage.setOnCloseRequest(t -> {
@@ -187,9 +299,7 @@ public class Client extends Application {
                     stage.show();
 
                     System.out.printf("Starting maze render at %d refresh rate\n", refreshRate);
-                    ScheduledThreadPoolExecutor refreshExecutor = new ScheduledThreadPoolExecutor(1);
-
-                    refreshExecutor.scheduleAtFixedRate(mazePane::repaintPositions, 0, 1000 / refreshRate, TimeUnit.MILLISECONDS);
+                    new RenderTimer(poll ? null : this).start();
                 } catch (RemoteException e) {
                     e.printStackTrace();
                 }
@@ -197,56 +307,240 @@ public class Client extends Application {
         }
 
         /**
-         * Called by the game server to notify that one or more players have moved. It checks if the MapChangeEvents
-         * index is equal to {@link #tickIndex} + 1, if it is then we iterate through the changes and change
-         * {@link #players} accordingly, and increment {@link #tickIndex} in anticipation of the next call to this
-         * method. After that we check if there are any pending MapChangeEvents that should be applied as well; if there
-         * is a pending MapChangeEvent with index equal to {@link #tickIndex} + 1 after we incremented, then it means
-         * that a MapChangeEvent was received out of order and was stored until its predecessor arrived.
-         *
-         * If the MapChangeEvent's index does not equal {@link #tickIndex} + 1, but is greater, then it means that the
-         * MapChangeEvent arrived out of order and is stored in {@link #pendingChanges} until its time for it
-         * to be applied.
+         * Called by the game server to notify that one or more players have moved. The MapChangeEvent is stored in
+         * {@link #pendingChanges} at the slot of its index, and then every pending MapChangeEvent that follows
+         * {@link #tickIndex} without a gap is applied to {@link #players} in order by {@link #drainPendingChanges()}.
          *
          * If the MapChangeEvent's index is less than {@link #tickIndex} + 1 then it means we've received the same
          * MapChangeEvent twice, or we have received a MapChangeEvent that precedes our initial fetch of the servers
-         * player map.
+         * player map, so it is ignored. If it is so far ahead that it does not fit in {@link #pendingChanges} then we
+         * have fallen too far behind and catch up with {@link #catchUp()} instead.
+         *
+         * If there still are pending MapChangeEvents after draining then one or more MapChangeEvents are missing, and
+         * {@link #repairGaps()} is scheduled to fetch them if they haven't arrived by then.
+         *
+         * A server that finds us slow sends the changes of several ticks merged into one MapChangeEvent instead, which
+         * is applied right away if it applies to the map we have, and otherwise means we have missed something so we
+         * catch up.
          */
         @Override
         public synchronized void onPlayerMapChange(MapChangeEvent change) throws RemoteException {
             if (players != null) {
-                if (change.getIndex() == tickIndex + 1) { //Check if the MapChangeEvent is the one we're waiting for
-                    for (int i = 0; i < change.size(); i++) { //Loop through the changes
-                        int[] entry = change.get(i);
-                        players[entry[0]][entry[1]] += entry[2]; //Apply the change
+                long index = change.getIndex();
+                if (index <= tickIndex) { //We've already applied this MapChangeEvent
+                    return;
+                }
+
+                if (change.getBaseIndex() != index - 1) { //Merged by the server
+                    if (change.getBaseIndex() == tickIndex) {
+                        applyChange(change);
+                        discardAppliedChanges();
+                        drainPendingChanges();
+                    } else {
+                        catchUp();
                     }
-                    tickIndex++;
+                    return;
+                }
 
-                    if (pendingChanges.size() > 0) {
-                        MapChangeEvent pending = pendingChanges.first();
-                        if (pending.getIndex() == tickIndex + 1) { //Check if the pending change should be applied
-                            pendingChanges.remove(pending);
-                            onPlayerMapChange(pending); //Apply the pending change
-                        }
+                if (index - tickIndex > PENDING_CAPACITY) { //Too far ahead to be buffered, so we catch up instead
+                    catchUp();
+                    return;
+                }
+
+                pendingChanges[slot(index)] = change;
+                newestPending = Math.max(newestPending, index);
+
+                drainPendingChanges();
+
+                if (newestPending > tickIndex && !gapRepairScheduled) {
+                    gapRepairScheduled = true;
+                    gapRepairExecutor.schedule(this::repairGaps, GAP_REPAIR_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        /**
+         * Applies every MapChangeEvent in {@link #pendingChanges} that directly follows {@link #tickIndex}, and hands
+         * the changed cells over to the renderer
+         */
+        private void drainPendingChanges() {
+            MapChangeEvent next;
+            while ((next = pendingChanges[slot(tickIndex + 1)]) != null && next.getIndex() == tickIndex + 1) {
+                pendingChanges[slot(tickIndex + 1)] = null;
+                applyChange(next);
+            }
+        }
+
+        /**
+         * Applies a MapChangeEvent to {@link #players}, sets {@link #tickIndex} to its index and hands the changed
+         * cells over to the renderer. The MapChangeEvent must apply to the map we have.
+         */
+        private void applyChange(MapChangeEvent change) {
+            for (int i = 0; i < change.size(); i++) { //Loop through the changes
+                int[] entry = change.get(i);
+                players[entry[0]][entry[1]] += entry[2]; //Apply the change
+            }
+            tickIndex = change.getIndex();
+
+            frames.publishChanges(players, change, tickIndex);
+        }
+
+        /**
+         * Called by {@link #gapRepairExecutor} some time after a gap was detected. For every gap that still exists
+         * between {@link #tickIndex} and {@link #newestPending} the missing MapChangeEvents are fetched from the
+         * server with {@link IGameServer#getMapChanges} and applied. If too many MapChangeEvents are missing, or the
+         * server no longer retains them, then we catch up with {@link #catchUp()} instead.
+         */
+        private synchronized void repairGaps() {
+            gapRepairScheduled = false;
+
+            try {
+                while (newestPending > tickIndex) {
+                    long to = tickIndex + 1; //Find the end of the gap
+                    while (to < newestPending && pendingChanges[slot(to + 1)] == null) {
+                        to++;
+                    }
+
+                    MapChangeEvent[] missing = null;
+                    if (newestPending - tickIndex <= GAP_CATCH_UP_THRESHOLD) {
+                        missing = getGameServer().getMapChanges(tickIndex + 1, to);
+                    }
+
+                    if (missing == null) {
+                        catchUp();
+                        return;
+                    }
+
+                    for (MapChangeEvent event : missing) {
+                        pendingChanges[slot(event.getIndex())] = event;
                     }
-                } else if (change.getIndex() > tickIndex + 1) { //Check if we need to save this change for later
-                    pendingChanges.add(change);
+                    drainPendingChanges();
                 }
+            } catch (RemoteException e) {
+                e.printStackTrace();
             }
         }
 
         /**
-         * Called by the server to notify that this clients map is probably faulty. Empties {@link #pendingChanges} and
-         * request a new map from the server.
+         * Called by the server to notify that this clients map is probably faulty
          */
         @Override
         public void invalidateMap() throws RemoteException {
-            players = null; //To stop {@link #onPlayerMapChange} to run while we fetch a the map
+            catchUp();
+        }
+
+        /**
+         * Brings {@link #players} up to date with {@link IGameServer#getChangesSince}. Holding the lock while we fetch
+         * the update stops {@link #onPlayerMapChange} from running in the meantime.
+         */
+        private synchronized void catchUp() throws RemoteException {
+            applyUpdate(getGameServer().getChangesSince(tickIndex));
+        }
+
+        /**
+         * Run by its own thread if this client polls for updates instead of being called back. Asks the server for
+         * the changes since {@link #tickIndex} with {@link IGameServer#pollChanges}, which returns once there are any
+         * or the server has waited long enough, applies them and asks again. The next poll is only made once the
+         * last update has been applied, so the server never sends us more than we can keep up with.
+         */
+        private void pollChanges() {
+            while (true) {
+                try {
+                    long index;
+                    synchronized (this) {
+                        index = tickIndex;
+                    }
+                    applyUpdate(getGameServer().pollChanges(getPlayer(), index, POLL_TIMEOUT));
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                    try {
+                        Thread.sleep(POLL_RETRY_DELAY);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
 
-            pendingChanges.clear();
-            PlayerMap map = getGameServer().getPlayerMap();
-            tickIndex = map.getIndex();
-            players = map.getMap();
+        /**
+         * Applies an update from {@link IGameServer#getChangesSince} or {@link IGameServer#pollChanges}. Normally the
+         * server returns every change since {@link #tickIndex} as one compacted MapChangeEvent which is applied like
+         * any other, but if the server no longer retains those changes it returns the entire map which is published as
+         * a snapshot so that it is repainted in its entirety. Pending MapChangeEvents that are newer than the update
+         * are kept.
+         */
+        private synchronized void applyUpdate(PlayerMapUpdate update) {
+            if (update.isSnapshot()) {
+                PlayerMap map = update.getMap();
+                tickIndex = map.getIndex();
+                map.expandInto(players); //Reuse our array instead of allocating a new one
+
+                frames.publishSnapshot(players, tickIndex);
+            } else if (update.getChanges().getBaseIndex() == tickIndex && update.getChanges().getIndex() > tickIndex) {
+                applyChange(update.getChanges());
+            }
+
+            discardAppliedChanges();
+            drainPendingChanges();
+        }
+
+        /**
+         * Throws away every pending MapChangeEvent that a compacted update has already applied
+         */
+        private void discardAppliedChanges() {
+            for (int i = 0; i < pendingChanges.length; i++) {
+                if (pendingChanges[i] != null && pendingChanges[i].getIndex() <= tickIndex) {
+                    pendingChanges[i] = null;
+                }
+            }
+            newestPending = Math.max(newestPending, tickIndex);
+        }
+
+        private int slot(long index) {
+            return (int) (index % PENDING_CAPACITY);
+        }
+
+    }
+
+    /**
+     * Runs on the JavaFX application thread once per pulse, but only takes new frames from {@link #frames} at the
+     * refresh rate. Nothing is painted unless a new frame has arrived or the local player has moved. Whenever the
+     * columns in the viewport change the user tells the server with {@link UserImpl#setView}.
+     */
+    private class RenderTimer extends AnimationTimer {
+
+        private UserImpl user; //The user that tells the server what we can see, or null if it polls for every change
+        private long lastRender; //The time of the last render in nanoseconds
+        private int fromX = -1; //The first column in the viewport the last time it was sent to the server
+        private int toX = -1; //The last column in the viewport the last time it was sent to the server
+
+        private RenderTimer(UserImpl user) {
+            this.user = user;
+        }
+
+        @Override
+        public void handle(long now) {
+            if (now - lastRender < 1_000_000_000L / refreshRate) {
+                return;
+            }
+            lastRender = now;
+
+            OccupancyFrame frame = frames.poll();
+            if (frame != null) {
+                mazePane.applyFrame(frame);
+            }
+
+            if (mazePane.needsRepaint()) {
+                mazePane.repaint();
+            }
+
+            int first = mazePane.getFirstVisibleColumn();
+            int last = mazePane.getLastVisibleColumn();
+            if (user != null && first >= 0 && (first != fromX || last != toX)) {
+                fromX = first;
+                toX = last;
+                user.setView(first, last);
+            }
         }
 
     }
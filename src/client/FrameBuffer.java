@@ -0,0 +1,67 @@
+package client;
+
+import mazeoblig.MapChangeEvent;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-writer, single-reader handoff of {@link OccupancyFrame}s between the thread that applies changes from the
+ * server and the thread that renders them.
+ *
+ * The writer publishes frames with {@link #publishSnapshot} and {@link #publishChanges}. If the previous frame has
+ * not been taken by the reader yet then the writer takes it back and merges the new changes into it, so the reader
+ * never misses a change and never sees a frame that is being modified. The reader takes the newest frame with
+ * {@link #poll()}, which returns null if nothing has changed since the last call.
+ */
+public class FrameBuffer {
+
+    private AtomicReference<OccupancyFrame> pending = new AtomicReference<>(); //The frame waiting to be rendered
+
+    /**
+     * Publishes a full copy of a map of players. Any frame that has not been rendered yet is discarded since it is
+     * superseded by the snapshot.
+     *
+     * @param players the map of players, which is copied
+     * @param index the tick index of the map
+     */
+    public void publishSnapshot(int[][] players, long index) {
+        int[][] copy = new int[players.length][];
+        for (int x = 0; x < players.length; x++) {
+            copy[x] = players[x].clone();
+        }
+
+        pending.set(new OccupancyFrame(copy, index));
+    }
+
+    /**
+     * Publishes the cells contained within a {@link MapChangeEvent} that has been applied to a map of players.
+     *
+     * @param players the map of players after the change was applied, used to read the new amount in every cell
+     * @param change the change that was applied
+     * @param index the tick index of the map after the change was applied
+     */
+    public void publishChanges(int[][] players, MapChangeEvent change, long index) {
+        OccupancyFrame frame = pending.getAndSet(null); //Take back the unrendered frame so we can safely modify it
+        if (frame == null) {
+            frame = new OccupancyFrame(null, index);
+        }
+
+        for (int i = 0; i < change.size(); i++) {
+            int[] entry = change.get(i);
+            frame.add(entry[0], entry[1], players[entry[0]][entry[1]]);
+        }
+        frame.setIndex(index);
+
+        pending.set(frame);
+    }
+
+    /**
+     * Takes the newest frame, should only be called by the renderer
+     *
+     * @return the newest frame, or null if nothing has been published since the last call
+     */
+    public OccupancyFrame poll() {
+        return pending.getAndSet(null);
+    }
+
+}
@@ -0,0 +1,140 @@
+package client;
+
+import mazeoblig.Box;
+import mazeoblig.BoxMaze;
+import mazeoblig.IGameServer;
+import mazeoblig.MazeInfo;
+
+import java.io.*;
+import java.rmi.RemoteException;
+
+/**
+ * A cache of mazes on disk, keyed by the hash of their content from {@link IGameServer#getMazeInfo()}. A client that
+ * starts or reconnects only asks the server for the hash, and only fetches the maze itself if it has never seen a maze
+ * with that hash. So when a server comes back after a blip and every client reconnects at once, the clients read the
+ * maze from their own disk instead of all downloading it at the same time.
+ *
+ * The wall values of each maze are stored in a file named after the hash, and since the name is the hash of the
+ * content a file that does not match its name is simply fetched and written again.
+ */
+public class MazeCache {
+
+    private static final int PIECE_SIZE = 1 << 16; //About how many wall values to fetch from the server at a time
+
+    private File directory; //The directory the mazes are stored in
+
+    /**
+     * @param directory the directory to store the mazes in, it is created if it does not exist
+     */
+    public MazeCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return a cache in the .maze-cache directory of the home directory of the user
+     */
+    public static MazeCache getDefault() {
+        return new MazeCache(new File(System.getProperty("user.home"), ".maze-cache"));
+    }
+
+    /**
+     * Returns the maze of a server from the cache, or fetches it from the server and caches it if the cache does not
+     * have a maze with the same hash
+     *
+     * @param server the server
+     * @return the maze of the server
+     */
+    public Box[][] get(IGameServer server) throws RemoteException {
+        return get(server, server.getMazeInfo());
+    }
+
+    /**
+     * Returns the maze of a server from the cache, or fetches it from the server and caches it if the cache does not
+     * have a maze with the hash of the info
+     *
+     * @param server the server
+     * @param info the info of the maze of the server, see {@link IGameServer#getMazeInfo()}
+     * @return the maze of the server
+     */
+    public Box[][] get(IGameServer server, MazeInfo info) throws RemoteException {
+        int[][] walls = read(info);
+        if (walls == null) {
+            walls = fetch(server, info);
+            write(info, walls);
+        }
+        return BoxMaze.build(walls);
+    }
+
+    /**
+     * Fetches the wall values of a maze a few columns at a time with {@link IGameServer#getWalls}, so that no single
+     * call carries the whole maze
+     */
+    private static int[][] fetch(IGameServer server, MazeInfo info) throws RemoteException {
+        int height = info.getHeight();
+        int columns = Math.max(PIECE_SIZE / Math.max(height, 1), 1);
+        int[][] walls = new int[info.getWidth()][];
+        for (int x = 0; x < walls.length; x += columns) {
+            int[][] piece = server.getWalls(x, 0, Math.min(columns, walls.length - x), height);
+            System.arraycopy(piece, 0, walls, x, piece.length);
+        }
+        return walls;
+    }
+
+    /**
+     * @return the cached wall values of a maze, or null if they are not cached or do not match the info
+     */
+    private int[][] read(MazeInfo info) {
+        File file = getFile(info);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width != info.getWidth() || height != info.getHeight()) {
+                return null;
+            }
+            int[][] walls = new int[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    walls[x][y] = in.readInt();
+                }
+            }
+            return MazeInfo.hash(walls).equals(info.getHash()) ? walls : null;
+        } catch (IOException e) {
+            return null; //A damaged file is fetched and written again
+        }
+    }
+
+    /**
+     * Writes the wall values of a maze to a temporary file and then moves it into place, so that a client that reads
+     * the file at the same time never sees half of it
+     */
+    private void write(MazeInfo info, int[][] walls) {
+        directory.mkdirs();
+        File file = getFile(info);
+        File temporary = new File(directory, info.getHash() + "." + System.nanoTime() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(walls.length);
+            out.writeInt(walls.length > 0 ? walls[0].length : 0);
+            for (int[] column : walls) {
+                for (int wall : column) {
+                    out.writeInt(wall);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not cache the maze in " + directory);
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete(); //Another client wrote the same maze first
+        }
+    }
+
+    private File getFile(MazeInfo info) {
+        return new File(directory, info.getHash() + ".maze");
+    }
+
+}
@@ -1,134 +1,505 @@
 package client;
 
+import javafx.geometry.Point2D;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
 import mazeoblig.Box;
 import simulator.PositionInMaze;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-
+import java.util.Set;
+
+/**
+ * A pane that draws a viewport of a maze and the players within it using two stacked canvases. The viewport can be
+ * zoomed with the scroll wheel and panned by dragging, and it follows the local player until it is panned by hand.
+ *
+ * The walls are painted onto {@link #mazeCanvas} from tiles of {@link #tileCells} x {@link #tileCells} cells that are
+ * rendered into images once per scale and cached in {@link #tiles}, so panning only draws the visible tiles. When the
+ * cells are too small for walls to be visible only the outline of the maze is painted.
+ *
+ * The players are painted onto {@link #playerCanvas} from a {@link OccupancyPyramid}. When a cell is smaller than
+ * {@link #MIN_BLOCK_PIXELS} the players are drawn as aggregated blocks from a higher level of the pyramid, so the cost
+ * of a repaint depends on the size of the pane rather than the size of the maze. As long as the viewport does not
+ * change only the blocks that have changed since the last paint are redrawn.
+ *
+ * This pane keeps its own copy of the map of players which is only updated through {@link #applyFrame}, so all
+ * methods of this class must be called on the JavaFX application thread.
+ */
 public class MazePane extends Pane {
 
+    private static final double MIN_BLOCK_PIXELS = 3; //The smallest size in pixels a block of players is drawn with
+    private static final double MIN_WALL_SCALE = 4; //The smallest cell size in pixels that walls are drawn at
+    private static final double MAX_SCALE = 64; //The largest cell size in pixels
+    private static final double ZOOM_FACTOR = 1.25; //How much one step of the scroll wheel zooms
+    private static final double FOLLOW_MARGIN = 0.2; //How close to the edge the player may get before we re-center
+    private static final int TILE_PIXELS = 256; //The approximate size in pixels of a cached wall tile
+    private static final int MAX_TILES = 256; //The maximum amount of cached wall tiles
+
     private Box[][] maze;
+    private int dimension; //The width and height of the maze
 
-    private Canvas mazeCanvas;
-    private Canvas playerCanvas;
+    private Canvas mazeCanvas; //The canvas that holds the walls, only repainted when the viewport changes
+    private Canvas playerCanvas; //The canvas that holds the players, repainted one block at a time
 
     private PositionInMaze playerPosition;
 
-    private int[][] positions;
+    private OccupancyPyramid positions; //The amount of players in every cell, and aggregated over blocks of cells
+
+    private double scale = -1; //The size of a cell in pixels, negative until the pane has been laid out
+    private double viewX; //The x-position, in cells, of the left edge of the viewport
+    private double viewY; //The y-position, in cells, of the top edge of the viewport
+    private boolean following = true; //Whether or not the viewport follows the local player
+
+    private int tileCells; //The width and height of a wall tile in cells at the current scale
+    private Map<Long, WritableImage> tiles; //Rendered wall tiles at the current scale, keyed by (x << 32) | y
+
+    private Point2D dragStart; //Where the current drag started, in pixels
+    private double dragViewX, dragViewY; //The viewport when the current drag started
+
+    private boolean viewportInvalid = true; //Whether or not the walls and players must be repainted entirely
+    private boolean positionsInvalid = true; //Whether or not all the players must be repainted
+    private Set<Integer> dirtyCells; //The cells that have changed since the last paint, packed as (x << 16) | y
 
-    public MazePane(Box[][] maze, int[][] positions) {
+    public MazePane(Box[][] maze) {
         this.maze = maze;
-        this.positions = positions;
+        this.dimension = maze.length;
+        this.positions = new OccupancyPyramid(dimension);
+
+        dirtyCells = new HashSet<>();
+        tiles = new LinkedHashMap<Long, WritableImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, WritableImage> eldest) {
+                return size() > MAX_TILES;
+            }
+        };
 
         mazeCanvas = new Canvas();
         mazeCanvas.setVisible(true);
-        mazeCanvas.layoutXProperty().bind(widthProperty().divide(2).subtract(mazeCanvas.widthProperty().divide(2)));
-        mazeCanvas.layoutYProperty().bind(heightProperty().divide(2).subtract(mazeCanvas.heightProperty().divide(2)));
+        mazeCanvas.widthProperty().bind(widthProperty());
+        mazeCanvas.heightProperty().bind(heightProperty());
 
         playerCanvas = new Canvas();
         playerCanvas.setVisible(true);
-        playerCanvas.widthProperty().bind(mazeCanvas.widthProperty());
-        playerCanvas.heightProperty().bind(mazeCanvas.heightProperty());
-        playerCanvas.layoutXProperty().bind(mazeCanvas.layoutXProperty());
-        playerCanvas.layoutYProperty().bind(mazeCanvas.layoutYProperty());
+        playerCanvas.widthProperty().bind(widthProperty());
+        playerCanvas.heightProperty().bind(heightProperty());
 
-        widthProperty().addListener((observable, old, now) -> {
-            double min = Math.min(widthProperty().get(), heightProperty().get());
-            mazeCanvas.setHeight(min);
-            mazeCanvas.setWidth(min);
+        widthProperty().addListener((observable, old, now) -> resize());
+        heightProperty().addListener((observable, old, now) -> resize());
 
-            paintMaze();
-            paintPositions();
+        setOnScroll(event -> {
+            zoom(event.getDeltaY() > 0 ? ZOOM_FACTOR : 1 / ZOOM_FACTOR, event.getX(), event.getY());
+            repaint();
         });
 
-        heightProperty().addListener((observable, old, now) -> {
-            double min = Math.min(widthProperty().get(), heightProperty().get());
-            mazeCanvas.setHeight(min);
-            mazeCanvas.setWidth(min);
+        setOnMousePressed(event -> {
+            dragStart = new Point2D(event.getX(), event.getY());
+            dragViewX = viewX;
+            dragViewY = viewY;
+        });
 
-            paintMaze();
-            paintPositions();
+        setOnMouseDragged(event -> {
+            following = false; //Stop following the player once the user pans on their own
+            setViewport(dragViewX - (event.getX() - dragStart.getX()) / scale, dragViewY - (event.getY() - dragStart.getY()) / scale);
+            repaint();
         });
 
         getChildren().add(mazeCanvas);
         getChildren().add(playerCanvas);
     }
 
+    /**
+     * Sets the position of the local player and marks both its old and new cell as dirty. If the viewport follows the
+     * player and the player is close to the edge of the viewport, then the viewport is centered on the player.
+     *
+     * @param position the new position of the local player
+     */
     public void setPlayerPosition(PositionInMaze position) {
+        PositionInMaze old = playerPosition;
         playerPosition = position;
+
+        if (old != null) {
+            markDirty(old.getXpos(), old.getYpos());
+        }
+        markDirty(position.getXpos(), position.getYpos());
+
+        if (following && scale > 0) {
+            double columns = getWidth() / scale;
+            double rows = getHeight() / scale;
+            double x = position.getXpos() + 0.5 - viewX;
+            double y = position.getYpos() + 0.5 - viewY;
+            if (x < columns * FOLLOW_MARGIN || x > columns * (1 - FOLLOW_MARGIN) || y < rows * FOLLOW_MARGIN || y > rows * (1 - FOLLOW_MARGIN)) {
+                centerOn(position);
+            }
+        }
+    }
+
+    /**
+     * Makes the viewport follow the local player again and centers it on the player
+     */
+    public void follow() {
+        following = true;
+        if (playerPosition != null && scale > 0) {
+            centerOn(playerPosition);
+        }
+    }
+
+    /**
+     * Applies a {@link OccupancyFrame} to this pane's map of positions. A frame with a snapshot replaces the map and
+     * causes the entire player canvas to be repainted, otherwise only the cells contained in the frame are marked as
+     * dirty.
+     *
+     * @param frame the frame to apply, this pane takes ownership of it
+     */
+    public void applyFrame(OccupancyFrame frame) {
+        if (frame.getSnapshot() != null) {
+            positions.setMap(frame.getSnapshot());
+            positionsInvalid = true;
+        }
+
+        for (int i = 0; i < frame.size(); i++) {
+            int x = frame.getX(i);
+            int y = frame.getY(i);
+            positions.set(x, y, frame.getCount(i));
+            markDirty(x, y);
+        }
     }
 
-    public void repaintMaze() {
-        paintMaze();
+    /**
+     * @return the first column of the maze that is in the viewport, or -1 if the pane has not been laid out yet
+     */
+    public int getFirstVisibleColumn() {
+        return scale > 0 ? Math.max((int) Math.floor(viewX), 0) : -1;
     }
 
-    public void repaintPositions() {
+    /**
+     * @return the last column of the maze that is in the viewport, or -1 if the pane has not been laid out yet
+     */
+    public int getLastVisibleColumn() {
+        return scale > 0 ? Math.min((int) Math.ceil(viewX + getWidth() / scale), dimension) - 1 : -1;
+    }
+
+    /**
+     * @return whether or not anything has changed since the pane was last painted
+     */
+    public boolean needsRepaint() {
+        return viewportInvalid || positionsInvalid || !dirtyCells.isEmpty();
+    }
+
+    /**
+     * Repaints whatever has changed since the last paint, the walls are only repainted if the viewport has changed
+     */
+    public void repaint() {
+        if (scale < 0) {
+            return; //Not laid out yet
+        }
+
+        if (viewportInvalid) {
+            viewportInvalid = false;
+            positionsInvalid = true;
+            paintMaze();
+        }
         paintPositions();
     }
 
+    private void markDirty(int x, int y) {
+        dirtyCells.add((x << 16) | y);
+    }
+
+    /**
+     * Keeps the viewport valid when the size of the pane changes. The first time the pane is laid out the scale is
+     * set so that the entire maze fits within the pane.
+     */
+    private void resize() {
+        if (getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+
+        if (scale < 0) {
+            setScale(Math.min(getWidth(), getHeight()) / dimension);
+        } else {
+            setScale(scale); //The smallest allowed scale depends on the size of the pane
+        }
+
+        if (following && playerPosition != null) {
+            centerOn(playerPosition);
+        } else {
+            setViewport(viewX, viewY);
+        }
+        repaint();
+    }
+
+    /**
+     * Zooms the viewport around a point in the pane so that the cell under the point stays in place
+     *
+     * @param factor how much to multiply the scale by
+     * @param px the x-position of the point in pixels
+     * @param py the y-position of the point in pixels
+     */
+    private void zoom(double factor, double px, double py) {
+        double cellX = viewX + px / scale;
+        double cellY = viewY + py / scale;
+
+        setScale(scale * factor);
+
+        if (following && playerPosition != null) {
+            centerOn(playerPosition);
+        } else {
+            setViewport(cellX - px / scale, cellY - py / scale);
+        }
+    }
+
+    /**
+     * Sets the scale, clamped between the scale where the entire maze fits within the pane and {@link #MAX_SCALE}.
+     * Changing the scale throws away every cached wall tile.
+     */
+    private void setScale(double scale) {
+        double fit = Math.min(getWidth(), getHeight()) / dimension;
+        scale = Math.max(Math.min(fit, MAX_SCALE), Math.min(scale, MAX_SCALE));
+
+        if (scale != this.scale) {
+            this.scale = scale;
+            tileCells = Math.max(1, (int) Math.ceil(TILE_PIXELS / scale));
+            tiles.clear();
+            viewportInvalid = true;
+        }
+    }
+
+    private void centerOn(PositionInMaze position) {
+        setViewport(position.getXpos() + 0.5 - getWidth() / scale / 2, position.getYpos() + 0.5 - getHeight() / scale / 2);
+    }
+
+    /**
+     * Moves the viewport. Along an axis where the maze is smaller than the pane the maze is centered, otherwise the
+     * viewport is kept within the maze.
+     */
+    private void setViewport(double x, double y) {
+        x = clampView(x, getWidth() / scale);
+        y = clampView(y, getHeight() / scale);
+
+        if (x != viewX || y != viewY) {
+            viewX = x;
+            viewY = y;
+            viewportInvalid = true;
+        }
+    }
+
+    private double clampView(double view, double visible) {
+        if (visible >= dimension) {
+            return (dimension - visible) / 2;
+        }
+        return Math.max(0, Math.min(view, dimension - visible));
+    }
+
+    /**
+     * Paints the walls of the visible tiles, or only the outline of the maze if the cells are too small for walls to
+     * be visible
+     */
     private void paintMaze() {
         GraphicsContext g = mazeCanvas.getGraphicsContext2D();
+        g.clearRect(0, 0, getWidth(), getHeight());
+
+        if (scale < MIN_WALL_SCALE) {
+            g.setStroke(Color.DARKGRAY);
+            g.setLineWidth(1);
+            g.strokeRect((1 - viewX) * scale, (1 - viewY) * scale, (dimension - 2) * scale, (dimension - 2) * scale);
+            return;
+        }
+
+        int firstX = Math.max(0, (int) Math.floor(viewX)) / tileCells;
+        int firstY = Math.max(0, (int) Math.floor(viewY)) / tileCells;
+        int lastX = (Math.min(dimension, (int) Math.ceil(viewX + getWidth() / scale)) - 1) / tileCells;
+        int lastY = (Math.min(dimension, (int) Math.ceil(viewY + getHeight() / scale)) - 1) / tileCells;
+
+        for (int tx = firstX; tx <= lastX; tx++) {
+            for (int ty = firstY; ty <= lastY; ty++) {
+                long key = ((long) tx << 32) | ty;
+                WritableImage tile = tiles.get(key);
+                if (tile == null) {
+                    tile = renderTile(tx, ty);
+                    tiles.put(key, tile);
+                }
+                g.drawImage(tile, (tx * tileCells - viewX) * scale, (ty * tileCells - viewY) * scale);
+            }
+        }
+    }
 
-        g.setStroke(Color.RED);
-        g.fillRect(0,0,200,200);
+    /**
+     * Renders the walls of a single tile into an image. Every wall is added to one path, and consecutive walls along
+     * the same row or column are merged into one line. Walls on the edge of the tile are drawn by both tiles that
+     * share it, so that each of them holds half of the line.
+     *
+     * @param tx the x-position of the tile in tiles
+     * @param ty the y-position of the tile in tiles
+     * @return the rendered tile
+     */
+    private WritableImage renderTile(int tx, int ty) {
+        int x0 = tx * tileCells;
+        int y0 = ty * tileCells;
+        int x1 = Math.min(dimension, x0 + tileCells);
+        int y1 = Math.min(dimension, y0 + tileCells);
+
+        Canvas canvas = new Canvas(Math.ceil((x1 - x0) * scale), Math.ceil((y1 - y0) * scale));
+        GraphicsContext g = canvas.getGraphicsContext2D();
 
         g.setStroke(Color.DARKGRAY);
         g.setLineWidth(2);
+        g.beginPath();
+
+        //Horizontal walls along the top of every row, only interior columns have walls
+        for (int y = Math.max(1, y0); y <= Math.min(y1, dimension - 1); ++y) {
+            int start = -1;
+            for (int x = Math.max(1, x0); x <= Math.min(x1, dimension - 1); ++x) {
+                boolean wall = x < Math.min(x1, dimension - 1) && hasHorizontalWall(x, y);
+                if (wall && start < 0) {
+                    start = x;
+                } else if (!wall && start >= 0) {
+                    g.moveTo((start - x0) * scale, (y - y0) * scale);
+                    g.lineTo((x - x0) * scale, (y - y0) * scale);
+                    start = -1;
+                }
+            }
+        }
 
-        double w = g.getCanvas().widthProperty().get();
-        double h = g.getCanvas().heightProperty().get();
+        //Vertical walls along the left of every column, only interior rows have walls
+        for (int x = Math.max(1, x0); x <= Math.min(x1, dimension - 1); ++x) {
+            int start = -1;
+            for (int y = Math.max(1, y0); y <= Math.min(y1, dimension - 1); ++y) {
+                boolean wall = y < Math.min(y1, dimension - 1) && hasVerticalWall(x, y);
+                if (wall && start < 0) {
+                    start = y;
+                } else if (!wall && start >= 0) {
+                    g.moveTo((x - x0) * scale, (start - y0) * scale);
+                    g.lineTo((x - x0) * scale, (y - y0) * scale);
+                    start = -1;
+                }
+            }
+        }
 
-        g.clearRect(0,0, w, h);
+        g.stroke();
 
-        int dimension = maze.length;
+        SnapshotParameters parameters = new SnapshotParameters();
+        parameters.setFill(Color.TRANSPARENT);
+        return canvas.snapshot(parameters, null);
+    }
 
-        for (int x = 1; x < (maze.length - 1); ++x) {
-            for (int y = 1; y < (maze.length - 1); ++y) {
-                if (maze[x][y].getUp() == null)
-                    g.strokeLine(x * w / dimension, y * h / dimension, x * w / dimension + w / dimension, y * h / dimension);
-                if (maze[x][y].getDown() == null)
-                    g.strokeLine(x * w / dimension, y * h / dimension + h / dimension, x * w / dimension + w / dimension, y * h / dimension + h / dimension);
-                if (maze[x][y].getLeft() == null)
-                    g.strokeLine(x * w / dimension, y * h / dimension, x * w / dimension, y * h / dimension + h / dimension);
-                if (maze[x][y].getRight() == null)
-                    g.strokeLine(x * w / dimension + w / dimension, y * h / dimension, x * w / dimension + w / dimension, y * h / dimension + h / dimension);
-            }
+    /**
+     * @return whether or not there is a wall along the top of the interior cell (x, y), where y may be one past the
+     * last interior row to ask for the bottom wall of the maze
+     */
+    private boolean hasHorizontalWall(int x, int y) {
+        return y < dimension - 1 ? isWall(maze[x][y], Box.UP) : isWall(maze[x][y - 1], Box.DOWN);
+    }
+
+    /**
+     * @return whether or not there is a wall along the left of the interior cell (x, y), where x may be one past the
+     * last interior column to ask for the right wall of the maze
+     */
+    private boolean hasVerticalWall(int x, int y) {
+        return x < dimension - 1 ? isWall(maze[x][y], Box.LEFT) : isWall(maze[x - 1][y], Box.RIGHT);
+    }
+
+    /**
+     * @return whether or not there is a wall on a side of a box, see {@link Box#getOpenDirections()}
+     */
+    private static boolean isWall(Box box, int direction) {
+        return (box.getOpenDirections() & 1 << direction) == 0;
+    }
+
+    /**
+     * @return the level of {@link #positions} to draw at the current scale, so that every block is at least
+     * {@link #MIN_BLOCK_PIXELS} wide
+     */
+    private int getLevel() {
+        int level = 0;
+        while (level < positions.getLevels() - 1 && scale * (1 << level) < MIN_BLOCK_PIXELS) {
+            level++;
         }
+        return level;
     }
 
+    /**
+     * Paints the players. If {@link #positionsInvalid} is set then every visible block is repainted, otherwise only
+     * the blocks that contain a cell in {@link #dirtyCells} are cleared and repainted.
+     */
     private void paintPositions() {
         GraphicsContext g = playerCanvas.getGraphicsContext2D();
 
-        g.setFill(Color.BLUE);
-        g.setLineWidth(2);
+        int level = getLevel();
+        int width = positions.getWidth(level);
 
-        double w = g.getCanvas().widthProperty().get();
-        double h = g.getCanvas().heightProperty().get();
+        if (positionsInvalid) {
+            positionsInvalid = false;
+            dirtyCells.clear();
 
-        g.clearRect(0,0, w, h);
+            g.clearRect(0, 0, getWidth(), getHeight());
 
-        int dimension = maze.length;
-        int radius = 4;
+            double block = scale * (1 << level);
+            int x0 = Math.max(0, (int) Math.floor(viewX) >> level);
+            int y0 = Math.max(0, (int) Math.floor(viewY) >> level);
+            int x1 = Math.min(width, (int) Math.ceil((viewX + getWidth() / scale) / (1 << level)) + 1);
+            int y1 = Math.min(width, (int) Math.ceil((viewY + getHeight() / scale) / (1 << level)) + 1);
 
-        for (int x = 0; x < positions.length; x++) {
-            for (int y = 0; y < positions[x].length; y++) {
-                if (positions[x][y] > 0) {
-                    g.fillOval((x + 1) * w / dimension - w / dimension / 2 - radius / 2, (y + 1) * h / dimension - h / dimension / 2 - radius / 2, radius, radius);
+            for (int x = x0; x < x1; x++) {
+                for (int y = y0; y < y1; y++) {
+                    if (positions.get(level, x, y) > 0) {
+                        paintBlock(g, level, x, y, block, Color.BLUE);
+                    }
                 }
             }
-        }
 
-        //Draw player position last to paint over any other positions
-        if (playerPosition != null) {
-            int x = playerPosition.getXpos();
-            int y = playerPosition.getYpos();
+            //Draw player position last to paint over any other positions
+            if (playerPosition != null) {
+                paintBlock(g, level, playerPosition.getXpos() >> level, playerPosition.getYpos() >> level, block, Color.RED);
+            }
+        } else {
+            Set<Integer> blocks = new HashSet<>();
+            Iterator<Integer> iterator = dirtyCells.iterator();
+            while (iterator.hasNext()) {
+                int cell = iterator.next();
+                iterator.remove();
+                blocks.add(((cell >>> 16) >> level) << 16 | ((cell & 0xFFFF) >> level));
+            }
+
+            double block = scale * (1 << level);
+            int localX = playerPosition != null ? playerPosition.getXpos() >> level : -1;
+            int localY = playerPosition != null ? playerPosition.getYpos() >> level : -1;
+
+            for (int packed : blocks) {
+                int x = packed >>> 16;
+                int y = packed & 0xFFFF;
+
+                g.clearRect((x * (1 << level) - viewX) * scale, (y * (1 << level) - viewY) * scale, block, block);
+
+                if (x == localX && y == localY) {
+                    paintBlock(g, level, x, y, block, Color.RED);
+                } else if (positions.get(level, x, y) > 0) {
+                    paintBlock(g, level, x, y, block, Color.BLUE);
+                }
+            }
+        }
+    }
 
-            g.setFill(Color.RED);
-            g.fillOval((x + 1) * w / dimension - w / dimension / 2 - radius / 2, (y + 1) * h / dimension - h / dimension / 2 - radius / 2, radius, radius);
+    /**
+     * Paints a single block of players. On the lowest level a block is a single cell and is drawn as a dot, on higher
+     * levels it is drawn as a filled square covering the cells it aggregates.
+     */
+    private void paintBlock(GraphicsContext g, int level, int x, int y, double block, Color color) {
+        double px = (x * (1 << level) - viewX) * scale;
+        double py = (y * (1 << level) - viewY) * scale;
+
+        g.setFill(color);
+        if (level == 0) {
+            double diameter = Math.max(2, scale / 2);
+            g.fillOval(px + (scale - diameter) / 2, py + (scale - diameter) / 2, diameter, diameter);
+        } else {
+            g.fillRect(px, py, block, block);
         }
     }
 }
@@ -0,0 +1,105 @@
+package client;
+
+import mazeoblig.Box;
+import mazeoblig.IGameServer;
+import mazeoblig.MazeInfo;
+import simulator.PositionCache;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The mazes that the users of this program have been given, so that every user of the same server gets the same
+ * instance instead of a copy each. The {@link MazeInfo} of each server is only asked for once, and the maze of each
+ * {@link MazeInfo#getHash() hash} is only loaded once, from a {@link MazeCache} that only asks the server if the maze
+ * is not on disk.
+ *
+ * Loads are single-flight: if many users ask for a maze at the same time then the first one loads it and the rest wait
+ * for that load to finish, so a thousand users that register at once cause one load. A load that fails is forgotten so
+ * that the next user tries again.
+ *
+ * The mazes are shared, so they must not be changed by the users.
+ */
+public class MazeRegistry {
+
+    private MazeCache cache; //Where mazes that have not been loaded yet are loaded from
+    private Map<IGameServer, CompletableFuture<MazeInfo>> infos = new ConcurrentHashMap<>(); //The maze version of every server
+    private Map<String, CompletableFuture<Box[][]>> mazes = new ConcurrentHashMap<>(); //Every maze by its hash
+    private Map<Box[][], PositionCache> positions = new ConcurrentHashMap<>(); //The positions of every maze by identity
+
+    /**
+     * Something that loads a value from a server
+     */
+    private interface Loader<T> {
+
+        T load() throws RemoteException;
+
+    }
+
+    /**
+     * @param cache where mazes that have not been loaded yet are loaded from
+     */
+    public MazeRegistry(MazeCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the maze of a server, loading it if no user of this program has been given it yet
+     *
+     * @param server the server
+     * @return the maze of the server, shared by every user of it
+     */
+    public Box[][] get(IGameServer server) throws RemoteException {
+        MazeInfo info = load(infos, server, server::getMazeInfo);
+        return load(mazes, info.getHash(), () -> cache.get(server, info));
+    }
+
+    /**
+     * Returns the positions of every cell of a maze, shared by every user of the maze
+     *
+     * @param maze a maze from {@link #get}
+     * @return the positions of the maze
+     */
+    public PositionCache getPositions(Box[][] maze) {
+        return positions.computeIfAbsent(maze, m -> new PositionCache(m.length, m.length > 0 ? m[0].length : 0));
+    }
+
+    /**
+     * Returns the value of a key, loading it with the loader if no other thread is loading it already, or waiting for
+     * the thread that is
+     */
+    private static <K, T> T load(Map<K, CompletableFuture<T>> values, K key, Loader<T> loader) throws RemoteException {
+        CompletableFuture<T> future = values.get(key);
+        if (future == null) {
+            CompletableFuture<T> loading = new CompletableFuture<>();
+            future = values.putIfAbsent(key, loading);
+            if (future == null) { //We are the first, so we load it
+                try {
+                    T value = loader.load();
+                    loading.complete(value);
+                    return value;
+                } catch (RemoteException | RuntimeException e) {
+                    values.remove(key, loading);
+                    loading.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the maze", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Could not load the maze", e.getCause());
+        }
+    }
+
+}
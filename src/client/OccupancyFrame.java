@@ -0,0 +1,91 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * A frame of occupancy changes that is handed from the thread that receives changes from the server to the JavaFX
+ * application thread that renders them. A frame either contains a full copy of the map of players, a list of cells
+ * and the amount of players that are now in them, or both. Counts are absolute so that changes to the same cell can
+ * simply be applied in order.
+ *
+ * A frame is only modified by the thread that owns it; once it has been published through {@link FrameBuffer} it is
+ * never modified again unless the publisher took it back before the renderer saw it.
+ */
+public class OccupancyFrame {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long index; //The tick index of the last change contained in this frame
+    private int[][] snapshot; //A full copy of the map of players, or null if this frame only contains changes
+
+    private int[] cells; //The changed cells, packed as (x << 16) | y
+    private int[] counts; //The amount of players in the cell with the same index in {@link #cells}
+    private int size; //The amount of changed cells
+
+    OccupancyFrame(int[][] snapshot, long index) {
+        this.snapshot = snapshot;
+        this.index = index;
+
+        cells = new int[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a changed cell to this frame. If this frame contains a snapshot then the snapshot is changed directly.
+     */
+    void add(int x, int y, int count) {
+        if (snapshot != null) {
+            snapshot[x][y] = count;
+            return;
+        }
+
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        cells[size] = (x << 16) | y;
+        counts[size] = count;
+        size++;
+    }
+
+    void setIndex(long index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the tick index of the last change contained in this frame
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * @return a full copy of the map of players, or null if this frame only contains changes
+     */
+    public int[][] getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the amount of changed cells in this frame
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getX(int i) {
+        return cells[i] >>> 16;
+    }
+
+    public int getY(int i) {
+        return cells[i] & 0xFFFF;
+    }
+
+    /**
+     * @return the amount of players that are in the i-th changed cell after this frame is applied
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+}
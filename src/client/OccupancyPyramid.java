@@ -0,0 +1,99 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * A pyramid of aggregated player counts. Level 0 contains the amount of players in every cell of the maze, and every
+ * cell on level l contains the sum of the 2x2 cells below it on level l - 1, so a cell on level l covers 2^l x 2^l
+ * cells of the maze. Changing a single cell updates one cell on every level, which lets a renderer that is zoomed out
+ * draw aggregated blocks without summing the cells of the maze itself.
+ */
+public class OccupancyPyramid {
+
+    private int[][][] levels; //levels[l][x][y] is the amount of players in block (x, y) on level l
+
+    /**
+     * Constructs an empty pyramid for a maze of the given width. Levels are added until a single block covers the
+     * entire maze.
+     *
+     * @param width the width (and height) of the maze
+     */
+    public OccupancyPyramid(int width) {
+        int count = 1;
+        for (int w = width; w > 1; w = (w + 1) / 2) {
+            count++;
+        }
+
+        levels = new int[count][][];
+        int w = width;
+        for (int l = 0; l < count; l++) {
+            levels[l] = new int[w][w];
+            w = (w + 1) / 2;
+        }
+    }
+
+    /**
+     * Replaces the content of this pyramid with a map of players and rebuilds every level above it.
+     *
+     * @param map the amount of players in every cell, this pyramid takes ownership of it
+     */
+    public void setMap(int[][] map) {
+        levels[0] = map;
+        for (int l = 1; l < levels.length; l++) {
+            int[][] below = levels[l - 1];
+            int[][] level = levels[l];
+            for (int x = 0; x < level.length; x++) {
+                Arrays.fill(level[x], 0);
+            }
+            for (int x = 0; x < below.length; x++) {
+                for (int y = 0; y < below[x].length; y++) {
+                    level[x >> 1][y >> 1] += below[x][y];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the amount of players in a single cell and updates the blocks on every level that covers it.
+     *
+     * @param x the x-position of the cell
+     * @param y the y-position of the cell
+     * @param count the new amount of players in the cell
+     */
+    public void set(int x, int y, int count) {
+        int diff = count - levels[0][x][y];
+        if (diff == 0) {
+            return;
+        }
+
+        for (int l = 0; l < levels.length; l++) {
+            levels[l][x >> l][y >> l] += diff;
+        }
+    }
+
+    /**
+     * @param level the level of the block
+     * @param x the x-position of the block on that level
+     * @param y the y-position of the block on that level
+     * @return the amount of players within the block
+     */
+    public int get(int level, int x, int y) {
+        return levels[level][x][y];
+    }
+
+    /**
+     * @return the amount of levels in this pyramid
+     */
+    public int getLevels() {
+        return levels.length;
+    }
+
+    /**
+     * @param level the level
+     * @return the width (and height) of the level in blocks
+     */
+    public int getWidth(int level) {
+        return levels[level].length;
+    }
+
+}
@@ -4,9 +4,11 @@ import mazeoblig.*;
 import paramaters.FunctionFlag;
 import paramaters.ParameterInterpretation;
 import paramaters.ParameterInterpreter;
+import simulator.PositionDeque;
 import simulator.PositionInMaze;
 import simulator.VirtualUser;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
@@ -19,6 +21,8 @@ import java.util.logging.Logger;
 
 public class SimulateUsers {
 
+    private static final int REGISTRATION_BATCH = 500; //How many users to register with each call to registerAll
+
     private static VirtualUser virtualUser;
 
     private static ScheduledThreadPoolExecutor scheduledExecutor;
@@ -38,7 +42,10 @@ public class SimulateUsers {
                 new FunctionFlag("port", "p", "The port of the host RMI registry", Integer::new),
                 new FunctionFlag("users", "u", "The amount of users to simulate", Integer::new),
                 new FunctionFlag("localhost", "lh", "The outside facing ip of the local machine", String::new),
-                new FunctionFlag("interval", "i", "How long between user movements in milliseconds", Integer::new)
+                new FunctionFlag("interval", "i", "How long between user movements in milliseconds", Integer::new),
+                new FunctionFlag("cache", "c", "The directory to cache mazes in, default is .maze-cache in the home directory", String::new),
+                new FunctionFlag("buffer", "b", "The size of the socket buffers of remote calls in bytes, the system default if not set", Integer::new),
+                new FunctionFlag("compress", "z", "Compress remote calls and results of at least this many bytes, nothing is compressed if not set", Integer::new)
         );
         ParameterInterpretation intepretation = interpreter.intepret(args);
 
@@ -47,6 +54,15 @@ public class SimulateUsers {
         port = intepretation.get("port", RMIServer.getRMIPort()); //Set port to the port argument or RMIServer.getRMIPort()
         amountOfUsers = intepretation.get("users", 100); //Set amountOfUsers to users argument or 100
         interval = intepretation.get("interval", 1000); //Set amountOfUsers to interval argument or 1000 (1 second)
+        String cache = intepretation.get("cache", null); //Set cache to the cache argument or null to use the default
+        int buffer = intepretation.get("buffer", 0); //Set buffer to the buffer argument or 0 for the system default
+        int compress = intepretation.get("compress", TunedSocketFactory.NEVER); //Set compress to the compress argument or never
+
+        TunedSocketFactory.setDefault(new TunedSocketFactory(buffer, compress)); //Before any remote object is exported
+
+        if (cache != null) {
+            User.setMazeCache(new MazeCache(new File(cache)));
+        }
 
         System.out.println("Setting local address to " + localhost);
         System.setProperty("java.rmi.server.hostname", localhost);
@@ -64,7 +80,7 @@ public class SimulateUsers {
             System.out.println("Fetching game server");
             server = (IGameServer) registry.lookup(RMIServer.GameServerName);
 
-            virtualUser = new VirtualUser(server.getMaze().getMaze());
+            virtualUser = new VirtualUser(User.getMazes().get(server));
         } catch (RemoteException e) {
             System.out.println("Could not connect to server, quitting");
             return;
@@ -75,16 +91,21 @@ public class SimulateUsers {
 
         System.out.println("Registering " + amountOfUsers + " users");
 
+        //Register the users in batches with registerAll, so each batch is a single call and the server can call
+        //onGameReady on every user in the batch in parallel
         int registered = 0;
-        for (int i = 0; i < amountOfUsers; i++) {
+        while (registered < amountOfUsers) {
             try {
-                server.register(new UserImpl());
-                registered++;
-                if (registered % 100 == 0) {
-                    System.out.println("Registered " + registered + " users");
+                IUser[] batch = new IUser[Math.min(REGISTRATION_BATCH, amountOfUsers - registered)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = new UserImpl();
                 }
+                server.registerAll(batch);
+                registered += batch.length;
+                System.out.println("Registered " + registered + " users");
             } catch (RemoteException e) {
                 e.printStackTrace();
+                break;
             }
         }
         System.out.println("Registered a total of " + registered + " users");
@@ -102,36 +123,45 @@ public class SimulateUsers {
      *
      * If a movement is unsuccessful for any reason then the client wil cancel its scheduled execution and disconnect
      * itself.
+     *
+     * Each movement holds the lock of the users deque, and does nothing if {@link UserImpl#onGameReady} has been
+     * called again since it was scheduled, so the deque is never refilled while a movement uses it. Must be called
+     * while holding the lock of the users deque.
      */
     public static void onUserReady(UserImpl user) {
-        final ScheduledFuture future = scheduledExecutor.scheduleWithFixedDelay(() -> {
-            try {
-                if (user.moves.size() < 1) {
-                    user.moves.add(new PositionInMaze(1,0)); //The loop returns us to (0, 0) instead of (1, 0)
-                    Collections.addAll(user.moves, virtualUser.getIterationLoop()); //Add a new loop to this users moves
+        final int generation = user.generation;
+        user.future = scheduledExecutor.scheduleWithFixedDelay(() -> {
+            synchronized (user.moves) {
+                if (user.generation != generation) {
+                    return; //Replaced by a newer movement, which cancelled this one before it refilled the deque
                 }
+                try {
+                    if (user.moves.isEmpty()) {
+                        user.moves.add(PositionInMaze.pack(1, 0)); //The loop returns us to (0, 0) instead of (1, 0)
+                        user.moves.addAll(virtualUser.getIterationPath()); //Add a new loop to this users moves
+                    }
 
-                boolean moveSuccessful = user.getPlayer().moveTo(user.moves.peek()); //Move to the next position
-                if (moveSuccessful) {
-                    user.moves.poll(); //If move was successful then we remove the latest movement
-                } else {
-                    PositionInMaze failed = user.moves.peek(); //Get the position that we failed to move to
-                    System.out.println("Move unsuccessful to (" + failed.getXpos() + ", " + failed.getYpos() + ")");
+                    boolean moveSuccessful = user.getPlayer().moveTo(user.getPositions().get(user.moves.peek())); //Move to the next position
+                    if (moveSuccessful) {
+                        user.moves.poll(); //If move was successful then we remove the latest movement
+                    } else {
+                        PositionInMaze failed = PositionInMaze.unpack(user.moves.peek()); //Get the position that we failed to move to
+                        System.out.println("Move unsuccessful to (" + failed.getXpos() + ", " + failed.getYpos() + ")");
+                        System.out.println("Cannot recover, shutting down this user");
+                        if (user.future != null) {
+                            user.future.cancel(true); //Cancel this users movement execution
+                        }
+                        user.getGameServer().disconnect(user.getPlayer()); //Disconnect this user
+                    }
+                } catch (RemoteException e) {
+                    e.printStackTrace();
                     System.out.println("Cannot recover, shutting down this user");
                     if (user.future != null) {
                         user.future.cancel(true); //Cancel this users movement execution
                     }
-                    user.getGameServer().disconnect(user); //Disconnect this user
-                }
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                System.out.println("Cannot recover, shutting down this user");
-                if (user.future != null) {
-                    user.future.cancel(true); //Cancel this users movement execution
                 }
             }
         }, (long) (Math.random() * interval), interval, TimeUnit.MILLISECONDS); //We use a random initial delay to ease the load of this scheduled executor
-        user.future = future;
     }
 
     /**
@@ -151,14 +181,15 @@ public class SimulateUsers {
      */
     public static class UserImpl extends User {
 
-        private Deque<PositionInMaze> moves; //The moves that this user must do to complete a tour of the maze
+        private PositionDeque moves; //The moves that this user must do to complete a tour of the maze, packed
 
-        private ScheduledFuture future; //The ScheduledFuture provided by {@link #scheduledExecutor}
+        private volatile ScheduledFuture future; //The ScheduledFuture provided by {@link #scheduledExecutor}
+        private int generation; //How many times {@link #onGameReady} has been called, guarded by the lock of {@link #moves}
 
         protected UserImpl() throws RemoteException {
             super();
 
-            moves = new ArrayDeque<>();
+            moves = new PositionDeque();
         }
 
         /**
@@ -174,16 +205,27 @@ public class SimulateUsers {
          * Called by {@link IGameServer} when this users player is ready. It fetches the players position and creates
          * a new virtual user that is used to find the path out of the maze from the players position and add it to
          * {@link #moves}.
+         *
+         * If it is called again, because the server has recovered from a crash, then the deque is refilled from the
+         * recovered position while holding its lock, so the previous movement has either finished its step or sees that
+         * it has been replaced.
          */
         @Override
         public void onGameReady(IGameServer gameServer, IPlayer player) throws RemoteException {
             super.onGameReady(gameServer, player);
 
             PositionInMaze position = player.getPosition();
+            int[] path = new VirtualUser(getMaze(), position.getXpos(), position.getYpos()).getFirstIterationPath();
 
-            moves.addAll(Arrays.asList(new VirtualUser(getMaze(), position.getXpos(), position.getYpos()).getFirstIterationLoop()));
-
-            onUserReady(this);
+            synchronized (moves) {
+                if (future != null) {
+                    future.cancel(false); //The server has recovered from a crash, so restart from the recovered position
+                }
+                generation++;
+                moves.clear();
+                moves.addAll(path);
+                onUserReady(this);
+            }
         }
 
         @Override
@@ -3,6 +3,8 @@ package client;
 import mazeoblig.Box;
 import mazeoblig.IGameServer;
 import mazeoblig.IPlayer;
+import mazeoblig.TunedSocketFactory;
+import simulator.PositionCache;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -12,13 +14,16 @@ import java.rmi.server.UnicastRemoteObject;
  */
 public abstract class User extends UnicastRemoteObject implements IUser {
 
+    private static MazeRegistry mazes = new MazeRegistry(MazeCache.getDefault()); //The mazes shared by every user of this program
+
     private IGameServer gameServer;
     private IPlayer player;
 
     private Box[][] maze;
+    private PositionCache positions; //The positions of the cells of the maze, shared like the maze
 
     protected User() throws RemoteException {
-
+        super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
     }
 
     @Override
@@ -26,7 +31,22 @@ public abstract class User extends UnicastRemoteObject implements IUser {
         this.gameServer = gameServer;
         this.player = player;
 
-        this.maze = gameServer.getMaze().getMaze();
+        this.maze = mazes.get(gameServer); //The same instance for every user, only fetched if we have not seen it before
+        this.positions = mazes.getPositions(maze);
+    }
+
+    /**
+     * Sets the cache that the mazes of every user of this program are loaded from
+     */
+    public static void setMazeCache(MazeCache cache) {
+        mazes = new MazeRegistry(cache);
+    }
+
+    /**
+     * @return the mazes shared by every user of this program
+     */
+    public static MazeRegistry getMazes() {
+        return mazes;
     }
 
     /**
@@ -41,6 +61,13 @@ public abstract class User extends UnicastRemoteObject implements IUser {
         return maze;
     }
 
+    /**
+     * @return the positions of the cells of the maze, use these instead of creating new positions for every move
+     */
+    public PositionCache getPositions() {
+        return positions;
+    }
+
     public IGameServer getGameServer() throws RemoteException {
         return gameServer;
     }
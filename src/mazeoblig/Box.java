@@ -2,7 +2,6 @@ package mazeoblig;
 /************************************************************************
  * Denne koden skal ikke rres
  ***********************************************************************/
-import java.util.Vector;
 /**
  * <p>Title: Box</p>
  *
@@ -20,6 +19,12 @@ import java.io.Serializable;
 
 @SuppressWarnings("serial")
 public class Box implements Serializable {
+    /**
+     * The directions of {@link #getNeighbour(int)} and the bits of {@link #getOpenDirections()}, in the same order as
+     * {@link #getAdjecent()}. The opposite of a direction is direction ^ 2.
+     */
+    public static final int DOWN = 0, RIGHT = 1, UP = 2, LEFT = 3;
+
     private Box Up = null;
     private Box Down = null;
     private Box Left = null;
@@ -117,22 +122,61 @@ public class Box implements Serializable {
      * @return Box[]
      */
     public Box  [] getAdjecent() {
-        Vector <Box> adj = new Vector<Box>();
-        if (Down != null) adj.add(Down);
-        if (Right != null) adj.add(Right);
-        if (Up != null) adj.add(Up);
-        if (Left != null) adj.add(Left);
+        int open = getOpenDirections();
+        Box [] retval = new Box[Integer.bitCount(open)];
 
-        Box [] retval = new Box[adj.size()];
-
-        for (int i = 0; i < adj.size(); i++) retval[i] = (Box)adj.elementAt(i);
+        int i = 0;
+        for (int direction = DOWN; direction <= LEFT; direction++)
+            if ((open & 1 << direction) != 0) retval[i++] = getNeighbour(direction);
         return retval;
     }
 
+    /**
+     * Returns the directions that lead to a box with no wall in between, with bit 1 << direction set for each of them.
+     * Unlike {@link #getAdjecent()} this creates nothing, so it is the one to use when walking the maze.
+     * @return int
+     */
+    public int getOpenDirections() {
+        return (Down != null ? 1 << DOWN : 0)
+                | (Right != null ? 1 << RIGHT : 0)
+                | (Up != null ? 1 << UP : 0)
+                | (Left != null ? 1 << LEFT : 0);
+    }
+
+    /**
+     * Returns the box in a direction, or null if there is a wall in between
+     * @param direction one of {@link #DOWN}, {@link #RIGHT}, {@link #UP} and {@link #LEFT}
+     * @return Box
+     */
+    public Box getNeighbour(int direction) {
+        switch (direction) {
+            case DOWN: return Down;
+            case RIGHT: return Right;
+            case UP: return Up;
+            case LEFT: return Left;
+            default: throw new IllegalArgumentException("Not a direction: " + direction);
+        }
+    }
+
+    /**
+     * @return how much x changes when moving in a direction
+     */
+    public static int getDeltaX(int direction) {
+        return direction == RIGHT ? 1 : direction == LEFT ? -1 : 0;
+    }
+
+    /**
+     * @return how much y changes when moving in a direction
+     */
+    public static int getDeltaY(int direction) {
+        return direction == DOWN ? 1 : direction == UP ? -1 : 0;
+    }
+
+    /**
+     * Two boxes are only equal if they are the same box. This used to compare the identity hash codes, which can be
+     * equal for different boxes.
+     */
     public boolean equals(Box b) {
-        if (this.hashCode() == b.hashCode())
-            return true;
-        else
-            return false;
+        return this == b;
     }
 }
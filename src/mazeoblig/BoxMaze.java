@@ -25,20 +25,35 @@ public class BoxMaze extends UnicastRemoteObject implements BoxMazeInterface
 {
     private int maze[][];
     protected Box boxmaze[][];
-    private int size = 50;
+    public static final int DEFAULT_SIZE = 50; //The width and height of a maze that is created without a size
+    private int size = DEFAULT_SIZE;
     /**
      * Konstrukt�r
      * Randomiserer opp en tilfeldig labyrint p� 20 x 20 bokser hvor veggene
      * i mellom boksen er "fjernet slik at man f�r en labyint.
      */
     public BoxMaze() throws RemoteException {
+        super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
         init(size);
     }
 
     public BoxMaze(int newSize) throws RemoteException {
+        super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
         size = newSize;
         init(size);
     }
+
+    /**
+     * Constructs a maze from the wall values of an existing maze, as returned by {@link #getWalls()}
+     *
+     * @param walls the wall values of every box
+     */
+    public BoxMaze(int[][] walls) throws RemoteException {
+        super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
+        size = walls.length;
+        maze = walls;
+        build();
+    }
     /**
      * Genererer labyrinten. Koden er i all vesentlig grad hentet fra en enkel
      * algoritme som er publisert p� http://en.wikipedia.org/wiki/Image:Maze.png
@@ -113,8 +128,28 @@ public class BoxMaze extends UnicastRemoteObject implements BoxMazeInterface
         maze[1][1] &= ~1;
         maze[size - 2][size - 2] &= ~2;
 
+        build();
+    }
+
+    /**
+     * Builds {@link #boxmaze} from the wall values in {@link #maze}
+     */
+    private void build() {
+        boxmaze = build(maze);
+    }
+
+    /**
+     * Builds the boxes of a maze from its wall values, see {@link #getWalls()}, without creating a BoxMaze
+     *
+     * @param maze the wall values of every box
+     * @return the boxes of the maze
+     */
+    public static Box [][] build(int[][] maze) {
+        int x, y;
+        int size = maze.length;
+
         // Oppdatterer boksene, og antar at alle er forbundet med hverandre
-        boxmaze = new Box[size][size];
+        Box[][] boxmaze = new Box[size][size];
         for (x = 0; x < boxmaze.length; x++) {
             for (y = 0; y < boxmaze[x].length; y++) {
                 boxmaze[x][y] = new Box(maze[x][y]);
@@ -149,6 +184,7 @@ public class BoxMaze extends UnicastRemoteObject implements BoxMazeInterface
                     boxmaze[x + 1][y].setLeft(null);
                 }
             }
+        return boxmaze;
     }
 
     /**
@@ -160,5 +196,15 @@ public class BoxMaze extends UnicastRemoteObject implements BoxMazeInterface
         return boxmaze;
     }
 
+    /**
+     * Returns the wall values of every box, where bit 1, 2, 4 and 8 are set if there is a wall above, below, to the
+     * left and to the right of the box. The maze can be recreated from them with {@link #BoxMaze(int[][])}.
+     *
+     * @return the wall values
+     */
+    public int[][] getWalls() {
+        return maze;
+    }
+
 
 }
@@ -16,4 +16,12 @@ import java.rmi.*;
  */
 public interface BoxMazeInterface extends Remote {
     public Box [][] getMaze() throws RemoteException;
+
+    /**
+     * Returns the wall values of every box, which are much smaller to send than the boxes themselves. The boxes can be
+     * built from them with {@link BoxMaze#build(int[][])}.
+     *
+     * @return the wall values
+     */
+    public int[][] getWalls() throws RemoteException;
 }
@@ -0,0 +1,94 @@
+package mazeoblig;
+
+import java.util.Arrays;
+
+/**
+ * The changes in how many players are in every cell of a flattened map since the last tick, together with the cells
+ * that have been changed, so that {@link ChangeScanner} only has to look at those instead of the whole map. A cell is
+ * remembered when its change leaves 0, so a cell that goes back to 0 and leaves it again is remembered twice, and the
+ * amount of remembered cells is bounded by the amount of writes rather than by the size of the map.
+ *
+ * If more cells are remembered than a scan of the whole map would cost then the buffer stops remembering them, and the
+ * next scan looks at every cell instead. The buffer is not thread safe, {@link GameServer} only writes to it while
+ * holding its change lock and only scans it once it has been swapped out.
+ */
+public class ChangeBuffer {
+
+    private int[] cells; //The change of every cell, indexed by x * width + y
+    private int[] dirty = new int[64]; //The cells whose change has left 0 since the last scan
+    private int dirtyCount; //The amount of cells in {@link #dirty}
+    private int dirtyLimit; //The amount of remembered cells at which the whole map is cheaper to scan
+    private boolean overflowed; //Whether more than {@link #dirtyLimit} cells have changed since the last scan
+
+    /**
+     * @param size the amount of cells
+     * @param dirtyLimit the amount of changed cells at which the whole map is scanned instead
+     */
+    public ChangeBuffer(int size, int dirtyLimit) {
+        this.cells = new int[size];
+        this.dirtyLimit = dirtyLimit;
+    }
+
+    /**
+     * Adds a difference to the change of a cell
+     *
+     * @param cell the index of the cell, x * width + y
+     * @param difference the difference
+     */
+    public void add(int cell, int difference) {
+        if (cells[cell] == 0 && !overflowed) {
+            if (dirtyCount == dirtyLimit) {
+                overflowed = true;
+            } else {
+                if (dirtyCount == dirty.length) {
+                    dirty = Arrays.copyOf(dirty, Math.min(dirtyCount * 2, dirtyLimit));
+                }
+                dirty[dirtyCount++] = cell;
+            }
+        }
+        cells[cell] += difference;
+    }
+
+    /**
+     * Resets the change of every cell to 0
+     */
+    public void clear() {
+        Arrays.fill(cells, 0);
+        reset();
+    }
+
+    /**
+     * @return the change of every cell, indexed by x * width + y
+     */
+    public int[] getCells() {
+        return cells;
+    }
+
+    /**
+     * @return the cells whose change has left 0 since the last scan, in the order they did so, only the first
+     *         {@link #getDirtyCount()} are valid
+     */
+    public int[] getDirty() {
+        return dirty;
+    }
+
+    public int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @return whether too many cells have changed to remember them all, so every cell has to be scanned
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Forgets the changed cells, after a scan has reset every one of them to 0
+     */
+    public void reset() {
+        dirtyCount = 0;
+        overflowed = false;
+    }
+
+}
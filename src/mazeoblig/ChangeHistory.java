@@ -0,0 +1,82 @@
+package mazeoblig;
+
+/**
+ * A bounded history of the most recent {@link MapChangeEvent}s that a server has broadcast. The events are stored in a
+ * ring indexed by their tick index, so when the ring is full the oldest event is overwritten by the newest one.
+ * This lets users that have missed one or more events fetch exactly those events instead of the entire player map.
+ */
+public class ChangeHistory {
+
+    private MapChangeEvent[] events; //The ring of events, the event with index i is stored at i % events.length
+    private long newest; //The index of the newest event in the ring, 0 if no event has been added
+    private long oldest; //The index of the first event that was added, since a recovered server does not start at 1
+
+    /**
+     * Constructs an empty history that retains a given amount of events
+     *
+     * @param capacity how many events to retain
+     */
+    public ChangeHistory(int capacity) {
+        events = new MapChangeEvent[capacity];
+    }
+
+    /**
+     * Adds an event to this history. Events must be added in the order of their indexes.
+     *
+     * @param event the event to add
+     */
+    public synchronized void add(MapChangeEvent event) {
+        if (oldest == 0) {
+            oldest = event.getIndex();
+        }
+        events[slot(event.getIndex())] = event;
+        newest = event.getIndex();
+    }
+
+    /**
+     * Returns the events with indexes from fromIndex to toIndex, both inclusive.
+     *
+     * @param fromIndex the index of the first event
+     * @param toIndex the index of the last event
+     * @return the events in order of their index, or null if any of them have not happened yet or have been evicted
+     */
+    public synchronized MapChangeEvent[] get(long fromIndex, long toIndex) {
+        if (fromIndex > toIndex || fromIndex <= newest - events.length || toIndex > newest || fromIndex < Math.max(oldest, 1)) {
+            return null;
+        }
+
+        MapChangeEvent[] result = new MapChangeEvent[(int) (toIndex - fromIndex + 1)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = events[slot(fromIndex + i)];
+        }
+        return result;
+    }
+
+    /**
+     * Compacts every event after a given index into a single {@link MapChangeEvent} with
+     * {@link MapChangeEvent#compact}. If the index is the newest index then the result contains no changes.
+     *
+     * @param index the index of the map that the result should apply to
+     * @return the compacted event, or null if any event after the index has been evicted or the index is in the future
+     */
+    public synchronized MapChangeEvent compactSince(long index) {
+        if (index == newest) {
+            return MapChangeEvent.compact(index);
+        }
+
+        MapChangeEvent[] since = get(index + 1, newest);
+        return since == null ? null : MapChangeEvent.compact(index, since);
+    }
+
+    /**
+     * @return the index of the newest event in this history
+     */
+    public synchronized long getNewestIndex() {
+        return newest;
+    }
+
+    private int slot(long index) {
+        return (int) (index % events.length);
+    }
+
+}
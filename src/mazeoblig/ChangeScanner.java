@@ -0,0 +1,175 @@
+package mazeoblig;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds every non-zero cell of a flattened array of changes, like the ones {@link GameServer#tick()} drains, and
+ * resets them to 0. A {@link ChangeBuffer} remembers which cells have changed, so usually only those cells are looked
+ * at, after they have been sorted so the result is in order of the cells. That way the cost of a tick follows the
+ * amount of changes and not the size of the map.
+ *
+ * If too many cells have changed for the buffer to remember then every cell is scanned. The rows of the array are
+ * then split across a {@link ForkJoinPool} so that very large maps are scanned by every core, while small maps are
+ * scanned on the calling thread without any forking. Most cells are still 0, so each task ORs a block of
+ * {@link #BLOCK} cells together and only looks at the cells one by one if the block is not 0. The changes are written
+ * straight into a packed int[] of (cell, difference) pairs, and the buffers of the tasks are joined in order so the
+ * result is the same as a scan on one thread.
+ */
+public class ChangeScanner {
+
+    private static final int BLOCK = 8; //How many cells are tested at once
+    private static final int TASK_CELLS = 1 << 16; //How many cells a task scans before it is split in two
+
+    private static final int[] NO_CHANGES = new int[0];
+
+    private ForkJoinPool pool; //The pool that scans the rows of large maps
+    private int width; //The length of a row, tasks are split on row boundaries
+
+    /**
+     * @param width the length of a row
+     * @param pool the pool that scans large maps
+     */
+    public ChangeScanner(int width, ForkJoinPool pool) {
+        this.width = width;
+        this.pool = pool;
+    }
+
+    /**
+     * @param cells the amount of cells of a map
+     * @return the amount of changed cells at which scanning every cell of the map is cheaper than sorting the changed
+     *         ones, for {@link ChangeBuffer#ChangeBuffer}
+     */
+    public static int getDirtyLimit(int cells) {
+        return Math.max(cells / (BLOCK * 4), 1);
+    }
+
+    /**
+     * Scans the changed cells of a buffer, or every cell if it has overflowed, and resets every change to 0
+     *
+     * @param buffer the changes
+     * @return the changes as (x * width + y, difference) pairs in order of their index
+     */
+    public int[] scan(ChangeBuffer buffer) {
+        int[] changes = buffer.getCells();
+        if (buffer.isOverflowed()) {
+            buffer.reset();
+            return scan(changes);
+        }
+
+        int[] dirty = buffer.getDirty();
+        int count = buffer.getDirtyCount();
+        Arrays.sort(dirty, 0, count);
+        int[] packed = NO_CHANGES;
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int cell = dirty[i];
+            if (changes[cell] != 0) { //0 if it went back to 0, or if it was remembered twice and has been read
+                if (size == packed.length) {
+                    packed = grow(packed);
+                }
+                packed[size++] = cell;
+                packed[size++] = changes[cell];
+                changes[cell] = 0;
+            }
+        }
+        buffer.reset();
+        return size == packed.length ? packed : Arrays.copyOf(packed, size);
+    }
+
+    /**
+     * Scans every cell of an array of changes and resets every change to 0
+     *
+     * @param changes the changes, indexed by x * width + y
+     * @return the changes as (x * width + y, difference) pairs in order of their index
+     */
+    public int[] scan(int[] changes) {
+        if (changes.length <= TASK_CELLS) {
+            return scan(changes, 0, changes.length);
+        }
+        return pool.invoke(new ScanTask(changes, 0, changes.length / width));
+    }
+
+    /**
+     * Scans the cells from start to end on the calling thread
+     */
+    private static int[] scan(int[] changes, int start, int end) {
+        int[] packed = NO_CHANGES;
+        int size = 0;
+
+        int i = start;
+        for (; i + BLOCK <= end; i += BLOCK) {
+            if ((changes[i] | changes[i + 1] | changes[i + 2] | changes[i + 3]
+                    | changes[i + 4] | changes[i + 5] | changes[i + 6] | changes[i + 7]) == 0) {
+                continue; //Nothing changed in the whole block
+            }
+            for (int j = i; j < i + BLOCK; j++) {
+                if (changes[j] != 0) {
+                    if (size == packed.length) {
+                        packed = grow(packed);
+                    }
+                    packed[size++] = j;
+                    packed[size++] = changes[j];
+                    changes[j] = 0;
+                }
+            }
+        }
+        for (; i < end; i++) {
+            if (changes[i] != 0) {
+                if (size == packed.length) {
+                    packed = grow(packed);
+                }
+                packed[size++] = i;
+                packed[size++] = changes[i];
+                changes[i] = 0;
+            }
+        }
+
+        return size == packed.length ? packed : Arrays.copyOf(packed, size);
+    }
+
+    private static int[] grow(int[] packed) {
+        return Arrays.copyOf(packed, Math.max(packed.length * 2, 32));
+    }
+
+    /**
+     * Scans a range of rows, splitting it in two while it has more than {@link #TASK_CELLS} cells
+     */
+    private class ScanTask extends RecursiveTask<int[]> {
+
+        private int[] changes;
+        private int fromRow;
+        private int toRow;
+
+        private ScanTask(int[] changes, int fromRow, int toRow) {
+            this.changes = changes;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected int[] compute() {
+            if ((long) (toRow - fromRow) * width <= TASK_CELLS || toRow - fromRow == 1) {
+                return scan(changes, fromRow * width, toRow * width);
+            }
+
+            int middle = (fromRow + toRow) >>> 1;
+            ScanTask right = new ScanTask(changes, middle, toRow);
+            right.fork();
+            int[] left = new ScanTask(changes, fromRow, middle).compute();
+            int[] rest = right.join();
+
+            if (rest.length == 0) {
+                return left;
+            } else if (left.length == 0) {
+                return rest;
+            }
+            int[] joined = Arrays.copyOf(left, left.length + rest.length);
+            System.arraycopy(rest, 0, joined, left.length, rest.length);
+            return joined;
+        }
+
+    }
+
+}
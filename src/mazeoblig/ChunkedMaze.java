@@ -0,0 +1,325 @@
+package mazeoblig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A maze without an end to the right or downwards, made of square chunks that are generated the first time a box in
+ * them is looked up. Each chunk is generated from the seed of the world and its own coordinates, so a chunk that has
+ * been thrown away is generated again exactly as it was. Only the most recently used chunks are kept, so the memory
+ * used follows how much of the maze is being played in rather than how large it is.
+ *
+ * The inside of each chunk is a maze of its own made by {@link EllerMaze}. The chunks are then joined by one door each
+ * to the chunk to their left or the chunk above them, chosen from the seed, except that the chunks of the first row can
+ * only go left and the chunks of the first column only up. Every chunk therefore leads back to the first one by
+ * exactly one way, and so the whole maze is a maze in which every box leads to every other box by exactly one way.
+ * Both chunks on either side of a door know about it, since each of them works out the door from the same seed.
+ *
+ * A game server plays in a square {@link #getWindow window} of the maze from its first box. The sides of the window are
+ * walls, and since every chunk leads back to the first chunk through chunks to its left and above, a window that holds
+ * whole chunks is a maze of its own in which every box leads to every other box by exactly one way. The window is
+ * never held as a whole, every lookup in it and every piece of its wall values is made from the chunks.
+ */
+public class ChunkedMaze implements MazeWalls {
+
+    private static final int NONE = -1; //The door of the first chunk, which does not have one
+    private static final int BORDER = 32; //The value of a border box, see BoxMaze
+
+    private long seed; //The seed of the world
+    private int chunkSize; //The width and height of every chunk in boxes
+    private Map<Long, byte[]> chunks; //The open directions of every box of the most recently used chunks, by x * chunkSize + y
+
+    /**
+     * @param seed the seed of the world, the same seed gives the same maze
+     * @param chunkSize the width and height of every chunk in boxes
+     * @param capacity how many chunks to keep before the least recently used one is thrown away
+     */
+    public ChunkedMaze(long seed, int chunkSize, int capacity) {
+        if (chunkSize < 1 || capacity < 1) {
+            throw new IllegalArgumentException("The chunk size and capacity must be positive");
+        }
+        this.seed = seed;
+        this.chunkSize = chunkSize;
+        this.chunks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a box, generating its chunk if it is not kept
+     *
+     * @return the open sides of the box at (x, y), or 0 if x or y is negative
+     */
+    @Override
+    public int getOpenDirections(int x, int y) {
+        if (x < 0 || y < 0) {
+            return 0;
+        }
+        byte[] chunk = getChunk(x / chunkSize, y / chunkSize);
+        return chunk[(x % chunkSize) * chunkSize + y % chunkSize];
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the largest chunk size of at most a given size that divides a window evenly, so that the window holds
+     * whole chunks
+     *
+     * @param inner the width and height of the window without its border
+     * @param max the largest chunk size to return
+     * @return the chunk size, at least 1
+     */
+    public static int getChunkSize(int inner, int max) {
+        for (int size = Math.min(inner, max); size > 1; size--) {
+            if (inner % size == 0) {
+                return size;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns a square window of this maze with a ring of border boxes around it, see {@link Window}
+     *
+     * @param width the width and height of the window including the border
+     * @return the window
+     */
+    public Window getWindow(int width) {
+        return new Window(width);
+    }
+
+    /**
+     * @return how many chunks are kept right now
+     */
+    public synchronized int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Returns a chunk, generating it if it is not kept. It is generated without holding the lock so other lookups are
+     * not held up, and if two threads generate the same chunk at once then they both get the same result anyway.
+     */
+    private byte[] getChunk(int cx, int cy) {
+        long key = (long) cx << 32 | cy & 0xFFFFFFFFL;
+        byte[] chunk;
+        synchronized (this) {
+            chunk = chunks.get(key);
+        }
+        if (chunk == null) {
+            chunk = generate(cx, cy);
+            synchronized (this) {
+                chunks.put(key, chunk);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Generates the boxes of a chunk with {@link EllerMaze}, closes its edges and then opens its doors
+     */
+    private byte[] generate(int cx, int cy) {
+        int size = chunkSize;
+        int[][] walls = new int[size][size];
+        EllerMaze maze = new EllerMaze(size + 2, size + 2, new Random(hash(cx, cy, 0)));
+        int[] row = new int[size + 2];
+        maze.nextRow(row); //The border above
+        for (int y = 0; y < size; y++) {
+            maze.nextRow(row);
+            for (int x = 0; x < size; x++) {
+                walls[x][y] = row[x + 1];
+            }
+        }
+
+        //Close the entrance and exit of the EllerMaze, the doors below are the only ways in and out
+        walls[0][0] |= 1;
+        walls[size - 1][size - 1] |= 2;
+
+        //The door of this chunk, and the doors of the chunks to the right and below that lead into this one
+        int door = getDoor(cx, cy);
+        if (door == Box.LEFT) {
+            walls[0][getDoorOffset(cx, cy)] &= ~4;
+        } else if (door == Box.UP) {
+            walls[getDoorOffset(cx, cy)][0] &= ~1;
+        }
+        if (getDoor(cx + 1, cy) == Box.LEFT) {
+            walls[size - 1][getDoorOffset(cx + 1, cy)] &= ~8;
+        }
+        if (getDoor(cx, cy + 1) == Box.UP) {
+            walls[getDoorOffset(cx, cy + 1)][size - 1] &= ~2;
+        }
+
+        byte[] chunk = new byte[size * size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int wall = walls[x][y];
+                chunk[x * size + y] = (byte) (((wall & 2) == 0 ? 1 << Box.DOWN : 0)
+                        | ((wall & 8) == 0 ? 1 << Box.RIGHT : 0)
+                        | ((wall & 1) == 0 ? 1 << Box.UP : 0)
+                        | ((wall & 4) == 0 ? 1 << Box.LEFT : 0));
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * @return the side of a chunk that its door is on, {@link Box#LEFT} or {@link Box#UP}, or {@link #NONE} for the
+     * first chunk
+     */
+    private int getDoor(int cx, int cy) {
+        if (cx == 0 && cy == 0) {
+            return NONE;
+        } else if (cy == 0) {
+            return Box.LEFT;
+        } else if (cx == 0) {
+            return Box.UP;
+        }
+        return (hash(cx, cy, 1) & 1) == 0 ? Box.LEFT : Box.UP;
+    }
+
+    /**
+     * @return how far along its side the door of a chunk is
+     */
+    private int getDoorOffset(int cx, int cy) {
+        return (int) Long.remainderUnsigned(hash(cx, cy, 2), chunkSize);
+    }
+
+    /**
+     * @return a number that is random looking but always the same for the same seed, chunk and purpose
+     */
+    private long hash(int cx, int cy, int purpose) {
+        return mix(seed ^ mix(((long) cx << 32 | cy & 0xFFFFFFFFL) + purpose * 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of the input over every bit of the output
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * A square window of a chunked maze from its first box, with a ring of border boxes around it, laid out like the
+     * mazes of {@link BoxMaze}: box (x, y) of the window is box (x - 1, y - 1) of the chunked maze. Every side that
+     * leads out of the window is a wall, except for an entrance above (1, 1) and an exit below (width - 2, width - 2).
+     *
+     * The border boxes are open to each other, and to a box inside the window only if that box is open towards them,
+     * which is how {@link BoxMaze#build} connects the border boxes of a maze made from {@link #getWalls}. So the
+     * window tells the same walls as the boxes clients build from it, without the server ever building them.
+     */
+    public class Window implements MazeWalls {
+
+        private int width; //The width and height of the window including the border
+
+        private Window(int width) {
+            if (width < 3) {
+                throw new IllegalArgumentException("A window must be at least 3 boxes wide");
+            }
+            this.width = width;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return the open sides of the box at (x, y) of the window, or 0 if it is outside the window
+         */
+        @Override
+        public int getOpenDirections(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= width) {
+                return 0;
+            }
+            if (!isBorder(x, y)) {
+                return getInnerDirections(x, y);
+            }
+
+            int open = 0;
+            for (int direction = Box.DOWN; direction <= Box.LEFT; direction++) {
+                int nx = x + Box.getDeltaX(direction);
+                int ny = y + Box.getDeltaY(direction);
+                if (nx < 0 || ny < 0 || nx >= width || ny >= width) {
+                    continue;
+                }
+                if (isBorder(nx, ny) || (getInnerDirections(nx, ny) & 1 << (direction ^ 2)) != 0) {
+                    open |= 1 << direction;
+                }
+            }
+            return open;
+        }
+
+        /**
+         * Returns the wall values of a rectangle of the window, see {@link BoxMaze#getWalls()}, generating the chunks
+         * it covers as they are needed
+         *
+         * @return the wall values of the rectangle by x and then y, relative to its corner
+         * @throws IllegalArgumentException if the rectangle is not inside the window
+         */
+        public int[][] getWalls(int x, int y, int width, int height) {
+            MazeWalls.checkRectangle(this.width, x, y, width, height);
+            int[][] walls = new int[width][height];
+            for (int i = 0; i < width; i++) {
+                for (int j = 0; j < height; j++) {
+                    if (isBorder(x + i, y + j)) {
+                        walls[i][j] = BORDER;
+                        continue;
+                    }
+                    int open = getInnerDirections(x + i, y + j);
+                    walls[i][j] = ((open & 1 << Box.UP) == 0 ? 1 : 0)
+                            | ((open & 1 << Box.DOWN) == 0 ? 2 : 0)
+                            | ((open & 1 << Box.LEFT) == 0 ? 4 : 0)
+                            | ((open & 1 << Box.RIGHT) == 0 ? 8 : 0);
+                }
+            }
+            return walls;
+        }
+
+        /**
+         * Hashes the wall values of the window one column at a time, so that it gets the same info as a
+         * {@link BoxMaze} with the same walls without holding them all at once
+         *
+         * @return the info of the window
+         */
+        public MazeInfo getInfo() {
+            return new MazeInfo(MazeInfo.hash(width, width, x -> getWalls(x, 0, 1, width)[0]), width, width);
+        }
+
+        private boolean isBorder(int x, int y) {
+            return x == 0 || y == 0 || x == width - 1 || y == width - 1;
+        }
+
+        /**
+         * @return the open sides of a box inside the border
+         */
+        private int getInnerDirections(int x, int y) {
+            int inner = width - 2;
+            int open = ChunkedMaze.this.getOpenDirections(x - 1, y - 1);
+            if (x == 1) {
+                open &= ~(1 << Box.LEFT);
+            }
+            if (x == inner) {
+                open &= ~(1 << Box.RIGHT);
+            }
+            if (y == 1 && x != 1) { //Except the entrance
+                open &= ~(1 << Box.UP);
+            } else if (y == 1) {
+                open |= 1 << Box.UP;
+            }
+            if (y == inner && x != inner) { //Except the exit
+                open &= ~(1 << Box.DOWN);
+            } else if (y == inner) {
+                open |= 1 << Box.DOWN;
+            }
+            return open;
+        }
+
+    }
+
+}
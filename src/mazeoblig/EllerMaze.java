@@ -0,0 +1,223 @@
+package mazeoblig;
+
+import paramaters.FunctionFlag;
+import paramaters.ParameterInterpretation;
+import paramaters.ParameterInterpreter;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Generates a maze one row at a time with Eller's algorithm, so that only the current row is kept in memory no matter
+ * how tall the maze is. The rows have the same wall values and the same layout as the mazes of {@link BoxMaze}: a ring
+ * of border boxes with the value 32 around the boxes of the maze itself, an entrance above (1, 1) and an exit below
+ * (width - 2, height - 2). Every box of the maze can be reached from every other box by exactly one way.
+ *
+ * Each box of a row belongs to a set of boxes that are connected by the rows so far. Neighbours of different sets are
+ * joined at random, then every set is continued down into the next row at least once, so no set is cut off. The last
+ * row joins every set that is left.
+ *
+ * The sets are stored as labels between 0 and the width of the maze, joined with a union-find, and relabelled for each
+ * row, so generating a row takes time and memory in proportion to the width only.
+ */
+public class EllerMaze {
+
+    private static final int BORDER = 32; //The value of a border box, see BoxMaze
+    private static final int WALLS = 1 | 2 | 4 | 8; //Walls above, below, to the left and to the right
+
+    private int width; //The width including the border
+    private int height; //The height including the border
+    private Random random;
+
+    private int y; //The row that is generated next
+    private int[] labels; //The set of every box of the current row
+    private int[] parent; //The union-find of the sets of the current row, by label
+    private boolean[] down; //Whether every box of the current row is open to the box below it
+    private int[] remaining; //How many boxes of each set are left to decide on going down, by label
+    private boolean[] continued; //Whether each set has gone down yet, by label
+    private boolean[] used; //Whether each label is taken while relabelling
+
+    /**
+     * @param width the width of the maze including the border, at least 3
+     * @param height the height of the maze including the border, at least 3
+     * @param random where the choices are taken from, the same seed gives the same maze
+     */
+    public EllerMaze(int width, int height, Random random) {
+        if (width < 3 || height < 3) {
+            throw new IllegalArgumentException("A maze must be at least 3 by 3 to have room for its border");
+        }
+        this.width = width;
+        this.height = height;
+        this.random = random;
+
+        int inner = width - 2;
+        labels = new int[inner];
+        parent = new int[inner];
+        down = new boolean[inner];
+        remaining = new int[inner];
+        continued = new boolean[inner];
+        used = new boolean[inner];
+    }
+
+    /**
+     * Generates a maze into a file in the format of {@link PackedMaze}
+     */
+    public static void main(String[] args) throws IOException {
+        ParameterInterpreter interpreter = new ParameterInterpreter(
+                new FunctionFlag("file", "f", "The file to write the maze to", String::new, true),
+                new FunctionFlag("width", "x", "The width of the maze including its border", Integer::new),
+                new FunctionFlag("height", "y", "The height of the maze including its border", Integer::new),
+                new FunctionFlag("seed", "s", "The seed of the maze, a random maze is generated if not set", Long::new)
+        );
+        ParameterInterpretation intepretation = interpreter.intepret(args);
+
+        String file = intepretation.get("file");
+        int width = intepretation.get("width", 50); //Set width to the width argument or the width of BoxMaze
+        int height = intepretation.get("height", width); //Set height to the height argument or the width
+        Long seed = intepretation.get("seed", null); //Set seed to the seed argument or null for a random maze
+
+        EllerMaze maze = new EllerMaze(width, height, seed != null ? new Random(seed) : new Random());
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(Paths.get(file),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            PackedMaze.write(maze, channel);
+        }
+        System.out.printf("Wrote a %d by %d maze to %s in %d ms\n", width, height, file, System.currentTimeMillis() - start);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether or not there are rows left to generate
+     */
+    public boolean hasNextRow() {
+        return y < height;
+    }
+
+    /**
+     * Generates the next row, from the top down
+     *
+     * @param row where to put the wall value of every box of the row, see {@link BoxMaze#getWalls()}, at least as long
+     *            as the width
+     * @throws IllegalStateException if every row has been generated
+     */
+    public void nextRow(int[] row) {
+        if (!hasNextRow()) {
+            throw new IllegalStateException("Every row of the maze has been generated");
+        }
+        int current = y++;
+        if (current == 0 || current == height - 1) {
+            for (int x = 0; x < width; x++) {
+                row[x] = BORDER;
+            }
+            return;
+        }
+
+        int inner = width - 2;
+        boolean first = current == 1;
+        boolean last = current == height - 2;
+
+        row[0] = BORDER;
+        row[width - 1] = BORDER;
+        relabel(first);
+        for (int i = 0; i < inner; i++) {
+            row[i + 1] = down[i] ? WALLS & ~1 : WALLS; //Open above if the set came down from the row above
+        }
+        if (first) {
+            row[1] &= ~1; //The entrance
+        }
+
+        //Join neighbours of different sets, every one of them on the last row so that the maze is connected
+        for (int i = 0; i < inner - 1; i++) {
+            int left = find(labels[i]);
+            int right = find(labels[i + 1]);
+            if (left != right && (last || random.nextBoolean())) {
+                parent[right] = left;
+                row[i + 1] &= ~8;
+                row[i + 2] &= ~4;
+            }
+        }
+
+        if (last) {
+            row[inner] &= ~2; //The exit
+            return;
+        }
+
+        //Continue every set down at least once, deciding for each box at random unless it is the last of a set that
+        //has not gone down yet
+        for (int i = 0; i < inner; i++) {
+            int set = find(labels[i]);
+            remaining[set] = 0;
+            continued[set] = false;
+        }
+        for (int i = 0; i < inner; i++) {
+            remaining[find(labels[i])]++;
+        }
+        for (int i = 0; i < inner; i++) {
+            int set = find(labels[i]);
+            remaining[set]--;
+            down[i] = random.nextBoolean() || (remaining[set] == 0 && !continued[set]);
+            if (down[i]) {
+                continued[set] = true;
+                row[i + 1] &= ~2;
+            }
+        }
+    }
+
+    /**
+     * Gives every box of the next row the set it came down from, and every other box a new set of its own
+     */
+    private void relabel(boolean first) {
+        int inner = width - 2;
+        for (int i = 0; i < inner; i++) {
+            used[i] = false;
+        }
+        if (!first) {
+            for (int i = 0; i < inner; i++) {
+                if (down[i]) {
+                    labels[i] = find(labels[i]);
+                    used[labels[i]] = true;
+                }
+            }
+        }
+        int free = 0;
+        for (int i = 0; i < inner; i++) {
+            if (first || !down[i]) {
+                while (used[free]) {
+                    free++;
+                }
+                labels[i] = free;
+                used[free] = true;
+            }
+        }
+        for (int i = 0; i < inner; i++) {
+            parent[i] = i;
+        }
+        if (first) {
+            for (int i = 0; i < inner; i++) {
+                down[i] = false;
+            }
+        }
+    }
+
+    /**
+     * @return the label that represents the set of a label, halving the path to it on the way
+     */
+    private int find(int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+}
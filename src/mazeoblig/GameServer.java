@@ -1,41 +1,78 @@
 package mazeoblig;
 
 import client.IUser;
-import simulator.PositionInMaze;
 
 import javax.swing.*;
+import java.io.*;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.Timer;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GameServer extends UnicastRemoteObject implements IGameServer {
 
-    enum Timeout {
-        NOT_TIMED_OUT,
-        TIMED_OUT,
-        RECENTLY_TIMED_OUT
-    }
-
-    private static final int TIMEOUT_SCHEDULER_THREADS = 5; //How long to wait until we disconnect a non-responding user
     private static final int TIMEOUT_DELAY = 5; //How long to wait until we disconnect a non-responding user
+    private static final int MOVE_TIMEOUT = 1000; //How many milliseconds a queued move waits for a tick before it is rejected
 
-    private static final int LEASE_SCHEDULER_THREADS = 4; //The amount of threads the lease scheduler should use
     private static final int LEASE_DURATION = 60; //How many seconds a lease is valid for
 
-    private BoxMaze maze; //The maze that the server uses
-    private Box[][] boxMaze; //The Box[][] representation of the maze that the server uses, only for internal use
-    private int[][] playerMap; //Map of how many players are in any (x, y) point in the maze, same size as {@link #boxMaze}
-    private int[][] previousMap; //A copy of {@link #playerMap} from the previous tick, used to track changes
+    private static final int TIMER_TICK = 100; //The precision of {@link #timers} in milliseconds
+    private static final int TIMER_SLOTS = 1024; //The amount of slots in {@link #timers}
+    private static final int TIMER_THREADS = 16; //The maximum amount of lease and timeout callbacks that run at once
+
+    private static final int HISTORY_SIZE = 256; //How many of the most recent MapChangeEvents to retain
+    private static final int MAX_POLL_TIMEOUT = 30000; //The longest a poll waits in milliseconds, well within a lease
+
+    private static final int REDUCED_INTERVAL = 4; //How many ticks are merged into each update of a user on the reduced tier
+    private static final int SNAPSHOT_TIER_INTERVAL = 16; //How many ticks between each time a user on the snapshot tier is told to fetch the map
+    private static final int SLOW_CALLBACK = 100000; //The latency in microseconds per tick of a tier that moves a user down from it
+    private static final int FAST_CALLBACK = 25000; //The latency in microseconds per tick of a tier that counts towards moving a user up to it
+    private static final int RECOVERY_CALLBACKS = 4; //How many fast callbacks in a row move a user up a tier
+    private static final int BACKLOG_LIMIT = 4; //How many updates of its tier a user may fall behind before it is moved down
+
+    private static final int SNAPSHOT_INTERVAL = 60; //How many seconds between each snapshot of the game state
+
+    private BoxMaze maze; //The maze that the server uses, or null if it plays in {@link #window}
+    private ChunkedMaze.Window window; //The window of a chunked maze that the server plays in, or null if it uses {@link #maze}
+    private MazeInfo mazeInfo; //The hash and dimensions of the maze
+    private Box[][] boxMaze; //The Box[][] representation of {@link #maze}, only for internal use
+    private int width; //The width and height of the maze
+    private MazeWalls walls; //The open sides of every box of the maze, that moves are checked against
+
+    //The changes in how many players are in any (x, y) point since the last tick, indexed by x * width + y. Movers
+    //write to it while holding {@link #changeLock}, and {@link #tick()} swaps it with {@link #drainingChanges}.
+    private ChangeBuffer pendingChanges;
+    private ChangeBuffer drainingChanges; //The changes being turned into a MapChangeEvent by {@link #tick()}, all 0 otherwise
+    private ChangeScanner scanner; //Finds and resets the non-zero changes in {@link #drainingChanges}
+    private final Object changeLock = new Object(); //Guards {@link #pendingChanges}, only held for a few instructions
+    private final AtomicBoolean ticking = new AtomicBoolean(); //Makes sure only one tick runs at a time
 
-    private Map<IUser, Player> users; //A map that maps a IUser to their corresponding Player instance
+    private SessionTable sessions; //The position, timeout and lease of every player, indexed by the id of their session
+    private PlayerEndpoint endpoint; //The single remote object that serves every {@link PlayerHandle}
+    private MoveQueue moveQueue; //The moves to apply at the start of the next tick, or null if moves are applied right away
 
-    private ScheduledThreadPoolExecutor leaseScheduler; //The executor that schedules lease expiry
-    private ScheduledThreadPoolExecutor timeOutScheduler; //The executor that schedules timeouts
+    private TimingWheel timers; //Schedules the expiry of leases and the end of timeouts
+    private ExecutorService timerExecutor; //Runs the lease and timeout callbacks scheduled by {@link #timers}
     private ThreadPoolExecutor taskExecutor; //An executor used for various async tasks
 
-    private long tickIndex; //Represents an id of the last tick the server sent to its users
+    private ChangeHistory history; //The most recent MapChangeEvents, so users can fetch the ones they have missed
+    private TickSignal ticks = new TickSignal(); //Wakes the callers of {@link #pollChanges} after every tick
+
+    //The immutable player map of the last tick the server sent to its users, together with the index of that tick.
+    //It is only replaced by {@link #tick()}, so readers always see a consistent map and index without locking.
+    private volatile PlayerMap snapshot;
+
+    private File dataDirectory; //The directory the game state is persisted in, or null if it is not persisted
+    private volatile MoveLog moveLog; //The log of every change to the game state since the last snapshot, or null if not persisted
+
+    private TickRecorder recorder; //Records every tick so it can be played back by {@link Replay}, or null if not recorded
+    private Map<Integer, Long> replayedSessions = new ConcurrentHashMap<>(); //The sessions of the players placed by {@link Replay}, by their id
+
+    private ShardRegion region; //The region of the maze this server owns in a {@link ShardCluster}, or null if it owns all of it
+
 
     /**
      * Constructs a new GameServer with a specific tick rate that decides how many timer per second the server should
@@ -44,19 +81,176 @@ public class GameServer extends UnicastRemoteObject implements IGameServer {
      * @param rate how many timer per second to update users
      */
     protected GameServer(int rate) throws RemoteException {
-        super();
+        this(rate, null, null, false, null, null, null);
+    }
 
-        users = new ConcurrentHashMap<>();
+    /**
+     * Constructs a headless GameServer for {@link Replay} that uses a given maze. It does not tick on its own, instead
+     * the replay places and moves players with {@link #replayRegister} and {@link #replayMove} and then ticks it with
+     * {@link #replayTick()}.
+     *
+     * @param walls the wall values of the maze, see {@link BoxMaze#getWalls()}
+     */
+    GameServer(int[][] walls) throws RemoteException {
+        this(0, null, null, false, walls, null, null);
+    }
 
-        maze = new BoxMaze();
-        boxMaze = maze.getMaze();
-        playerMap = new int[maze.getMaze().length][maze.getMaze().length];
-        previousMap = new int[maze.getMaze().length][maze.getMaze().length];
+    /**
+     * Constructs a new GameServer with a specific tick rate that persists its state in a directory. If the directory
+     * contains the state of a previous server then that state is recovered with {@link #recover}, otherwise the given
+     * maze is used or a new one is created. Either way a snapshot is taken right away and then every
+     * {@link #SNAPSHOT_INTERVAL} seconds.
+     *
+     * @param rate how many timer per second to update users
+     * @param dataDirectory the directory to persist the state in, or null to not persist anything
+     * @param recording the file to record every tick to with a {@link TickRecorder}, or null to not record
+     * @param tickMoves whether to queue moves and apply them at the start of each tick instead of right away
+     * @param walls the wall values of a square maze to use if none is recovered, or null to create a new maze
+     */
+    protected GameServer(int rate, File dataDirectory, File recording, boolean tickMoves, int[][] walls) throws RemoteException {
+        this(rate, dataDirectory, recording, tickMoves, walls, null, null);
+    }
 
-        timeOutScheduler = new ScheduledThreadPoolExecutor(TIMEOUT_SCHEDULER_THREADS);
-        leaseScheduler = new ScheduledThreadPoolExecutor(LEASE_SCHEDULER_THREADS);
+    /**
+     * Constructs a new GameServer with a specific tick rate that owns one region of a maze shared by a
+     * {@link ShardCluster}. The first server of the cluster uses the given maze or creates one, and the rest fetch it
+     * from the first. The state of a cluster can not be persisted or recorded, since it is spread over several servers.
+     * Moves are always applied right away, since a move into another region can not be ordered with the moves of a tick.
+     *
+     * @param rate how many timer per second to update users
+     * @param cluster the servers of the cluster
+     * @param walls the wall values of a square maze for the first server to use, or null to create a new maze
+     */
+    protected GameServer(int rate, ShardCluster cluster, int[][] walls) throws RemoteException {
+        this(rate, null, null, false, cluster.getIndex() > 0 ? cluster.fetchWalls() : walls, cluster, null);
+    }
+
+    /**
+     * Constructs a new GameServer with a specific tick rate that plays in a window of a {@link ChunkedMaze}. Moves are
+     * checked against the chunks of the window and clients fetch its walls a piece at a time with {@link #getWalls},
+     * so the server never holds the maze as a whole. The state can not be persisted or recorded, since both hold the
+     * walls of the whole maze.
+     *
+     * @param rate how many timer per second to update users
+     * @param tickMoves whether to queue moves and apply them at the start of each tick instead of right away
+     * @param window the window of the chunked maze
+     */
+    protected GameServer(int rate, boolean tickMoves, ChunkedMaze.Window window) throws RemoteException {
+        this(rate, null, null, tickMoves, null, null, window);
+    }
+
+    /**
+     * @param rate how many timer per second to update users, or 0 to only tick when {@link #replayTick()} is called
+     * @param dataDirectory the directory to persist the state in, or null to not persist anything
+     * @param recording the file to record every tick to with a {@link TickRecorder}, or null to not record
+     * @param tickMoves whether to queue moves and apply them at the start of each tick instead of right away
+     * @param walls the wall values of the maze to use if none is recovered, or null to create a new maze
+     * @param cluster the servers that own the other regions of the maze, or null to own all of it
+     * @param window the window of a chunked maze to play in instead of a maze of boxes, or null
+     */
+    private GameServer(int rate, File dataDirectory, File recording, boolean tickMoves, int[][] walls, ShardCluster cluster,
+                       ChunkedMaze.Window window) throws RemoteException {
+        super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
+
+        sessions = new SessionTable();
+        if (tickMoves) {
+            moveQueue = new MoveQueue();
+        }
+        endpoint = new PlayerEndpoint();
+        history = new ChangeHistory(HISTORY_SIZE);
+
+        timerExecutor = Executors.newFixedThreadPool(TIMER_THREADS);
+        timers = new TimingWheel(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_SLOTS, timerExecutor);
         taskExecutor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
 
+        GameSnapshot recovered = null;
+        if (dataDirectory != null) {
+            this.dataDirectory = dataDirectory;
+            dataDirectory.mkdirs();
+            try {
+                recovered = GameSnapshot.read(dataDirectory);
+            } catch (IOException e) {
+                throw new RemoteException("Could not read the snapshot in " + dataDirectory, e);
+            }
+        }
+
+        if (recovered != null) {
+            walls = recovered.getWalls();
+        }
+        if (window != null) {
+            this.window = window;
+            mazeInfo = window.getInfo();
+            width = window.getWidth();
+            this.walls = window;
+        } else {
+            maze = walls != null ? new BoxMaze(walls) : new BoxMaze();
+            boxMaze = maze.getMaze();
+            mazeInfo = MazeInfo.of(maze.getWalls());
+            width = boxMaze.length;
+            this.walls = MazeWalls.of(boxMaze);
+        }
+        pendingChanges = new ChangeBuffer(width * width, ChangeScanner.getDirtyLimit(width * width));
+        drainingChanges = new ChangeBuffer(width * width, ChangeScanner.getDirtyLimit(width * width));
+        scanner = new ChangeScanner(width, ForkJoinPool.commonPool());
+        snapshot = new PlayerMap(new int[width][width], 0);
+
+        if (cluster != null) {
+            region = new ShardRegion(cluster, boxMaze, sessions, changeLock, new RegionHost(), taskExecutor);
+        }
+
+        if (recording != null) {
+            try {
+                recorder = new TickRecorder(recording, maze.getWalls());
+            } catch (IOException e) {
+                throw new RemoteException("Could not record to " + recording, e);
+            }
+
+            //The index of the recording is only written when it is closed
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+
+        if (dataDirectory != null) {
+            Map<Long, IUser> recoveredUsers = Collections.emptyMap();
+            try {
+                if (recovered != null) {
+                    recoveredUsers = recover(recovered);
+                }
+
+                long[] segments = MoveLog.getSegments(dataDirectory);
+                moveLog = new MoveLog(dataDirectory, segments.length > 0 ? segments[segments.length - 1] + 1 : 0);
+                takeSnapshot();
+            } catch (IOException | InterruptedException e) {
+                throw new RemoteException("Could not persist the game state in " + dataDirectory, e);
+            }
+
+            //Only now that the recovered players are in a snapshot and the log is open can their moves be persisted
+            recoveredUsers.forEach((token, user) -> taskExecutor.execute(() -> {
+                try {
+                    user.onGameReady(this, new PlayerHandle(endpoint, token));
+                } catch (RemoteException e) {
+                    disconnect(token);
+                }
+            }));
+
+            ScheduledExecutorService snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+            snapshotScheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    takeSnapshot();
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        if (rate <= 0) {
+            return; //Headless, ticked by {@link Replay}
+        }
 
         Timer timer = new Timer();
         timer.schedule(new TimerTask() {
@@ -79,316 +273,1003 @@ public class GameServer extends UnicastRemoteObject implements IGameServer {
     }
 
     /**
-     * Registers a {@link IUser} and assigns them a new {@link IPlayer} that is placed in a random position in the maze.
-     * A new Lease is also created for them. When the created Player is ready then {@link IUser#onGameReady} will be
-     * called.
+     * Recovers the state of a previous server from its last snapshot and every log segment written after it. Every
+     * recovered player is placed where they were, but their users are not told about their new {@link IPlayer} here,
+     * since a move made before {@link #moveLog} is open would not be persisted. The constructor calls
+     * {@link IUser#onGameReady} once the recovered state has been written to a new snapshot, and disconnects the users
+     * that cannot be reached.
+     *
+     * @param recovered the last snapshot of the previous server
+     * @return the user of every recovered player by the token of their session
+     */
+    private Map<Long, IUser> recover(GameSnapshot recovered) throws IOException {
+        long start = System.currentTimeMillis();
+
+        for (long segment : MoveLog.getSegments(dataDirectory)) {
+            if (segment >= recovered.getSegment()) {
+                MoveLog.replay(MoveLog.getSegmentFile(dataDirectory, segment), recovered);
+            }
+        }
+
+        snapshot = new PlayerMap(new int[width][width], recovered.getTickIndex());
+
+        Map<Long, IUser> users = new LinkedHashMap<>();
+        for (GameSnapshot.Entry entry : recovered.getPlayers()) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.getUser()))) {
+                IUser user = (IUser) in.readObject();
+                long token = openSession(user, entry.getX(), entry.getY(), entry.getUser());
+                users.put(token, user);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not read a recovered user", e);
+            }
+        }
+
+        System.out.printf("Recovered %d players at tick %d in %d ms\n", sessions.size(), recovered.getTickIndex(), System.currentTimeMillis() - start);
+        return users;
+    }
+
+    /**
+     * Takes a snapshot of the game state and writes it to {@link #dataDirectory}. The log is rotated first, so that
+     * every change that is not contained in the snapshot is written to the new segment, and once the snapshot is on
+     * disk every older segment is deleted. Since every record in the log is absolute, it does not matter if the
+     * snapshot also contains some of the changes in the new segment.
+     */
+    private void takeSnapshot() throws IOException, InterruptedException {
+        long segment = moveLog.rotate();
+
+        GameSnapshot gameSnapshot = new GameSnapshot(maze.getWalls(), snapshot.getIndex(), segment);
+        for (int id : sessions.getSubscribers()) {
+            int position = sessions.getPosition(id);
+            byte[] user = sessions.getSerializedUser(id);
+            if (user != null) { //Null if the session was closed since the ids were copied
+                gameSnapshot.addPlayer(id, position >>> 16, position & 0xFFFF, user);
+            }
+        }
+        gameSnapshot.write(dataDirectory);
+
+        for (long old : MoveLog.getSegments(dataDirectory)) {
+            if (old < segment) {
+                MoveLog.getSegmentFile(dataDirectory, old).delete();
+            }
+        }
+    }
+
+    /**
+     * Serializes the stub of a user so that it can be persisted and used to reach them after a restart
+     */
+    private static byte[] serializeUser(IUser user) throws RemoteException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(user);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RemoteException("Could not serialize user", e);
+        }
+    }
+
+    /**
+     * Registers a {@link IUser} and opens a new session for them with {@link #openSession}, which places their player
+     * in a random position in the maze and starts their lease. When the session is open then {@link IUser#onGameReady}
+     * will be called with a {@link PlayerHandle} for it.
      *
-     * If this GameServer already has an entry for them then this method will simply call {@link IUser#onGameReady}
-     * with the Player that is already assigned to them.
+     * Sessions are only ever looked up by their token, so a user that registers twice gets two players. Each of them
+     * stays until it is disconnected with its own handle or its lease expires.
+     *
+     * No server-wide lock is held, so any amount of users can register at the same time, and the call to
+     * {@link IUser#onGameReady}, which calls back into the server, is made after the session has been opened.
      *
      * @param user the remote IUser to register
      */
     @Override
-    public synchronized void register(IUser user) throws RemoteException {
-        if (users.containsKey(user)) {
-            System.out.println("A user tried to register twice");
-            user.onGameReady(this, users.get(user));
-        } else {
-            //The lease is a inner class that schedules itself, so we don't need to keep track of it
-            new Lease(user, LEASE_DURATION);
+    public void register(IUser user) throws RemoteException {
+        user.onGameReady(this, new PlayerHandle(endpoint, createSession(user)));
+    }
 
-            Player player = new Player(getRandomStartPosition());
-            //System.out.printf("New player connected, placing them at (%d, %d)\n", player.getPosition().getXpos(), player.getPosition().getYpos());
+    /**
+     * Registers many users at once with {@link #createSession} and returns their players. The calls to
+     * {@link IUser#onGameReady} are made in parallel by {@link #taskExecutor} after this method has returned, and a user
+     * that cannot be reached is disconnected.
+     *
+     * @param users the users to register
+     * @return the player of every user in the same order
+     */
+    @Override
+    public IPlayer[] registerAll(IUser[] users) throws RemoteException {
+        IPlayer[] players = new IPlayer[users.length]; //Not a PlayerHandle[], since the class of the array is sent to the user
+        for (int i = 0; i < users.length; i++) {
+            players[i] = new PlayerHandle(endpoint, createSession(users[i]));
+        }
 
-            users.put(user, player);
+        for (int i = 0; i < users.length; i++) {
+            IUser user = users[i];
+            IPlayer player = players[i];
+            taskExecutor.execute(() -> {
+                try {
+                    user.onGameReady(this, player);
+                } catch (RemoteException e) {
+                    disconnect(player);
+                }
+            });
+        }
+        return players;
+    }
 
-            user.onGameReady(this, player);
+    /**
+     * Opens a session for a user at a random position, with their serialized stub if the game state is persisted
+     *
+     * @param user the user
+     * @return the token of the session of the user
+     */
+    private long createSession(IUser user) throws RemoteException {
+        return openSession(user, moveLog != null ? serializeUser(user) : null);
+    }
+
+    /**
+     * Registers a user that is never called back, see {@link IGameServer#registerPolling()}. Its session has no
+     * {@link IUser}, so {@link #broadcastPlayerMapChange} skips it, and it is marked with
+     * {@link SessionTable#POLLED_UPDATES} so that {@link #expireLease} closes it once its lease expires instead of
+     * asking anyone. There is no stub to persist, so the player is not recovered after a restart.
+     *
+     * @return the player of the user
+     */
+    @Override
+    public IPlayer registerPolling() throws RemoteException {
+        long token = openSession(null, null);
+        int id = sessions.getId(token);
+        if (id >= 0) {
+            sessions.setTier(id, SessionTable.POLLED_UPDATES);
+            scheduleLease(token, sessions.getLeaseDeadline(id) - System.nanoTime());
         }
+        return new PlayerHandle(endpoint, token);
+    }
+
+    /**
+     * Opens a session with {@link #openSession(IUser, int, int, byte[])} at a random position in the region of this
+     * server
+     */
+    private long openSession(IUser user, byte[] serializedUser) {
+        Random rand = new Random();
+        int start = region != null ? Math.max(region.getStart(), 1) : 1; //The player is placed in the region of this server
+        int end = region != null ? Math.min(region.getEnd(), width - 1) : width - 1;
+        return openSession(user, rand.nextInt(end - start) + start, rand.nextInt(width - 2) + 1, serializedUser);
     }
 
     /**
-     * This method is used to de-register a {@link IUser}. It also calls {@link Player#purge} to remove the players
-     * position from {@link #playerMap}
+     * This method is used to de-register a {@link IUser}. It closes the session of their player with
+     * {@link #disconnect(long)}. A player that was not given out by this server is ignored.
      *
-     * @param user the user that has (should be) disconnected
+     * @param player the player of the user that has (should be) disconnected
      */
     @Override
-    public void disconnect(IUser user) {
-        Player player = users.remove(user);
+    public void disconnect(IPlayer player) {
+        if (player instanceof PlayerHandle) {
+            disconnect(((PlayerHandle) player).getHomeToken());
+        }
+    }
 
-        if (player != null) {
-            player.purge();
+    /**
+     * Closes a session with {@link #closeSession}, which removes the players position from the player map and cancels
+     * any timeout of the player so it is not run for a user that is gone. Their lease ends with the session.
+     *
+     * @param token the token of the session
+     */
+    private void disconnect(long token) {
+        if (closeSession(token)) {
             System.out.println("A user has disconnected");
         }
     }
 
     /**
-     * Compares {@link #playerMap} with {@link #previousMap} and updates all clients about the difference. Then it
-     * copies {@link #playerMap} into {@link #previousMap} in preparation for the next time this method is called.
+     * Opens a session in {@link #sessions} and records the new player with {@link #pendingChanges} so that they are
+     * represented in the player map after the next tick. If the session has a user then its lease is scheduled with
+     * {@link #scheduleLease}. The first lease of the session expires sometime between the lease duration and the
+     * duration times two, so that if a large amount of sessions are opened at once their leases won't expire at once
+     * and overload {@link #timerExecutor}.
+     *
+     * @param user the user of the session, or null if the player is replayed
+     * @param x the x-position of the player
+     * @param y the y-position of the player
+     * @param serializedUser the serialized stub of the user, or null if it is not persisted
+     * @return the token of the session
+     */
+    private long openSession(IUser user, int x, int y, byte[] serializedUser) {
+        long leaseDeadline = System.nanoTime() + (long) ((1 + Math.random()) * TimeUnit.SECONDS.toNanos(LEASE_DURATION));
+        long token;
+        synchronized (changeLock) {
+            token = sessions.open(user, x, y, serializedUser, leaseDeadline);
+            int id = sessions.getId(token);
+            pendingChanges.add(x * width + y, 1);
+            if (recorder != null) {
+                recorder.register(id, x, y);
+            }
+            if (moveLog != null && serializedUser != null) {
+                moveLog.register(id, x, y, serializedUser);
+            }
+        }
+        if (user != null) {
+            scheduleLease(token, leaseDeadline - System.nanoTime());
+        }
+        return token;
+    }
+
+    /**
+     * Closes a session in {@link #sessions} and records with {@link #pendingChanges} that its player no longer should
+     * be represented in the player map. If the player is in the region of another server then that server is told to
+     * remove them instead.
+     *
+     * @param token the token of the session
+     * @return whether or not the session was open
+     */
+    private boolean closeSession(long token) {
+        if (region != null) {
+            region.leave(token);
+        }
+
+        synchronized (changeLock) {
+            int id = sessions.getId(token);
+            if (id < 0) {
+                return false;
+            }
+
+            int position = sessions.getPosition(id);
+            if (position != ShardRegion.AWAY) {
+                pendingChanges.add((position >>> 16) * width + (position & 0xFFFF), -1);
+            }
+            if (recorder != null) {
+                recorder.disconnect(id);
+            }
+            if (moveLog != null) {
+                moveLog.disconnect(id);
+            }
+            return sessions.close(token);
+        }
+    }
+
+    /**
+     * Swaps {@link #pendingChanges} with {@link #drainingChanges} so that movers can keep writing while we read the
+     * changes since the last tick, and updates all clients about them. The swap is the only thing done while holding
+     * {@link #changeLock}, and every non-zero change is reset to 0 by {@link #scanner} as it is read so that the buffer
+     * can be swapped in again on the next tick without being copied or reallocated. The buffer remembers which cells
+     * have changed, so the scanner only looks at those unless a large part of the map has changed. If moves are applied
+     * at the start of each tick then every move in {@link #moveQueue} is applied in one pass right before the swap,
+     * under the same lock.
      *
      * This method uses {@link MapChangeEvent} to notify users about changes.
      *
-     * If there was a difference, then {@link #tickIndex} will be incremented and passed with the {@link MapChangeEvent}
-     * to the users so that they can synchronize MapChangeEvents if they arrive out of order.
+     * If there was a difference, then the index of the tick will be incremented and passed with the
+     * {@link MapChangeEvent} to the users so that they can synchronize MapChangeEvents if they arrive out of order. The
+     * MapChangeEvent is also added to {@link #history} so that users can fetch it later with {@link #getMapChanges}
+     * if it never arrives, and applied to {@link #snapshot} to publish the next immutable version of the player map.
+     * If the server is recorded then the MapChangeEvent is also written by {@link #recorder}, together with the moves
+     * that were accepted before the swap.
+     *
+     * @return the MapChangeEvent of the tick, or null if nothing changed or the previous tick is still running
      */
-    private void tick() {
-        int[][] mapState;
-        synchronized (this) { //To make sure nothing changes while we copy the playerMap
-            mapState = Arrays.stream(playerMap).map(int[]::clone).toArray(int[][]::new);
+    private MapChangeEvent tick() {
+        if (!ticking.compareAndSet(false, true)) {
+            return null; //The previous tick is still running
         }
 
-        //The total amount of changes will never exceed the dimensions of the maze squared
-        MapChangeEvent mapChangeEvent = new MapChangeEvent(mapState.length * mapState.length);
-        for (int x = 0; x < mapState.length; x++) {
-            for (int y = 0; y < mapState[x].length; y++) {
-                int diff = mapState[x][y] - previousMap[x][y]; //Calculate the difference
-                if (diff != 0) {
-                    mapChangeEvent.add(x, y, diff); //If there is a difference, add it
+        try {
+            ChangeBuffer changes;
+            synchronized (changeLock) {
+                if (moveQueue != null) {
+                    moveQueue.apply(this::applyQueuedMove); //Every queued move in one pass, before the changes are read
                 }
+                changes = pendingChanges;
+                pendingChanges = drainingChanges;
+                drainingChanges = changes;
+                if (recorder != null) {
+                    recorder.cut();
+                }
+            }
+
+            int[] packed = scanner.scan(changes); //Every difference as (x * width + y, difference) pairs
+            if (region != null) {
+                region.publish(packed);
+            }
+            MapChangeEvent mapChangeEvent = new MapChangeEvent(packed.length / 2);
+            for (int i = 0; i < packed.length; i += 2) {
+                mapChangeEvent.add(packed[i] / width, packed[i] % width, packed[i + 1]);
             }
+
+            if (mapChangeEvent.size() > 0) { //Don't bother broadcasting if there wasn't not changes;
+                mapChangeEvent.setIndex(snapshot.getIndex() + 1);
+                history.add(mapChangeEvent);
+                snapshot = snapshot.apply(mapChangeEvent);
+                ticks.signal();
+                if (moveLog != null) {
+                    moveLog.tick(mapChangeEvent.getIndex());
+                }
+                if (recorder != null) {
+                    try {
+                        recorder.record(mapChangeEvent);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                broadcastPlayerMapChange(mapChangeEvent);
+                return mapChangeEvent;
+            }
+            sendBacklog();
+            return null;
+        } finally {
+            ticking.set(false);
         }
-        previousMap = mapState;
+    }
 
-        if (mapChangeEvent.size() > 0) { //Don't bother broadcasting if there wasn't not changes;
-            synchronized (this) {
-                tickIndex++;
+    /**
+     * Request the player of a session to move from its current position to another position. If the player is allowed
+     * to move to the position then the player will be moved with {@link #setPosition}. If this server applies moves
+     * at the start of each tick then the move is queued in {@link #moveQueue} instead, and this method waits until the
+     * next tick has applied it with {@link #applyQueuedMove}, or rejects it if no tick has applied it within
+     * {@link #MOVE_TIMEOUT} milliseconds.
+     *
+     * If the move request is successful and the player is moved then this method will return true, otherwise it
+     * will return false. A successful move also renews the lease of the session, since it proves the user is alive.
+     *
+     * @param token the token of the session
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @return whether or not the movement was successful (valid), see {@link #isValidMove}
+     */
+    private boolean move(long token, int x, int y) {
+        int id = sessions.getId(token);
+        if (id < 0) {
+            return false;
+        }
+        if (moveQueue != null) {
+            return moveQueue.submit(id, token, x, y, TimeUnit.MILLISECONDS.toNanos(MOVE_TIMEOUT));
+        }
+
+        int from = sessions.getPosition(id);
+        if (!isValidMove(from, x, y)) {
+            return false;
+        }
+
+        if (from != (x << 16 | y)) {
+            synchronized (changeLock) {
+                //The move was validated against the position we read, so it is only valid if nobody moved us since
+                if (sessions.getToken(id) != token || sessions.getPosition(id) != from) {
+                    return false;
+                }
+                setPosition(id, from, x, y);
             }
+        }
+
+        touch(id);
+        return true;
+    }
+
+    /**
+     * Applies a move from {@link #moveQueue} the same way {@link #move} does. It is called by {@link #tick()} for every
+     * queued move while it holds {@link #changeLock}, so nothing can move the player in between.
+     *
+     * @param id the id of the session
+     * @param token the token of the session when the move was submitted
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @return whether or not the movement was successful (valid)
+     */
+    private boolean applyQueuedMove(int id, long token, int x, int y) {
+        if (sessions.getToken(id) != token) {
+            return false; //The session was closed after the move was submitted
+        }
 
-            mapChangeEvent.setIndex(tickIndex);
-            broadcastPlayerMapChange(mapChangeEvent);
+        int from = sessions.getPosition(id);
+        if (!isValidMove(from, x, y)) {
+            return false;
         }
+        if (from != (x << 16 | y)) {
+            setPosition(id, from, x, y);
+        }
+
+        touch(id);
+        return true;
     }
 
     /**
-     * Creates and returns a random PositionInMaze that is within the bounds of {@link #maze}
+     * The movement is considered valid if it does not violate any of the following conditions:
+     *  1: The position is outside the bounds of the maze
+     *  2: The sum of the difference between the x and y values of the position and the players position is greater than 1
+     *  3: There is a wall between the position and the players position, according to {@link #walls}
      *
-     * @return a random position within {@link #maze}
+     * @param from the position of the player as x << 16 | y
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @return whether or not the movement is valid
      */
-    private PositionInMaze getRandomStartPosition() {
-        Random rand = new Random();
-        return new PositionInMaze(rand.nextInt(playerMap.length - 2) + 1, rand.nextInt(playerMap.length - 2) + 1);
+    private boolean isValidMove(int from, int x, int y) {
+        //Make sure position is not out of bounds
+        if (y < 0 || x < 0 || x > width - 1 || y > width - 1) {
+            return false;
+        }
+
+        int fromX = from >>> 16;
+        int fromY = from & 0xFFFF;
+        int deltaX = fromX - x;
+        int deltaY = fromY - y;
+
+        //Make sure that the position is not further away than 1 box in x + y direction
+        if (Math.abs(deltaX) + Math.abs(deltaY) > 1) {
+            return false;
+        }
+
+        //Make sure that there is no wall in the direction we want to move
+        int open = walls.getOpenDirections(fromX, fromY);
+        if (deltaX == -1) {
+            return (open & 1 << Box.RIGHT) != 0;
+        } else if (deltaX == 1) {
+            return (open & 1 << Box.LEFT) != 0;
+        } else if (deltaY == -1) {
+            return (open & 1 << Box.DOWN) != 0;
+        } else if (deltaY == 1) {
+            return (open & 1 << Box.UP) != 0;
+        }
+        return true;
     }
 
     /**
-     * Loops through all users in {@link #users} and calls {@link IUser#onPlayerMapChange} on them. Each call
-     * is ran with {@link #taskExecutor} so that if a user does not respond then it won't slow down for the rest of the
-     * users.
+     * Moves the player of a session and records the move with {@link #pendingChanges}. Must be called while holding
+     * {@link #changeLock}.
+     */
+    private void setPosition(int id, int from, int x, int y) {
+        pendingChanges.add((from >>> 16) * width + (from & 0xFFFF), -1);
+        pendingChanges.add(x * width + y, 1);
+        sessions.setPosition(id, x << 16 | y);
+        if (recorder != null) {
+            recorder.move(id, x, y);
+        }
+        if (moveLog != null) {
+            moveLog.move(id, x, y);
+        }
+    }
+
+    /**
+     * @return the remote object that the other servers of the cluster call, or null if this server is not in a cluster
+     */
+    public IShard getShardEndpoint() {
+        return region != null ? region.getEndpoint() : null;
+    }
+
+    /**
+     * Records that the user of a session has just shown they are alive, which extends their lease to a duration from
+     * now so that {@link #expireLease} does not have to call them. Only the deadline is written, the task of the lease
+     * stays where it is on {@link #timers} and moves itself forward when it finds the deadline has moved.
+     */
+    private void touch(int id) {
+        sessions.setLeaseDeadline(id, System.nanoTime() + TimeUnit.SECONDS.toNanos(LEASE_DURATION));
+    }
+
+    /**
+     * Places a player of a recording in a headless server, see {@link #GameServer(int[][])}
+     */
+    void replayRegister(int id, int x, int y) {
+        replayedSessions.put(id, openSession(null, x, y, null));
+    }
+
+    /**
+     * Moves a player of a recording in a headless server the same way a user would, with {@link #move}
      *
-     * If a {@link RemoteException} is thrown then the players {@link Player#timeOut} will be set to
-     * {@link Timeout#TIMED_OUT}, causing this method to ignore the user until their {@link Player#timeOut} is set to
-     * {@link Timeout#RECENTLY_TIMED_OUT} by {@link #timeOutScheduler} after {@link #TIMEOUT_DELAY} seconds. If a
-     * {@link RemoteException} is thrown again then that user will be disconnected by calling {@link #disconnect}. If a
-     * {@link RemoteException} is not thrown then the player's {@link Player#timeOut} will be reset to
-     * {@link Timeout#NOT_TIMED_OUT} and {@link IUser#invalidateMap()} is called on that user.
+     * @return whether or not the move was accepted
+     */
+    boolean replayMove(int id, int x, int y) {
+        Long token = replayedSessions.get(id);
+        return token != null && move(token, x, y);
+    }
+
+    /**
+     * Removes a player of a recording from a headless server
+     */
+    void replayDisconnect(int id) {
+        Long token = replayedSessions.remove(id);
+        if (token != null) {
+            closeSession(token);
+        }
+    }
+
+    /**
+     * Places the players of a keyframe in a headless server and makes them the player map with the index of the
+     * keyframe, without a tick, so that the next tick of the recording follows on from it
+     *
+     * @param index the index of the keyframe
+     * @param players the players of the keyframe as (id, x, y) triples
+     */
+    void replayRestore(long index, int[] players) {
+        int[][] map = new int[width][width];
+        for (int i = 0; i < players.length; i += 3) {
+            replayRegister(players[i], players[i + 1], players[i + 2]);
+            map[players[i + 1]][players[i + 2]]++;
+        }
+        synchronized (changeLock) {
+            pendingChanges.clear(); //The players are already in the map
+        }
+        snapshot = new PlayerMap(map, index);
+    }
+
+    /**
+     * Ticks a headless server
+     *
+     * @return the MapChangeEvent of the tick, or null if nothing changed
+     */
+    MapChangeEvent replayTick() {
+        return tick();
+    }
+
+    /**
+     * Loops through every open session in {@link #sessions} and sends their users the changes they have not been sent
+     * yet with {@link #notify}. Each call is ran with {@link #taskExecutor} so that if a user does not respond then it
+     * won't slow down for the rest of the users. Sessions that are timed out are skipped without dispatching anything.
      *
      * @param change the changes since last tick
      */
     public void broadcastPlayerMapChange(MapChangeEvent change) {
-        for (Map.Entry<IUser, Player> entry : users.entrySet()) {
-            taskExecutor.execute(() -> {
-                IUser user = entry.getKey();
-                Player player = entry.getValue();
+        dispatchUpdates(change, change.getIndex());
+    }
 
-                if (player.timeOut != Timeout.TIMED_OUT) { //Ignore user if their player is timed out
-                    try {
-                        user.onPlayerMapChange(change);
-                        if (player.timeOut != Timeout.NOT_TIMED_OUT) {
-                            player.timeOut = Timeout.NOT_TIMED_OUT;  //Reset their time out
-                            user.invalidateMap(); //If they have timed out and returned, then their map is probably all messed up
-                        }
-                    } catch (RemoteException e) {
-                        if (player.timeOut == Timeout.NOT_TIMED_OUT) { //Check if this is their first time timing out
-                            player.timeOut = Timeout.TIMED_OUT;
-                            timeOutScheduler.schedule(() -> player.timeOut = Timeout.RECENTLY_TIMED_OUT, TIMEOUT_DELAY, TimeUnit.SECONDS); //Give a second chance
-                        } else if (player.timeOut == Timeout.RECENTLY_TIMED_OUT) { //Check if this is their second chance
-                            disconnect(user);
-                        }
-                    }
+    /**
+     * Called by {@link #tick()} when nothing changed, so that the users that are behind the last tick because of their
+     * tier or a slow callback are sent the rest of the changes even if the game goes quiet
+     */
+    private void sendBacklog() {
+        dispatchUpdates(null, snapshot.getIndex());
+    }
+
+    /**
+     * Sends every user that is due an update the changes up to a tick. Users are sent updates according to the tier in
+     * {@link #sessions} that {@link #adjustTier} has put them on:
+     *
+     * {@link SessionTable#FULL_UPDATES} are sent the change of every tick, and {@link SessionTable#REDUCED_UPDATES}
+     * are sent every change since the last map they were sent merged into one MapChangeEvent every
+     * {@link #REDUCED_INTERVAL} ticks. {@link SessionTable#SNAPSHOT_UPDATES} are not sent any changes, but have
+     * {@link IUser#invalidateMap()} called every {@link #SNAPSHOT_TIER_INTERVAL} ticks so that they fetch what they
+     * need with {@link #getChangesSince}. The merged changes are made once per tick for every user that was sent the
+     * same map, from {@link #history}, and if the changes have been evicted the user is told to fetch the map instead.
+     *
+     * A user of a {@link ShardRegion} that has set its view with {@link #setView} is only sent the changes in the
+     * regions it sees. The changes are filtered once per tick for every user with the same view, and keep their index
+     * so that the user can still tell if it has missed any.
+     *
+     * The open sessions are iterated without a lock or a copy, see {@link SessionTable#getSubscriber}. A session that
+     * is seen twice is skipped the second time, since it has already been sent the tick.
+     *
+     * A user is never sent an update while the previous one is still running. The ticks it misses are merged into the
+     * next update instead, so a slow user costs at most one thread and one pending update no matter how far it falls
+     * behind, and its updates always arrive in order.
+     *
+     * @param change the changes of the tick, or null if nothing changed and only the users that are behind are sent
+     *               the changes they are missing
+     * @param index the index of the tick
+     */
+    private void dispatchUpdates(MapChangeEvent change, long index) {
+        Map<Long, MapChangeEvent> merged = null; //The changes since each index that has been merged so far
+        Map<Long, Map<MapChangeEvent, MapChangeEvent>> filtered = null; //The changes that have been filtered so far, by view
+        for (int i = 0, size = sessions.size(); i < size; i++) {
+            int id = sessions.getSubscriber(i); //Read without a lock or a copy, a session missed here is sent it next tick
+            if (sessions.getTimeOut(id) == SessionTable.TIMED_OUT) { //Ignore user if their player is timed out
+                continue;
+            }
+            if (sessions.isNotifying(id)) { //The user is still busy with the last update, so this tick goes in the next
+                continue;
+            }
+
+            long sentIndex = sessions.getSentIndex(id);
+            if (sentIndex >= index || (change == null && sentIndex < 0)) { //Up to date, or nothing to catch up with
+                continue;
+            }
+            byte tier = sessions.getTier(id);
+            if (change != null && sentIndex >= 0 && index - sentIndex < getInterval(tier)) { //Not due on their tier
+                continue;
+            }
+
+            long token = sessions.getToken(id);
+            IUser user = sessions.getUser(id);
+            if (user == null) { //Null if the player is replayed or the session has closed
+                continue;
+            }
+
+            MapChangeEvent unfiltered;
+            if (tier == SessionTable.SNAPSHOT_UPDATES) {
+                unfiltered = null;
+            } else if (change != null && (sentIndex < 0 || sentIndex == change.getBaseIndex())) {
+                unfiltered = change;
+            } else {
+                if (merged == null) {
+                    merged = new HashMap<>();
                 }
-            });
+                unfiltered = merged.computeIfAbsent(sentIndex, history::compactSince); //Null if they have been evicted
+            }
+
+            long view = sessions.getView(id);
+            MapChangeEvent update;
+            if (unfiltered == null || view == SessionTable.WHOLE_MAP) {
+                update = unfiltered;
+            } else {
+                if (filtered == null) {
+                    filtered = new HashMap<>();
+                }
+                update = filtered.computeIfAbsent(view, key -> new IdentityHashMap<>())
+                        .computeIfAbsent(unfiltered, key -> region.filter(key, view));
+            }
+
+            if (!sessions.startNotifying(id)) {
+                continue;
+            }
+            sessions.setSentIndex(id, index);
+            taskExecutor.execute(() -> notify(id, token, user, update));
+        }
+    }
+
+    /**
+     * @return how many ticks each update of a tier covers
+     */
+    private static int getInterval(byte tier) {
+        switch (tier) {
+            case SessionTable.REDUCED_UPDATES:
+                return REDUCED_INTERVAL;
+            case SessionTable.SNAPSHOT_UPDATES:
+                return SNAPSHOT_TIER_INTERVAL;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Calls {@link IUser#onPlayerMapChange} on the user of a session, or {@link IUser#invalidateMap()} if there is no
+     * update to send, and lets {@link #adjustTier} measure how long it took.
+     *
+     * If a {@link RemoteException} is thrown then the timeout of the session will be set to
+     * {@link SessionTable#TIMED_OUT}, causing {@link #broadcastPlayerMapChange} to ignore the user until their timeout
+     * is set to {@link SessionTable#RECENTLY_TIMED_OUT} by {@link #timers} after {@link #TIMEOUT_DELAY} seconds. If a
+     * {@link RemoteException} is thrown again then that user will be disconnected by calling {@link #disconnect}. If a
+     * {@link RemoteException} is not thrown then the timeout of the session will be reset to
+     * {@link SessionTable#NOT_TIMED_OUT} and {@link IUser#invalidateMap()} is called on that user, which lets them catch
+     * up with {@link #getChangesSince}.
+     *
+     * The id of a closed session can be reused by a new one, so the token is checked before the session is changed.
+     *
+     * @param id the id of the session
+     * @param token the token of the session when the update was dispatched
+     * @param user the user of the session
+     * @param update the changes to send, or null to have the user fetch the map
+     */
+    private void notify(int id, long token, IUser user, MapChangeEvent update) {
+        try {
+            long start = System.nanoTime();
+            if (update != null) {
+                user.onPlayerMapChange(update);
+            } else {
+                user.invalidateMap();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (sessions.getToken(id) != token) {
+                return; //The session was closed while we waited for the user
+            }
+            touch(id); //The user acknowledged the change, so they are alive
+            adjustTier(id, elapsed);
+            if (sessions.getTimeOut(id) != SessionTable.NOT_TIMED_OUT) {
+                sessions.setTimeOut(id, SessionTable.NOT_TIMED_OUT); //Reset their time out
+                user.invalidateMap(); //If they have timed out and returned, then their map is probably all messed up
+            }
+        } catch (RemoteException e) {
+            if (sessions.getToken(id) != token) {
+                return;
+            }
+            byte timeOut = sessions.getTimeOut(id);
+            if (timeOut == SessionTable.NOT_TIMED_OUT) { //Check if this is their first time timing out
+                sessions.setTimeOut(id, SessionTable.TIMED_OUT);
+                sessions.setTimeOutTask(id, timers.schedule(() -> { //Give a second chance
+                    if (sessions.getToken(id) == token) {
+                        sessions.setTimeOut(id, SessionTable.RECENTLY_TIMED_OUT);
+                    }
+                }, TIMEOUT_DELAY, TimeUnit.SECONDS));
+            } else if (timeOut == SessionTable.RECENTLY_TIMED_OUT) { //Check if this is their second chance
+                disconnect(token);
+            }
+        } finally {
+            if (sessions.getToken(id) == token) {
+                sessions.finishNotifying(id);
+            }
+        }
+    }
+
+    /**
+     * Updates the average latency of a session with a callback that just finished, and moves the user of the session
+     * between the tiers of {@link #dispatchUpdates}. The latency and the amount of ticks that passed while the user
+     * answered are both measured against the amount of ticks each update of the tier covers.
+     *
+     * A user is moved down a tier as soon as the average latency reaches {@link #SLOW_CALLBACK} per tick of its tier,
+     * or it has fallen more than {@link #BACKLOG_LIMIT} updates behind. It is moved back up once it has answered
+     * {@link #RECOVERY_CALLBACKS} callbacks in a row faster than {@link #FAST_CALLBACK} per tick of the tier above
+     * without falling behind, so that a user does not flap between two tiers. The callbacks are counted one by one
+     * rather than by the average, which would take a long time to forget a slow past on the slower tiers.
+     *
+     * @param id the id of the session
+     * @param elapsed how long the callback took in nanoseconds
+     */
+    private void adjustTier(int id, long elapsed) {
+        int sample = (int) Math.min(TimeUnit.NANOSECONDS.toMicros(elapsed), Integer.MAX_VALUE);
+        int latency = sessions.getLatency(id);
+        latency = latency == 0 ? sample : latency + (sample - latency) / 4; //Weighs the last few callbacks the most
+        sessions.setLatency(id, latency);
+
+        byte tier = sessions.getTier(id);
+        long backlog = snapshot.getIndex() - sessions.getSentIndex(id); //How many ticks passed while the user answered
+        if (latency >= (long) SLOW_CALLBACK * getInterval(tier) || backlog > BACKLOG_LIMIT * getInterval(tier)) {
+            if (tier < SessionTable.SNAPSHOT_UPDATES) {
+                sessions.setTier(id, (byte) (tier + 1));
+            }
+            sessions.setFastCallbacks(id, (byte) 0);
+        } else if (tier > SessionTable.FULL_UPDATES && sample < (long) FAST_CALLBACK * getInterval((byte) (tier - 1))
+                && backlog <= getInterval(tier)) {
+            byte fastCallbacks = (byte) (sessions.getFastCallbacks(id) + 1);
+            if (fastCallbacks >= RECOVERY_CALLBACKS) {
+                sessions.setTier(id, (byte) (tier - 1));
+                fastCallbacks = 0;
+            }
+            sessions.setFastCallbacks(id, fastCallbacks);
+        } else {
+            sessions.setFastCallbacks(id, (byte) 0);
+        }
+    }
+
+    /**
+     * Schedules the expiry of the lease of a session on {@link #timers}, see {@link #expireLease}
+     *
+     * @param token the token of the session
+     * @param delay how many nanoseconds until the lease expires
+     */
+    private void scheduleLease(long token, long delay) {
+        sessions.setLeaseTask(token, timers.schedule(() -> expireLease(token), Math.max(delay, 0), TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Run by {@link #timers} when the lease of a session is due. Moves and acknowledged broadcasts renew the lease with
+     * {@link #touch} by moving its deadline, so if the deadline has moved since the lease was scheduled then it is only
+     * scheduled again for the time that is left. Otherwise {@link IUser#onLeaseExpired()} is called to notify the user
+     * that their lease has expired, and if the method returns true then the lease is renewed. If the method returns
+     * false or if it cannot reach the user for any reason then the user is disconnected with {@link #disconnect}. A
+     * polling user has nobody to ask, it renews its lease by polling, so its session is closed right away.
+     *
+     * @param token the token of the session
+     */
+    private void expireLease(long token) {
+        int id = sessions.getId(token);
+        if (id < 0) {
+            return; //Closed since the lease was scheduled
+        }
+
+        long left = sessions.getLeaseDeadline(id) - System.nanoTime();
+        if (left > 0) {
+            scheduleLease(token, left);
+            return;
         }
+
+        IUser user = sessions.getUser(id);
+        if (user == null) {
+            if (sessions.getTier(id) == SessionTable.POLLED_UPDATES) {
+                closeSession(token);
+            }
+            return;
+        }
+
+        try {
+            if (user.onLeaseExpired()) {
+                touch(id);
+                scheduleLease(token, TimeUnit.SECONDS.toNanos(LEASE_DURATION));
+                return;
+            }
+        } catch (RemoteException e) {
+            //Release the lease below
+        }
+        disconnect(token);
     }
 
     /**
      * @return the maze that this server is using
+     * @throws UnsupportedOperationException if the server plays in a chunked maze, which is never held as boxes
      */
     @Override
     public BoxMazeInterface getMaze() {
+        if (maze == null) {
+            throw new UnsupportedOperationException("The maze is chunked, fetch its walls with getWalls instead");
+        }
         return maze;
     }
 
     /**
-     * Returns a {@link PlayerMap} that contains {@link #previousMap} and {@link #tickIndex}. This is so that clients
-     * can synchronize their map to the servers map by comparing the tickIndex that they receive and tickIndex that is
-     * contained within the {@link MapChangeEvent} that broadcast changes to {@link PlayerMap}.
+     * Returns the wall values of a rectangle of the maze, copied from {@link #maze} or generated from the chunks of
+     * {@link #window}
+     */
+    @Override
+    public int[][] getWalls(int x, int y, int width, int height) {
+        if (window != null) {
+            return window.getWalls(x, y, width, height);
+        }
+        return MazeWalls.copy(maze.getWalls(), x, y, width, height);
+    }
+
+    /**
+     * @return the hash and dimensions of the maze that this server is using
+     */
+    @Override
+    public MazeInfo getMazeInfo() {
+        return mazeInfo;
+    }
+
+    /**
+     * Returns {@link #snapshot}, the immutable {@link PlayerMap} of the last tick and its index. This is so that
+     * clients can synchronize their map to the servers map by comparing the tickIndex that they receive and tickIndex
+     * that is contained within the {@link MapChangeEvent} that broadcast changes to {@link PlayerMap}.
      *
      * @return the last version of the player map that was broadcasted by {@link #tick()}
      */
     @Override
     public PlayerMap getPlayerMap() throws RemoteException {
-        return new PlayerMap(previousMap, tickIndex);
+        return snapshot;
     }
 
     /**
-     * This inner class is the servers implementation of {@link IPlayer}. Users use their reference to their instance of
-     * this class to move their player and get their player's position within the maze.
+     * Returns the retained {@link MapChangeEvent}s from {@link #history} with indexes from fromIndex to toIndex.
+     *
+     * @param fromIndex the index of the first event
+     * @param toIndex the index of the last event
+     * @return the events in order of their index, or null if any of them are no longer retained
      */
-    private class Player extends UnicastRemoteObject implements IPlayer {
-
-        private Timeout timeOut = GameServer.Timeout.NOT_TIMED_OUT; //The timeout status of the user that this player belongs to
+    @Override
+    public MapChangeEvent[] getMapChanges(long fromIndex, long toIndex) throws RemoteException {
+        return history.get(fromIndex, toIndex);
+    }
 
-        private PositionInMaze position; //The players position within the maze
+    /**
+     * Returns every change since the given index compacted into one {@link MapChangeEvent} by {@link #history}. This
+     * falls back to {@link #getPlayerMap()} only if the changes have been evicted from the history.
+     *
+     * @param index the index of the map that the user has
+     * @return either the changes since the index or the player map
+     */
+    @Override
+    public PlayerMapUpdate getChangesSince(long index) throws RemoteException {
+        MapChangeEvent changes = history.compactSince(index);
+        if (changes != null) {
+            return new PlayerMapUpdate(changes);
+        }
+        return new PlayerMapUpdate(getPlayerMap());
+    }
 
-        /**
-         * Constructs a new player and sets their initial position and modifies {@link #playerMap} so that the newly
-         * created player is represented within it.
-         *
-         * @param startPosition the initial position of the player
-         */
-        public Player(PositionInMaze startPosition) throws RemoteException {
-            super();
-            position = startPosition;
-            synchronized (this) {
-                playerMap[position.getXpos()][position.getYpos()]++;
+    /**
+     * Waits with {@link #ticks} until there is a newer map than the given index, and then returns the same as
+     * {@link #getChangesSince}. Every waiting caller shares one future that {@link #tick()} completes, so waiting costs
+     * no thread of {@link #taskExecutor}, no timer and no outbound call, only the thread that RMI runs the call on,
+     * which it holds for any call until it returns. The wait is cut to {@link #MAX_POLL_TIMEOUT} so that a poll always
+     * returns well before the lease it renews expires.
+     *
+     * @param player the player of the caller, whose lease is renewed, or null
+     * @param index the index of the map that the caller has
+     * @param timeout how many milliseconds to wait at most
+     * @return either the changes since the index, which are empty if nothing changed in time, or the player map
+     */
+    @Override
+    public PlayerMapUpdate pollChanges(IPlayer player, long index, long timeout) throws RemoteException {
+        if (player instanceof PlayerHandle) {
+            int id = sessions.getId(((PlayerHandle) player).getHomeToken());
+            if (id >= 0) {
+                touch(id);
             }
         }
+        ticks.await(index, () -> snapshot.getIndex(), Math.min(timeout, MAX_POLL_TIMEOUT));
+        return getChangesSince(index);
+    }
 
-        /**
-         * @return the position of this player
-         */
-        @Override
-        public PositionInMaze getPosition() throws RemoteException {
-            return position;
+    /**
+     * Sets the regions of the maze that the user of a player is sent the changes of, see {@link ShardRegion#getView}.
+     * A server that owns the whole maze always sends every change. The changes outside the view are not sent at all,
+     * so if the view grows then the user is given {@link #snapshot} to replace what they have missed. The view is set
+     * before the snapshot is read, so every tick that is newer than the snapshot is sent with the new view.
+     *
+     * @param player the player of the user
+     * @param fromX the first column the user can see
+     * @param toX the last column the user can see
+     * @return the player map if the view has grown, otherwise null
+     */
+    @Override
+    public PlayerMap setView(IPlayer player, int fromX, int toX) throws RemoteException {
+        if (region == null || !(player instanceof PlayerHandle)) {
+            return null;
         }
+        int id = sessions.getId(((PlayerHandle) player).getHomeToken());
+        if (id < 0) {
+            throw new NoSuchObjectException("The session is closed");
+        }
+        long view = region.getView(fromX, toX);
+        long previous = sessions.setView(id, view);
+        return (view & ~previous) != 0 ? snapshot : null;
+    }
 
-        /**
-         * Request this player to move from its current position to another position. If the player is allowed to move
-         * to the position then the player will be moved and {@link #playerMap} will be modified accordingly.
-         *
-         * The movement is considered valid if it does not violate any of the following conditions:
-         *  1: The position is outside the bounds of {@link #playerMap}
-         *  2: The sum of the difference between the x and y values of the position and {@link #position} is greater than 1
-         *  3: There is a wall between the position and {@link #position}
-         *
-         *  If the move request is successful and the player is moved then this method will return true, otherwise it
-         *  will return false
-         *
-         * @param position the position to move to
-         * @return whether or not the movement was successful (valid)
-         */
-        @Override
-        public boolean moveTo(PositionInMaze position) throws RemoteException {
-            //Make sure position is not out of bounds
-            if (position.getYpos() < 0 || position.getXpos() < 0 || position.getXpos() > boxMaze.length - 1 || position.getYpos() > boxMaze.length - 1) {
-                return false;
-            }
-
-            int deltaX = this.position.getXpos() - position.getXpos();
-            int deltaY = this.position.getYpos() - position.getYpos();
-
-            //Make sure that the position is not further away than 1 box in x + y direction
-            if (Math.abs(deltaX) + Math.abs(deltaY) > 1) {
-                return false;
-            }
-
-            Box box = boxMaze[this.position.getXpos()][this.position.getYpos()];
-
-            //Make sure that there is no wall in the direction we want to move
-            if (deltaX == -1 && box.getRight() == null) {
-                return false;
-            } else if (deltaX == 1 && box.getLeft() == null) {
-                return false;
-            } else if (deltaY == -1 && box.getDown() == null) {
-                return false;
-            } else if (deltaY == 1 && box.getUp() == null) {
-                return false;
-            }
+    /**
+     * This inner class is the single remote object that serves every {@link PlayerHandle} of this server. Users use
+     * the handle of their session to move their player and get their player's position within the maze, and the handle
+     * calls this endpoint with the token of the session. Since only one object is exported, a session costs a few
+     * entries in the arrays of {@link #sessions} instead of a remote object of its own.
+     */
+    private class PlayerEndpoint extends UnicastRemoteObject implements IPlayerEndpoint {
 
-            setPosition(position);
-            return true;
+        public PlayerEndpoint() throws RemoteException {
+            super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
         }
 
         /**
-         * Sets the position of this player and modifies {@link #playerMap} accordingly.
+         * @return the position of the player of the session as x << 16 | y
+         * @throws NoSuchObjectException if the session is closed
          */
-        public void setPosition(PositionInMaze position) {
-            if (position.getXpos() != this.position.getXpos() || position.getYpos() != this.position.getYpos()) {
-                synchronized (GameServer.this) {
-                    playerMap[this.position.getXpos()][this.position.getYpos()]--;
-                    playerMap[position.getXpos()][position.getYpos()]++;
-                }
-
-                this.position = position;
+        @Override
+        public int getPosition(long token) throws RemoteException, SessionMovedException {
+            int id = sessions.getId(token);
+            if (id < 0) {
+                throw new NoSuchObjectException("The session is closed");
+            }
+            int position = sessions.getPosition(id);
+            if (position == ShardRegion.AWAY) {
+                throw region.redirect(token);
             }
+            return position;
         }
 
         /**
-         * Modifies {@link #playerMap} so that this player no longer is represented within {@link #playerMap}
+         * Moves the player of the session with {@link #move}, or with {@link ShardRegion#moveAcross} if the move leaves
+         * the region of this server
+         *
+         * @throws NoSuchObjectException if the session is closed
          */
-        public void purge() {
-            synchronized (GameServer.this) {
-                playerMap[position.getXpos()][position.getYpos()]--;
+        @Override
+        public boolean moveTo(long token, int x, int y) throws RemoteException, SessionMovedException {
+            int id = sessions.getId(token);
+            if (id < 0) {
+                throw new NoSuchObjectException("The session is closed");
             }
+            if (region != null && (!region.contains(x) || sessions.getPosition(id) == ShardRegion.AWAY)) {
+                return region.moveAcross(id, token, x, y);
+            }
+            return move(token, x, y);
         }
+
     }
 
     /**
-     * This class represents the lease of a user, it uses {@link #leaseScheduler} to time the expiry of itself. It calls
-     * {@link IUser#onLeaseExpired()} to notify the user that the lease has expired, if the method returns true then the
-     * lease is renewed. If the method returns false or if the lease cannot reach the user for any reason then the lease
-     * will call {@link Lease#release()} to release the lease and disconnect the user.
+     * This inner class is how the {@link ShardRegion} of this server reaches it
      */
-    private class Lease {
+    private class RegionHost implements ShardRegion.Host {
 
-        private IUser user; //The user for whom the lease belongs
-        private long duration; //How long between lease expiration
+        @Override
+        public boolean isValidMove(int from, int x, int y) {
+            return GameServer.this.isValidMove(from, x, y);
+        }
 
-        /**
-         * Constructs a new lease and schedules its expiry.
-         * The first expiry will expire sometime between the duration and the duration times two. This is done so that
-         * if a large amount of leases are created at once they won't expire at once and overload the
-         * {@link #leaseScheduler}.
-         *
-         * @param user The user for whom the lease belongs
-         * @param duration How long between lease expiration
-         */
-        public Lease(IUser user, int duration) {
-            this.user = user;
-            this.duration = duration;
+        @Override
+        public void addChange(int cell, int difference) {
+            pendingChanges.add(cell, difference);
+        }
 
-            leaseScheduler.schedule(this::exipre, (long) (duration + duration*Math.random()), TimeUnit.SECONDS);
+        @Override
+        public long openSession(int x, int y) {
+            return GameServer.this.openSession(null, x, y, null);
         }
 
-        /**
-         * Called by {@link #leaseScheduler} when a lease has expired, it calls {@link IUser#onLeaseExpired()} and
-         * renews the lease with {@link #renew()} if it returned true. If it returned false or if it could not reach the user for any reason
-         * it will not renew itself and call {@link #release()} to release this lease.
-         */
-        private void exipre() {
-            try {
-                boolean renew = user.onLeaseExpired();
-                if (renew) {
-                    renew();
-                } else {
-                    release();
-                }
-            } catch (RemoteException e) {
-                release();
-            }
+        @Override
+        public boolean closeSession(long token) {
+            return GameServer.this.closeSession(token);
         }
 
-        /**
-         * Schedules the next expiry of this lease in {@link #duration} seconds
-         */
-        public void renew() {
-            leaseScheduler.schedule(this::exipre, duration, TimeUnit.SECONDS);
+        @Override
+        public int[][] getWalls() {
+            return maze.getWalls();
         }
 
-        /**
-         * Releases this lease by not renewing it and calls {@link #disconnect} to disconnect the {@link #user}
-         */
-        public void release() {
-            disconnect(user);
+        @Override
+        public IPlayerEndpoint getPlayerEndpoint() {
+            return endpoint;
         }
 
     }
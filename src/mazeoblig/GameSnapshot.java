@@ -0,0 +1,211 @@
+package mazeoblig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact snapshot of the state of a {@link GameServer}: the walls of its maze, the index of its last tick and the
+ * id, position and serialized {@link client.IUser} of every player. It also remembers the first {@link MoveLog}
+ * segment that was written after it was taken, so the state can be recovered by loading the snapshot and replaying
+ * that segment and every segment after it. Since the snapshot is a {@link MoveLog.Visitor} the segments can be
+ * replayed directly onto it.
+ */
+public class GameSnapshot implements MoveLog.Visitor {
+
+    private static final int MAGIC = 0x4D415A45; //"MAZE"
+    private static final String FILE_NAME = "snapshot.bin";
+
+    private int[][] walls; //The wall values of every box in the maze, see {@link Box#getValue()}
+    private long tickIndex; //The index of the last tick
+    private long segment; //The first log segment that is not contained in this snapshot
+    private Map<Integer, Entry> players; //The players by their id
+
+    public GameSnapshot(int[][] walls, long tickIndex, long segment) {
+        this.walls = walls;
+        this.tickIndex = tickIndex;
+        this.segment = segment;
+        this.players = new LinkedHashMap<>();
+    }
+
+    public void addPlayer(int id, int x, int y, byte[] user) {
+        players.put(id, new Entry(id, x, y, user));
+    }
+
+    @Override
+    public void onRegister(int id, int x, int y, byte[] user) {
+        addPlayer(id, x, y, user);
+    }
+
+    @Override
+    public void onMove(int id, int x, int y) {
+        Entry entry = players.get(id);
+        if (entry != null) {
+            entry.x = x;
+            entry.y = y;
+        }
+    }
+
+    @Override
+    public void onDisconnect(int id) {
+        players.remove(id);
+    }
+
+    @Override
+    public void onTick(long index) {
+        tickIndex = Math.max(tickIndex, index);
+    }
+
+    public int[][] getWalls() {
+        return walls;
+    }
+
+    public long getTickIndex() {
+        return tickIndex;
+    }
+
+    public long getSegment() {
+        return segment;
+    }
+
+    public Collection<Entry> getPlayers() {
+        return players.values();
+    }
+
+    /**
+     * Writes this snapshot to a temporary file in a directory, forces it to disk and then renames it to replace the
+     * previous snapshot, so that a crash while writing never leaves a broken snapshot behind.
+     *
+     * @param directory the directory to write to
+     */
+    public void write(File directory) throws IOException {
+        File temporary = new File(directory, FILE_NAME + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeLong(tickIndex);
+            out.writeLong(segment);
+
+            out.writeInt(walls.length);
+            for (int[] column : walls) {
+                for (int wall : column) {
+                    out.writeByte(wall);
+                }
+            }
+
+            out.writeInt(players.size());
+            for (Entry entry : players.values()) {
+                out.writeInt(entry.id);
+                out.writeInt(entry.x);
+                out.writeInt(entry.y);
+                out.writeInt(entry.user.length);
+                out.write(entry.user);
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), new File(directory, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot in a directory. Every count and length in it is checked against the size of the file before
+     * anything is allocated for it, so that a damaged snapshot fails with an {@link IOException} instead of running
+     * out of memory.
+     *
+     * @param directory the directory to read from
+     * @return the snapshot, or null if the directory does not contain one
+     */
+    public static GameSnapshot read(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            long tickIndex = in.readLong();
+            long segment = in.readLong();
+
+            int width = in.readInt();
+            if (width < 0 || (long) width * width > file.length()) {
+                throw new IOException("A maze of width " + width + " in " + file + " is not valid");
+            }
+            int[][] walls = new int[width][];
+            for (int x = 0; x < walls.length; x++) {
+                walls[x] = new int[walls.length];
+                for (int y = 0; y < walls.length; y++) {
+                    walls[x][y] = in.readUnsignedByte();
+                }
+            }
+
+            GameSnapshot snapshot = new GameSnapshot(walls, tickIndex, segment);
+            int players = in.readInt();
+            if (players < 0 || players > file.length() / 16) { //Every player takes at least 16 bytes
+                throw new IOException(players + " players in " + file + " is not valid");
+            }
+            for (int i = 0; i < players; i++) {
+                int id = in.readInt();
+                int x = in.readInt();
+                int y = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("A user of " + length + " bytes in " + file + " is not valid");
+                }
+                byte[] user = new byte[length];
+                in.readFully(user);
+                snapshot.addPlayer(id, x, y, user);
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * A player contained within a snapshot
+     */
+    public static class Entry {
+
+        private int id;
+        private int x;
+        private int y;
+        private byte[] user; //The serialized stub of the user the player belongs to
+
+        private Entry(int id, int x, int y, byte[] user) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.user = user;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public byte[] getUser() {
+            return user;
+        }
+
+    }
+
+}
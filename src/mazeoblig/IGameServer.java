@@ -14,6 +14,27 @@ public interface IGameServer extends Remote {
      */
     BoxMazeInterface getMaze() throws RemoteException;
 
+    /**
+     * Should return the wall values of a rectangle of the maze that this server uses, see {@link BoxMaze#getWalls()}, so
+     * that a user can fetch a large maze a piece at a time, and a server whose maze is generated on demand never has
+     * to hold all of it
+     *
+     * @param x the x-position of the left column of the rectangle
+     * @param y the y-position of the top row of the rectangle
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     * @return the wall values of the rectangle by x and then y, relative to its corner
+     */
+    int[][] getWalls(int x, int y, int width, int height) throws RemoteException;
+
+    /**
+     * Should return the hash and dimensions of the maze that this server uses, so that a user that already has a maze
+     * with the same hash does not have to fetch it with {@link #getWalls}
+     *
+     * @return the info of the maze that the server uses
+     */
+    MazeInfo getMazeInfo() throws RemoteException;
+
     /**
      * Should return a representation of how many players are position within all positions in the maze that this server
      * uses, and a index that represents which tick the map was last used by
@@ -22,6 +43,54 @@ public interface IGameServer extends Remote {
      */
     PlayerMap getPlayerMap() throws RemoteException;
 
+    /**
+     * Should return the {@link MapChangeEvent}s with indexes from fromIndex to toIndex, both inclusive, so that a user
+     * that has missed some events can fill the gap without fetching the entire player map. Only a limited amount of
+     * recent events are retained.
+     *
+     * @param fromIndex the index of the first event
+     * @param toIndex the index of the last event
+     * @return the events in order of their index, or null if any of them are no longer retained
+     */
+    MapChangeEvent[] getMapChanges(long fromIndex, long toIndex) throws RemoteException;
+
+    /**
+     * Should return everything that has changed since the map with the given index as one compacted
+     * {@link MapChangeEvent}, so that a user that has fallen behind can catch up without fetching the entire player
+     * map. If the changes since the index are no longer retained then the update should contain the player map instead.
+     *
+     * @param index the index of the map that the user has
+     * @return either the changes since the index or the player map
+     */
+    PlayerMapUpdate getChangesSince(long index) throws RemoteException;
+
+    /**
+     * Should wait until there is a newer map than the map with the given index, or until the timeout passes, and then
+     * return the same as {@link #getChangesSince}. This lets a user fetch every update itself instead of being called
+     * back, and since it only asks for the next update when it is done with the last one it is never sent more than it
+     * can keep up with. Waiting callers should not cost the server a thread each beyond the call itself.
+     *
+     * @param player the player of the caller from {@link #registerPolling()}, whose lease is renewed by the call, or
+     *               null if the caller has no player
+     * @param index the index of the map that the caller has
+     * @param timeout how many milliseconds to wait at most, the server may wait for less
+     * @return either the changes since the index, which are empty if the timeout passed, or the player map
+     */
+    PlayerMapUpdate pollChanges(IPlayer player, long index, long timeout) throws RemoteException;
+
+    /**
+     * Should set the columns of the maze that the user of a player can see, so that a server that only owns part of
+     * the maze can send the user only the changes in the regions of those columns. The changes that are not sent are
+     * missing from the map of the user, so if the user can see more than before the server should return the player
+     * map for the user to start over from. Users that poll for their updates are sent every change.
+     *
+     * @param player the player the user was given when they registered
+     * @param fromX the first column the user can see
+     * @param toX the last column the user can see
+     * @return the player map if the user can see regions it could not see before, otherwise null
+     */
+    PlayerMap setView(IPlayer player, int fromX, int toX) throws RemoteException;
+
     /**
      * Should register a user and call {@link IUser#onGameReady} when the users {@link IPlayer} instance is ready
      *
@@ -30,8 +99,29 @@ public interface IGameServer extends Remote {
     void register(IUser user) throws RemoteException;
 
     /**
-     * Should disconnect a user
+     * Should register many users at once and return their {@link IPlayer}s in the same order. Each user should still
+     * be told that their player is ready with {@link IUser#onGameReady}, but without making the registration of the
+     * other users wait for it.
+     *
+     * @param users the users to register
+     * @return the player of every user
+     */
+    IPlayer[] registerAll(IUser[] users) throws RemoteException;
+
+    /**
+     * Should register a user that is never called back by the server, and that fetches its updates with
+     * {@link #pollChanges} instead. The lease of the player should be renewed by its moves and its polls, and the
+     * player should be removed once its lease expires.
+     *
+     * @return the player of the user
+     */
+    IPlayer registerPolling() throws RemoteException;
+
+    /**
+     * Should disconnect a user and remove their player
+     *
+     * @param player the player the user was given when they registered
      */
-    void disconnect(IUser user) throws RemoteException;
+    void disconnect(IPlayer player) throws RemoteException;
 
 }
@@ -0,0 +1,32 @@
+package mazeoblig;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * A single remote endpoint that serves every player of a server, identified by the token of their session. Users do
+ * not use it directly, they use the {@link PlayerHandle} they are given as their {@link IPlayer}.
+ */
+public interface IPlayerEndpoint extends Remote {
+
+    /**
+     * Should return the position of the player with the given session token
+     *
+     * @param token the token of the players session
+     * @return the position of the player as x << 16 | y
+     * @throws SessionMovedException if the player has been handed off to the server of another region
+     */
+    int getPosition(long token) throws RemoteException, SessionMovedException;
+
+    /**
+     * Should attempt to move the player with the given session token, see {@link IPlayer#moveTo}
+     *
+     * @param token the token of the players session
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @return whether or not the move was successful
+     * @throws SessionMovedException if the player is, or with this move was, handed off to the server of another region
+     */
+    boolean moveTo(long token, int x, int y) throws RemoteException, SessionMovedException;
+
+}
@@ -0,0 +1,77 @@
+package mazeoblig;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The interface that the servers of a {@link ShardCluster} use to talk to each other. Each server owns one region of
+ * the maze, see {@link RegionLayout}, and the server a user registered with is the home of that user. The home keeps
+ * the session of the user, which is what the user is broadcast to and leased by, while the position of their player
+ * is kept by the server of whatever region the player is in.
+ */
+public interface IShard extends Remote {
+
+    /**
+     * Should return the wall values of the maze, see {@link BoxMaze#getWalls()}. Every server of a cluster fetches the
+     * maze from the first one when it starts.
+     *
+     * @return the wall values of the maze
+     */
+    int[][] getWalls() throws RemoteException;
+
+    /**
+     * @return the endpoint that serves the players in the region of this server
+     */
+    IPlayerEndpoint getPlayerEndpoint() throws RemoteException;
+
+    /**
+     * Should add the changes of the last tick of another region to the changes of the next tick of this server, so
+     * that the users of this server see every region. The changes of a region are numbered one after another, and if
+     * they do not follow the last changes this server has of the region then it should fetch the current counts of
+     * the region with {@link #getRegionCounts()} instead, see {@link RegionMirror}.
+     *
+     * @param region the region the changes happened in
+     * @param sequence the sequence number of the changes
+     * @param changes the changes as (x * width + y, difference) pairs, or null if earlier changes could not be sent
+     */
+    void onRegionChanges(int region, long sequence, int[] changes) throws RemoteException;
+
+    /**
+     * Should return how many players are in every position of the region of this server, together with the sequence
+     * number of the last changes it has sent with {@link #onRegionChanges}
+     *
+     * @return the counts of the region
+     */
+    RegionCounts getRegionCounts() throws RemoteException;
+
+    /**
+     * Should place a player that has walked into the region of this server, called by the home of the player
+     *
+     * @param home the region of the home of the player
+     * @param homeToken the token of the session of the player at their home
+     * @param x the x-position of the player
+     * @param y the y-position of the player
+     * @return the token of the player in this region
+     */
+    long place(int home, long homeToken, int x, int y) throws RemoteException;
+
+    /**
+     * Should move a player whose home is this server to a position in any region, and return the token of the player
+     * in that region. Called by the server of the region the player leaves.
+     *
+     * @param homeToken the token of the session of the player at this server
+     * @param x the x-position to place the player at
+     * @param y the y-position to place the player at
+     * @return the token of the player in the region of the position
+     */
+    long relocate(long homeToken, int x, int y) throws RemoteException;
+
+    /**
+     * Should remove a player that was placed with {@link #place} from this region, called by the home of the player
+     * when the user disconnects
+     *
+     * @param token the token of the player in this region
+     */
+    void release(long token) throws RemoteException;
+
+}
@@ -6,28 +6,34 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 /**
  * This class is used for notifying users about changes, it contains an array of changes and a index that identifies the
- * change.
+ * change. A MapChangeEvent normally contains the changes of a single tick, in which case it applies on top of the map
+ * with index {@link #index} - 1, but a compacted MapChangeEvent made by {@link #compact} contains the changes of every
+ * tick since {@link #baseIndex}.
  */
 public class MapChangeEvent implements Serializable {
 
     private int[][] changes; //The changes
     private long index; //The identifier for the change
+    private long baseIndex; //The index of the map that the changes should be applied to
 
     private int size; //The amount of changes contained in this instance
 
     /**
-     * Constructs this class and sets the size of {@link #changes}, this is the maximum amount of changes that this
-     * MapChangeEvent can contain.
+     * Constructs this class and sets the initial size of {@link #changes}. If more changes are added then
+     * {@link #changes} grows to fit them.
      *
-     * @param maximumAmountOfChanges the maximum amount of changes
+     * @param initialAmountOfChanges the amount of changes to make room for
      */
-    public MapChangeEvent(int maximumAmountOfChanges) {
-        changes = new int[maximumAmountOfChanges][3];
+    public MapChangeEvent(int initialAmountOfChanges) {
+        changes = new int[Math.max(initialAmountOfChanges, 1)][];
         size = 0;
     }
 
@@ -46,6 +52,9 @@ public class MapChangeEvent implements Serializable {
      * @param difference the change
      */
     public synchronized void add(int x, int y, int difference) {
+        if (size == changes.length) {
+            changes = Arrays.copyOf(changes, size * 2);
+        }
         changes[size] = new int[]{x, y ,difference};
         size++;
     }
@@ -73,22 +82,83 @@ public class MapChangeEvent implements Serializable {
     }
 
     /**
-     * Sets the identifer for this MapChangeEvent
+     * Sets the identifer for this MapChangeEvent, and sets {@link #baseIndex} to the index right before it
      *
      * @param index the identifer
      */
     public void setIndex(long index) {
         this.index = index;
+        this.baseIndex = index - 1;
+    }
+
+    /**
+     * Gets the index of the map that this MapChangeEvent should be applied to. This is {@link #getIndex()} - 1 unless
+     * this MapChangeEvent is compacted from several ticks.
+     *
+     * @return the index of the map that the changes should be applied to
+     */
+    public long getBaseIndex() {
+        return baseIndex;
+    }
+
+    /**
+     * Merges a sequence of consecutive MapChangeEvents into one MapChangeEvent that contains the total change of every
+     * position, positions where the changes cancel each other out are left out. The resulting MapChangeEvent has the
+     * index of the last MapChangeEvent and applies to the map that the first MapChangeEvent applies to.
+     *
+     * @param baseIndex the index of the map that the first MapChangeEvent applies to
+     * @param events the MapChangeEvents to merge in order of their index
+     * @return the compacted MapChangeEvent
+     */
+    public static MapChangeEvent compact(long baseIndex, MapChangeEvent... events) {
+        Map<Integer, int[]> merged = new LinkedHashMap<>();
+        for (MapChangeEvent event : events) {
+            for (int i = 0; i < event.size(); i++) {
+                int[] change = event.get(i);
+                merged.computeIfAbsent((change[0] << 16) | change[1], key -> new int[]{change[0], change[1], 0})[2] += change[2];
+            }
+        }
+
+        MapChangeEvent compacted = new MapChangeEvent(merged.size());
+        for (int[] change : merged.values()) {
+            if (change[2] != 0) {
+                compacted.add(change[0], change[1], change[2]);
+            }
+        }
+        compacted.index = events.length > 0 ? events[events.length - 1].getIndex() : baseIndex;
+        compacted.baseIndex = baseIndex;
+        return compacted;
+    }
+
+    /**
+     * Copies the changes of some of the columns of the map into a new MapChangeEvent with the same index and base index,
+     * so that a user that only sees part of the map is only sent the changes in that part
+     *
+     * @param column whether to keep the changes in a column, by its x-value
+     * @return the MapChangeEvent with the changes that are kept
+     */
+    public MapChangeEvent filter(IntPredicate column) {
+        MapChangeEvent filtered = new MapChangeEvent(size);
+        for (int i = 0; i < size; i++) {
+            if (column.test(changes[i][0])) {
+                filtered.add(changes[i][0], changes[i][1], changes[i][2]);
+            }
+        }
+        filtered.index = index;
+        filtered.baseIndex = baseIndex;
+        return filtered;
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.writeLong(index);
+        out.writeLong(baseIndex);
         out.writeInt(size);
         out.writeObject(Arrays.copyOfRange(changes, 0, size));
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         index = in.readLong();
+        baseIndex = in.readLong();
         size = in.readInt();
         changes = (int[][]) in.readObject();
     }
@@ -125,13 +125,14 @@ public class Maze extends Applet {
 
 		for (x = 1; x < (dim - 1); ++x)
 			for (y = 1; y < (dim - 1); ++y) {
-				if (maze[x][y].getUp() == null)
+				int open = maze[x][y].getOpenDirections();
+				if ((open & 1 << Box.UP) == 0)
 					g.drawLine(x * 10, y * 10, x * 10 + 10, y * 10);
-				if (maze[x][y].getDown() == null)
+				if ((open & 1 << Box.DOWN) == 0)
 					g.drawLine(x * 10, y * 10 + 10, x * 10 + 10, y * 10 + 10);
-				if (maze[x][y].getLeft() == null)
+				if ((open & 1 << Box.LEFT) == 0)
 					g.drawLine(x * 10, y * 10, x * 10, y * 10 + 10);
-				if (maze[x][y].getRight() == null)
+				if ((open & 1 << Box.RIGHT) == 0)
 					g.drawLine(x * 10 + 10, y * 10, x * 10 + 10, y * 10 + 10);
 			}
 	}
@@ -0,0 +1,93 @@
+package mazeoblig;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.IntFunction;
+
+/**
+ * Identifies the maze of a server by a hash of its content together with its dimensions, so that a client that has
+ * seen the maze before can use its own copy instead of fetching it again, see {@link client.MazeCache}. Two mazes with
+ * the same walls always have the same hash no matter which server they come from.
+ */
+public class MazeInfo implements Serializable {
+
+    private String hash; //The SHA-256 of the wall values of the maze as hex
+    private int width;
+    private int height;
+
+    public MazeInfo(String hash, int width, int height) {
+        this.hash = hash;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates the info of a maze from its wall values, see {@link BoxMaze#getWalls()}
+     *
+     * @param walls the wall values of the maze
+     * @return the info of the maze
+     */
+    public static MazeInfo of(int[][] walls) {
+        return new MazeInfo(hash(walls), walls.length, walls.length > 0 ? walls[0].length : 0);
+    }
+
+    /**
+     * Hashes the wall values of a maze column by column, after its width and height
+     *
+     * @param walls the wall values of the maze
+     * @return the SHA-256 of the wall values as hex
+     */
+    public static String hash(int[][] walls) {
+        return hash(walls.length, walls.length > 0 ? walls[0].length : 0, x -> walls[x]);
+    }
+
+    /**
+     * Hashes the wall values of a maze column by column like {@link #hash(int[][])}, fetching one column at a time so
+     * that the maze does not have to be held as a whole
+     *
+     * @param width the width of the maze
+     * @param height the height of the maze
+     * @param columns the wall values of every column of the maze, by its x-position
+     * @return the SHA-256 of the wall values as hex
+     */
+    public static String hash(int width, int height, IntFunction<int[]> columns) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e); //Every Java platform must support it
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(8, height * 4));
+        buffer.putInt(width).putInt(height);
+        digest.update(buffer.array(), 0, 8);
+        for (int x = 0; x < width; x++) {
+            buffer.clear();
+            for (int wall : columns.apply(x)) {
+                buffer.putInt(wall);
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+}
@@ -0,0 +1,54 @@
+package mazeoblig;
+
+import java.util.Arrays;
+
+/**
+ * Tells which sides of each box of a maze are open, so that moves can be checked without holding the maze as boxes,
+ * see {@link ChunkedMaze}.
+ */
+public interface MazeWalls {
+
+    /**
+     * @param x the x-position of the box
+     * @param y the y-position of the box
+     * @return the open sides of the box with bit 1 << direction set for each of them, see
+     *         {@link Box#getOpenDirections()}, or 0 if there is no box there
+     */
+    int getOpenDirections(int x, int y);
+
+    /**
+     * @param maze a whole maze
+     * @return the walls of the maze
+     */
+    static MazeWalls of(Box[][] maze) {
+        return (x, y) -> x >= 0 && y >= 0 && x < maze.length && y < maze[x].length ? maze[x][y].getOpenDirections() : 0;
+    }
+
+    /**
+     * Copies the wall values of a rectangle of a maze, see {@link IGameServer#getWalls}
+     *
+     * @param walls the wall values of the whole maze, see {@link BoxMaze#getWalls()}
+     * @return the wall values of the rectangle by x and then y, relative to its corner
+     * @throws IllegalArgumentException if the rectangle is not inside the maze
+     */
+    static int[][] copy(int[][] walls, int x, int y, int width, int height) {
+        checkRectangle(walls.length, x, y, width, height);
+        int[][] copy = new int[width][];
+        for (int i = 0; i < width; i++) {
+            copy[i] = Arrays.copyOfRange(walls[x + i], y, y + height);
+        }
+        return copy;
+    }
+
+    /**
+     * @param size the width and height of a square maze
+     * @throws IllegalArgumentException if the rectangle is not inside the maze
+     */
+    static void checkRectangle(int size, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x > size - width || y > size - height) {
+            throw new IllegalArgumentException("The rectangle at (" + x + ", " + y + ") of " + width + " by " + height
+                    + " is not inside the maze of " + size + " by " + size);
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package mazeoblig;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary log of the changes to the state of a {@link GameServer}: registrations, moves, disconnects and
+ * ticks. Callers only encode a record and put it in a queue, a single writer thread takes every queued record at once
+ * and writes them to a {@link FileChannel} as one batch which is forced to disk before the next batch is written, so
+ * many records share the cost of one write and one sync.
+ *
+ * The log is not written ahead of the changes it records: a change is applied and acknowledged as soon as its record
+ * is queued, so a crash loses the records that were still queued or in the batch being written. The queue holds at
+ * most {@link #MAX_QUEUED} records, which bounds what can be lost, and a caller waits for room if the disk falls
+ * that far behind instead of letting the queue grow without limit.
+ *
+ * The log is split into segments named moves-[segment].log. {@link #rotate()} starts a new segment so that a snapshot
+ * of the state can be taken, after which every older segment can be deleted. Every batch is written as its length, a
+ * CRC32 of its content and its content, so that {@link #replay} can stop at a batch that was only partially written
+ * when the server crashed.
+ */
+public class MoveLog {
+
+    private static final byte REGISTER = 1;
+    private static final byte MOVE = 2;
+    private static final byte DISCONNECT = 3;
+    private static final byte TICK = 4;
+
+    private static final int MAX_BATCH = 4096; //The maximum amount of records written in one batch
+    private static final int MAX_QUEUED = 4 * MAX_BATCH; //The maximum amount of records waiting to be written
+
+    /**
+     * Receives the records of a log when it is replayed
+     */
+    public interface Visitor {
+
+        void onRegister(int id, int x, int y, byte[] user);
+
+        void onMove(int id, int x, int y);
+
+        void onDisconnect(int id);
+
+        void onTick(long index);
+
+    }
+
+    private File directory; //The directory that contains the segments
+    private long segment; //The segment that is currently written to
+    private FileChannel channel; //The channel of the current segment
+
+    private BlockingQueue<Object> queue; //Encoded records, and Rotation markers, waiting to be written
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * Opens a log that appends to a given segment and starts its writer thread
+     *
+     * @param directory the directory that contains the segments
+     * @param segment the segment to append to
+     */
+    public MoveLog(File directory, long segment) throws IOException {
+        this.directory = directory;
+        this.segment = segment;
+        this.queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+
+        channel = open(segment);
+
+        running = true;
+        writer = new Thread(this::write, "move-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void register(int id, int x, int y, byte[] user) {
+        ByteBuffer record = ByteBuffer.allocate(17 + user.length);
+        record.put(REGISTER).putInt(id).putInt(x).putInt(y).putInt(user.length).put(user);
+        append(record.array());
+    }
+
+    public void move(int id, int x, int y) {
+        ByteBuffer record = ByteBuffer.allocate(13);
+        record.put(MOVE).putInt(id).putInt(x).putInt(y);
+        append(record.array());
+    }
+
+    public void disconnect(int id) {
+        ByteBuffer record = ByteBuffer.allocate(5);
+        record.put(DISCONNECT).putInt(id);
+        append(record.array());
+    }
+
+    public void tick(long index) {
+        ByteBuffer record = ByteBuffer.allocate(9);
+        record.put(TICK).putLong(index);
+        append(record.array());
+    }
+
+    /**
+     * Queues a record, waiting for room if the writer is {@link #MAX_QUEUED} records behind. The wait is not
+     * interrupted, since the change the record belongs to has already been made.
+     */
+    private void append(byte[] record) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(record);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes the writer start a new segment. Every record that is added before this method is called is written to
+     * the old segment, and every record added after it returns is written to the new one.
+     *
+     * @return the new segment
+     */
+    public synchronized long rotate() throws InterruptedException {
+        Rotation rotation = new Rotation(segment + 1);
+        queue.put(rotation);
+        rotation.done.await();
+        return rotation.segment;
+    }
+
+    /**
+     * Writes every queued record and stops the writer thread
+     */
+    public void close() throws InterruptedException, IOException {
+        running = false;
+        writer.join();
+        channel.close();
+    }
+
+    /**
+     * Run by {@link #writer}. Takes every queued record, writes them as one batch and forces them to disk.
+     */
+    private void write() {
+        List<Object> batch = new ArrayList<>();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.clear();
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                for (Object record : batch) {
+                    if (record instanceof Rotation) {
+                        flush(content);
+
+                        Rotation rotation = (Rotation) record;
+                        channel.close();
+                        channel = open(rotation.segment);
+                        segment = rotation.segment;
+                        rotation.done.countDown();
+                    } else {
+                        content.write((byte[]) record);
+                    }
+                }
+                flush(content);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the content of a batch with its length and checksum, and forces it to disk
+     */
+    private void flush(ByteArrayOutputStream content) throws IOException {
+        if (content.size() == 0) {
+            return;
+        }
+
+        byte[] bytes = content.toByteArray();
+        content.reset();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + bytes.length);
+        buffer.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return FileChannel.open(getSegmentFile(directory, segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return the file of a segment in a directory
+     */
+    public static File getSegmentFile(File directory, long segment) {
+        return new File(directory, "moves-" + segment + ".log");
+    }
+
+    /**
+     * Finds every segment in a directory
+     *
+     * @return the segments in ascending order
+     */
+    public static long[] getSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.matches("moves-\\d+\\.log"));
+        if (files == null) {
+            return new long[0];
+        }
+
+        long[] segments = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            segments[i] = Long.parseLong(name.substring(6, name.length() - 4));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads every complete batch in a segment and passes its records to a visitor. Reading stops at the first batch
+     * that is incomplete, longer than the segment or does not match its checksum.
+     *
+     * @param file the segment
+     * @param visitor the visitor to pass the records to
+     */
+    public static void replay(File file, Visitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        System.out.println("Found a corrupt batch in " + file.getName() + ", ignoring the rest of it");
+                        return;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if ((int) crc.getValue() != checksum) {
+                        System.out.println("Found a corrupt batch in " + file.getName() + ", ignoring the rest of it");
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+
+                ByteBuffer batch = ByteBuffer.wrap(bytes);
+                while (batch.hasRemaining()) {
+                    byte type = batch.get();
+                    if (type == REGISTER) {
+                        int id = batch.getInt();
+                        int x = batch.getInt();
+                        int y = batch.getInt();
+                        int length = batch.getInt();
+                        if (length < 0 || length > batch.remaining()) {
+                            throw new IOException("A user of " + length + " bytes in " + file.getName() + " is not valid");
+                        }
+                        byte[] user = new byte[length];
+                        batch.get(user);
+                        visitor.onRegister(id, x, y, user);
+                    } else if (type == MOVE) {
+                        visitor.onMove(batch.getInt(), batch.getInt(), batch.getInt());
+                    } else if (type == DISCONNECT) {
+                        visitor.onDisconnect(batch.getInt());
+                    } else if (type == TICK) {
+                        visitor.onTick(batch.getLong());
+                    } else {
+                        throw new IOException("Unknown record type " + type + " in " + file.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A marker put in {@link #queue} by {@link #rotate()}
+     */
+    private static class Rotation {
+
+        private long segment; //The segment to switch to
+        private CountDownLatch done = new CountDownLatch(1); //Counted down once the writer has switched
+
+        private Rotation(long segment) {
+            this.segment = segment;
+        }
+
+    }
+
+}
@@ -0,0 +1,203 @@
+package mazeoblig;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free queues of submitted moves, one for every session of a {@link SessionTable} and indexed by the same id.
+ * Any thread can submit a move with {@link #submit}, which waits until a single simulation thread has applied every
+ * queued move in one pass with {@link #apply}, or until a timeout passes in which case the move is withdrawn. The
+ * moves are applied in order of session id and each session's moves in the order they were submitted, so the outcome
+ * of a pass only depends on which moves were queued and not on the order the threads that submitted them happened to
+ * run in.
+ *
+ * The queue of a session is a stack of moves that is pushed with a compare-and-set and taken whole by the simulation
+ * thread, which reverses it to get the moves in the order they were submitted. The session is announced in
+ * {@link #ready} when its first move is pushed onto an empty stack, so a pass never has to look at idle sessions.
+ */
+public class MoveQueue {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; //The amount of sessions in a page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    //The top of the stack of every session, indexed by id >>> PAGE_BITS and then by id & PAGE_MASK
+    private volatile AtomicReferenceArray<Move>[] stacks = newPages(0);
+
+    private Queue<Integer> ready = new ConcurrentLinkedQueue<>(); //The ids of sessions that have moves queued
+
+    /**
+     * Applies a move of a session, see {@link #apply}
+     */
+    public interface Mover {
+
+        /**
+         * Should validate and apply a move
+         *
+         * @param id the id of the session
+         * @param token the token of the session when the move was submitted
+         * @param x the x-position to move to
+         * @param y the y-position to move to
+         * @return whether or not the move was accepted
+         */
+        boolean move(int id, long token, int x, int y);
+
+    }
+
+    /**
+     * Queues a move and waits until it has been applied by {@link #apply}. If it has not been applied when the timeout
+     * passes, because ticks are slow or skipped, then it is withdrawn so that it is never applied, and it is rejected.
+     * A move that is being applied when the timeout passes is waited for, since that only takes a moment.
+     *
+     * @param id the id of the session
+     * @param token the token of the session
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @param timeout how many nanoseconds to wait for the move to be applied
+     * @return whether or not the move was accepted, false if it was withdrawn
+     */
+    public boolean submit(int id, long token, int x, int y, long timeout) {
+        Move move = new Move(token, x, y, Thread.currentThread());
+
+        AtomicReferenceArray<Move> page = getPage(id >>> PAGE_BITS);
+        int slot = id & PAGE_MASK;
+        do {
+            move.next = page.get(slot);
+        } while (!page.compareAndSet(slot, move.next, move));
+        if (move.next == null) {
+            ready.add(id); //The stack was empty, so the session is not announced yet
+        }
+
+        long deadline = System.nanoTime() + timeout;
+        boolean interrupted = false;
+        boolean accepted = false;
+        while (true) {
+            int state = move.state;
+            if (state == Move.DONE) {
+                accepted = move.accepted;
+                break;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (state == Move.QUEUED && remaining <= 0) {
+                if (Move.STATE.compareAndSet(move, Move.QUEUED, Move.WITHDRAWN)) {
+                    break; //Rejected, {@link #apply} skips it
+                }
+                continue; //Claimed by {@link #apply} just now
+            }
+            if (state == Move.QUEUED) {
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this); //Being applied, which will wake us up
+            }
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return accepted;
+    }
+
+    /**
+     * Applies every queued move with a {@link Mover} and wakes up the threads that submitted them. Only one thread may
+     * call this at a time. Moves that are submitted while this runs are either applied by it or by the next call, and
+     * moves that have been withdrawn by {@link #submit} are skipped.
+     *
+     * @param mover validates and applies each move
+     * @return the amount of moves that were applied or rejected
+     */
+    public int apply(Mover mover) {
+        int[] ids = new int[16];
+        int count = 0;
+        Integer id;
+        while ((id = ready.poll()) != null) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+        Arrays.sort(ids, 0, count);
+
+        int moves = 0;
+        for (int i = 0; i < count; i++) {
+            AtomicReferenceArray<Move> page = getPage(ids[i] >>> PAGE_BITS);
+            Move move = page.getAndSet(ids[i] & PAGE_MASK, null);
+
+            //Reverse the stack so the moves are in the order they were submitted
+            Move first = null;
+            while (move != null) {
+                Move next = move.next;
+                move.next = first;
+                first = move;
+                move = next;
+            }
+
+            for (move = first; move != null; move = move.next) {
+                if (!Move.STATE.compareAndSet(move, Move.QUEUED, Move.CLAIMED)) {
+                    continue; //The waiter gave up on it
+                }
+                move.accepted = mover.move(ids[i], move.token, move.x, move.y);
+                move.state = Move.DONE;
+                LockSupport.unpark(move.waiter);
+                moves++;
+            }
+        }
+        return moves;
+    }
+
+    private AtomicReferenceArray<Move> getPage(int page) {
+        AtomicReferenceArray<Move>[] stacks = this.stacks;
+        if (page < stacks.length) {
+            return stacks[page];
+        }
+        synchronized (this) {
+            stacks = this.stacks;
+            if (page >= stacks.length) {
+                AtomicReferenceArray<Move>[] grown = Arrays.copyOf(stacks, page + 1);
+                for (int i = stacks.length; i < grown.length; i++) {
+                    grown[i] = new AtomicReferenceArray<>(PAGE_SIZE);
+                }
+                this.stacks = stacks = grown;
+            }
+            return stacks[page];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<Move>[] newPages(int pages) {
+        return (AtomicReferenceArray<Move>[]) new AtomicReferenceArray<?>[pages];
+    }
+
+    /**
+     * A move that has been submitted, and once it has been applied whether or not it was accepted
+     */
+    private static class Move {
+
+        private static final int QUEUED = 0; //Waiting to be applied
+        private static final int CLAIMED = 1; //Being applied by {@link #apply}, it can no longer be withdrawn
+        private static final int DONE = 2; //Applied, {@link #accepted} is set
+        private static final int WITHDRAWN = 3; //Given up on by {@link #submit}, it is never applied
+        private static final AtomicIntegerFieldUpdater<Move> STATE = AtomicIntegerFieldUpdater.newUpdater(Move.class, "state");
+
+        private long token;
+        private int x;
+        private int y;
+        private Thread waiter; //The thread that submitted the move and waits for it
+
+        private Move next; //The move submitted before this one until the stack is reversed, then the one after it
+        private boolean accepted;
+        private volatile int state; //Set to DONE after {@link #accepted}, so the waiter sees it once it is DONE
+
+        private Move(long token, int x, int y, Thread waiter) {
+            this.token = token;
+            this.x = x;
+            this.y = y;
+            this.waiter = waiter;
+        }
+
+    }
+
+}
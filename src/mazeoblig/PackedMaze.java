@@ -0,0 +1,161 @@
+package mazeoblig;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A format for mazes that is written and read one row at a time, so a maze can be streamed from {@link EllerMaze} to a
+ * file or a socket while it is being generated, and read back row by row without ever holding all of it in memory.
+ *
+ * The format is a header of {@link #MAGIC}, the width and the height, followed by every row from the top down. Each
+ * row holds the four wall bits of every box, see {@link BoxMaze#getWalls()}, packed two boxes to a byte with the box on
+ * the left in the low bits. Every box is stored, including the border, but the border value does not fit in four bits
+ * so the border boxes are stored without walls and every box on the edge of the maze is read back as a border box.
+ *
+ * The width and the height are at most {@link #MAX_SIZE}, since positions in the maze are packed into 16 bits each,
+ * and a maze that is read into memory as a whole may have at most {@link #MAX_BOXES} boxes.
+ */
+public class PackedMaze {
+
+    static final int MAGIC = 0x4D5A5057; //"MZPW"
+
+    static final int MAX_SIZE = 0xFFFF; //The largest width and height of a maze
+    static final long MAX_BOXES = 1L << 26; //The most boxes of a maze that is read into memory as a whole
+
+    private static final int BORDER = 32; //The value of a border box, see BoxMaze
+
+    /**
+     * Writes every row that is left of a maze to a channel
+     *
+     * @param maze the maze
+     * @param channel the channel
+     */
+    public static void write(EllerMaze maze, WritableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(maze.getWidth()).putInt(maze.getHeight()).flip();
+        writeFully(channel, header);
+
+        int[] row = new int[maze.getWidth()];
+        ByteBuffer packed = ByteBuffer.allocate(getRowLength(maze.getWidth()));
+        while (maze.hasNextRow()) {
+            maze.nextRow(row);
+            packed.clear();
+            for (int x = 0; x < row.length; x += 2) {
+                int right = x + 1 < row.length ? row[x + 1] : 0;
+                packed.put((byte) ((row[x] & 0xF) | (right & 0xF) << 4));
+            }
+            packed.flip();
+            writeFully(channel, packed);
+        }
+    }
+
+    /**
+     * Reads a whole maze into memory
+     *
+     * @param channel the channel to read the maze from
+     * @return the wall values of the maze, see {@link BoxMaze#getWalls()}
+     * @throws IOException if the channel does not contain a maze in this format, or the maze has more than
+     *                     {@link #MAX_BOXES} boxes
+     */
+    public static int[][] readWalls(ReadableByteChannel channel) throws IOException {
+        Reader reader = new Reader(channel);
+        if ((long) reader.getWidth() * reader.getHeight() > MAX_BOXES) {
+            throw new IOException("A " + reader.getWidth() + " by " + reader.getHeight() + " maze is too large to read into memory");
+        }
+        int[][] walls = new int[reader.getWidth()][reader.getHeight()];
+        int[] row = new int[reader.getWidth()];
+        for (int y = 0; reader.nextRow(row); y++) {
+            for (int x = 0; x < row.length; x++) {
+                walls[x][y] = row[x];
+            }
+        }
+        return walls;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int getRowLength(int width) {
+        return (width + 1) / 2;
+    }
+
+    /**
+     * Reads a maze one row at a time
+     */
+    public static class Reader {
+
+        private ReadableByteChannel channel;
+        private int width;
+        private int height;
+        private int y; //The row that is read next
+        private ByteBuffer packed; //Reused for every row
+
+        /**
+         * Reads the header of a maze
+         *
+         * @param channel the channel to read the maze from
+         * @throws IOException if the channel does not contain a maze in this format, or the width or height is less
+         *                     than 3 or larger than {@link #MAX_SIZE}
+         */
+        public Reader(ReadableByteChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(12);
+            readFully(header);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a packed maze");
+            }
+            width = header.getInt();
+            height = header.getInt();
+            if (width < 3 || height < 3 || width > MAX_SIZE || height > MAX_SIZE) {
+                throw new IOException("A packed maze of " + width + " by " + height + " is not valid");
+            }
+            packed = ByteBuffer.allocate(getRowLength(width));
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Reads the next row, from the top down
+         *
+         * @param row where to put the wall value of every box of the row, at least as long as the width
+         * @return false if every row has been read, in which case the row is left as it is
+         */
+        public boolean nextRow(int[] row) throws IOException {
+            if (y == height) {
+                return false;
+            }
+            readFully(packed);
+            boolean edge = y == 0 || y == height - 1;
+            for (int x = 0; x < width; x++) {
+                int walls = packed.get(x >> 1) >> ((x & 1) << 2) & 0xF;
+                row[x] = edge || x == 0 || x == width - 1 ? BORDER : walls;
+            }
+            y++;
+            return true;
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("The maze ends after " + y + " of " + height + " rows");
+                }
+            }
+            buffer.flip();
+        }
+
+    }
+
+}
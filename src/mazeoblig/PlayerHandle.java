@@ -0,0 +1,113 @@
+package mazeoblig;
+
+import simulator.PositionInMaze;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@link IPlayer} that a {@link GameServer} gives its users. Instead of being a remote object of its own it is sent
+ * to the user by value, and contains the stub of the servers single {@link IPlayerEndpoint} and the token of the users
+ * session, so every call is made to that endpoint with the token.
+ *
+ * If the server is part of a {@link ShardCluster} then the player is handed off to the server of another region when
+ * it walks into it. The endpoint tells the handle where the player went with a {@link SessionMovedException}, and the
+ * handle makes its next calls to that endpoint instead. If that endpoint cannot be reached then the handle falls back
+ * to the endpoint of the home server, which always knows where the player is.
+ *
+ * A handle can be used by several threads at once, so the endpoint and token it calls are swapped together as one
+ * immutable {@link Location}. A call always uses an endpoint with its own token, and a redirect only replaces the
+ * location the call was made with, so an older redirect never undoes a newer one.
+ */
+public class PlayerHandle implements IPlayer, Serializable {
+
+    private static final int MAX_REDIRECTS = 4; //How many times a call may be redirected before it gives up
+
+    private final IPlayerEndpoint home; //The endpoint of the server the player was registered with
+    private final long homeToken; //The token of the session at that server
+
+    private final AtomicReference<Location> location; //The endpoint of the server the player is in and their token there
+
+    public PlayerHandle(IPlayerEndpoint endpoint, long token) {
+        this.home = endpoint;
+        this.homeToken = token;
+        this.location = new AtomicReference<>(new Location(endpoint, token));
+    }
+
+    /**
+     * @return the token of the session at the server the player was registered with
+     */
+    long getHomeToken() {
+        return homeToken;
+    }
+
+    @Override
+    public PositionInMaze getPosition() throws RemoteException {
+        for (int attempt = 0; ; attempt++) {
+            Location current = location.get();
+            try {
+                int position = current.endpoint.getPosition(current.token);
+                return PositionInMaze.unpack(position);
+            } catch (SessionMovedException e) {
+                follow(current, e, attempt);
+            } catch (RemoteException e) {
+                fallBack(current, e, attempt);
+            }
+        }
+    }
+
+    @Override
+    public boolean moveTo(PositionInMaze position) throws RemoteException {
+        for (int attempt = 0; ; attempt++) {
+            Location current = location.get();
+            try {
+                return current.endpoint.moveTo(current.token, position.getXpos(), position.getYpos());
+            } catch (SessionMovedException e) {
+                follow(current, e, attempt);
+                if (e.isAccepted()) {
+                    return true; //The move was made, it just took the player into another region
+                }
+            } catch (RemoteException e) {
+                fallBack(current, e, attempt);
+            }
+        }
+    }
+
+    /**
+     * Makes the next calls to the endpoint the player has moved to, unless another call has already moved on from the
+     * location this call was made with
+     */
+    private void follow(Location current, SessionMovedException moved, int attempt) throws RemoteException {
+        if (attempt >= MAX_REDIRECTS) {
+            throw new RemoteException("The player was redirected too many times", moved);
+        }
+        location.compareAndSet(current, new Location(moved.getEndpoint(), moved.getToken()));
+    }
+
+    /**
+     * Makes the next call to the home endpoint if the endpoint of another region failed, otherwise rethrows
+     */
+    private void fallBack(Location current, RemoteException e, int attempt) throws RemoteException {
+        if (current.endpoint.equals(home) || attempt >= MAX_REDIRECTS) {
+            throw e;
+        }
+        location.compareAndSet(current, new Location(home, homeToken));
+    }
+
+    /**
+     * An endpoint together with the token of the player at that endpoint
+     */
+    private static class Location implements Serializable {
+
+        private final IPlayerEndpoint endpoint;
+        private final long token;
+
+        private Location(IPlayerEndpoint endpoint, long token) {
+            this.endpoint = endpoint;
+            this.token = token;
+        }
+
+    }
+
+}
@@ -1,28 +1,342 @@
 package mazeoblig;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
- * A simple class that contains a 2-dimensional array that represents a maze and how many players are positioned in
- * every position within it, and a index that denotes which tick this map was used. The index is used top synchronize
- * MapChangeEvents from the server.
+ * A class that represents how many players are positioned in every position within a maze, and a index that denotes
+ * which tick this map was used. The index is used top synchronize MapChangeEvents from the server.
+ *
+ * Since almost every position in a maze is empty, only the occupied positions are stored, as a sorted array of cell
+ * indexes (x * width + y) and an array of the amount of players in each of them. When serialized the map is encoded
+ * either as a list of occupied cells or as runs of equal cells, whichever is smaller, using variable length integers.
+ * The encoding is only done once per instance, so a PlayerMap that is shared by many requesters is only encoded once.
  */
 public class PlayerMap implements Serializable {
 
-    private int[][] map;
+    private static final byte SPARSE = 0; //Encoded as (gap to previous occupied cell, count) pairs
+    private static final byte RUNS = 1; //Encoded as (length, count) runs covering every cell
+
+    private int width; //The width and height of the maze
     private long index;
 
+    private transient int[] cells; //The occupied cells in ascending order, as x * width + y
+    private transient int[] counts; //The amount of players in the cell with the same index in {@link #cells}
+
+    private transient byte[] encoded; //The encoded form of this map, created the first time it is serialized
+
+    /**
+     * Constructs a PlayerMap from a map of how many players are in every position
+     *
+     * @param map the amount of players in every position, it is not modified or retained
+     * @param index the index of the tick the map belongs to
+     */
     public PlayerMap(int[][] map, long index) {
-        this.map = map;
+        this.width = map.length;
+        this.index = index;
+
+        int occupied = 0;
+        for (int[] column : map) {
+            for (int count : column) {
+                if (count != 0) {
+                    occupied++;
+                }
+            }
+        }
+
+        cells = new int[occupied];
+        counts = new int[occupied];
+        int i = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < width; y++) {
+                if (map[x][y] != 0) {
+                    cells[i] = x * width + y;
+                    counts[i] = map[x][y];
+                    i++;
+                }
+            }
+        }
+    }
+
+    private PlayerMap(int width, long index, int[] cells, int[] counts) {
+        this.width = width;
         this.index = index;
+        this.cells = cells;
+        this.counts = counts;
+    }
+
+    /**
+     * Creates the PlayerMap that results from applying a {@link MapChangeEvent} to this map, without modifying this
+     * map. This is done by merging the sorted occupied cells of this map with the sorted changes, so it takes time
+     * proportional to the amount of occupied cells rather than the size of the maze.
+     *
+     * @param change the change to apply
+     * @return a new PlayerMap with the index of the change
+     */
+    public PlayerMap apply(MapChangeEvent change) {
+        long[] changes = new long[change.size()]; //Packed as (cell << 32) | (difference & 0xFFFFFFFF) so we can sort by cell
+        for (int i = 0; i < changes.length; i++) {
+            int[] entry = change.get(i);
+            changes[i] = ((long) (entry[0] * width + entry[1]) << 32) | (entry[2] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(changes);
+
+        int[] newCells = new int[cells.length + changes.length];
+        int[] newCounts = new int[cells.length + changes.length];
+        int size = 0;
+
+        int i = 0, j = 0;
+        while (i < cells.length || j < changes.length) {
+            int cell;
+            int count;
+            if (j == changes.length || (i < cells.length && cells[i] < (int) (changes[j] >> 32))) {
+                cell = cells[i];
+                count = counts[i++];
+            } else {
+                cell = (int) (changes[j] >> 32);
+                count = 0;
+                if (i < cells.length && cells[i] == cell) {
+                    count = counts[i++];
+                }
+                while (j < changes.length && (int) (changes[j] >> 32) == cell) {
+                    count += (int) changes[j++];
+                }
+            }
+
+            if (count != 0) {
+                newCells[size] = cell;
+                newCounts[size] = count;
+                size++;
+            }
+        }
+
+        return new PlayerMap(width, change.getIndex(), Arrays.copyOf(newCells, size), Arrays.copyOf(newCounts, size));
     }
 
+    /**
+     * Creates a new two dimensional array of how many players are in every position
+     *
+     * @return the amount of players in every position
+     */
     public int[][] getMap() {
+        int[][] map = new int[width][width];
+        expandInto(map);
         return map;
     }
 
+    /**
+     * Writes how many players are in every position into an existing two dimensional array, every other position is
+     * set to 0
+     *
+     * @param map the array to write to, it must be at least as large as the maze
+     */
+    public void expandInto(int[][] map) {
+        for (int[] column : map) {
+            Arrays.fill(column, 0);
+        }
+        for (int i = 0; i < cells.length; i++) {
+            map[cells[i] / width][cells[i] % width] = counts[i];
+        }
+    }
+
     public long getIndex() {
         return index;
     }
 
+    /**
+     * @return the width and height of the maze
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the amount of occupied positions
+     */
+    public int size() {
+        return cells.length;
+    }
+
+    /**
+     * Writes this map in its encoded form
+     *
+     * @param out where to write it
+     */
+    public void write(DataOutput out) throws IOException {
+        byte[] bytes = getEncoded();
+        out.writeInt(width);
+        out.writeLong(index);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a map that was written by {@link #write}
+     *
+     * @param in where to read it from
+     * @return the map
+     */
+    public static PlayerMap read(DataInput in) throws IOException {
+        PlayerMap map = new PlayerMap(0, 0, null, null);
+        map.readFrom(in);
+        return map;
+    }
+
+    private void readFrom(DataInput in) throws IOException {
+        width = in.readInt();
+        index = in.readLong();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        decode(bytes);
+    }
+
+    /**
+     * @return the encoded form of this map, encoding it if this is the first time it is needed
+     */
+    private synchronized byte[] getEncoded() throws IOException {
+        if (encoded == null) {
+            int runs = 0; //Count how many runs of equal cells the map consists of
+            int end = 0; //The cell after the last run
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] > end) {
+                    runs++; //A run of empty cells
+                }
+                if (i == 0 || cells[i] != cells[i - 1] + 1 || counts[i] != counts[i - 1]) {
+                    runs++;
+                }
+                end = cells[i] + 1;
+            }
+            if (end < width * width) {
+                runs++;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (runs < cells.length) {
+                out.writeByte(RUNS);
+                writeVarInt(out, runs);
+                int cell = 0;
+                int i = 0;
+                while (cell < width * width) {
+                    int count = i < cells.length && cells[i] == cell ? counts[i] : 0;
+                    int length = 0;
+                    while (cell < width * width && (i < cells.length && cells[i] == cell ? counts[i] : 0) == count) {
+                        if (i < cells.length && cells[i] == cell) {
+                            i++;
+                        }
+                        cell++;
+                        length++;
+                    }
+                    writeVarInt(out, length);
+                    writeVarInt(out, zigZag(count));
+                }
+            } else {
+                out.writeByte(SPARSE);
+                writeVarInt(out, cells.length);
+                int previous = -1;
+                for (int i = 0; i < cells.length; i++) {
+                    writeVarInt(out, cells[i] - previous - 1);
+                    writeVarInt(out, zigZag(counts[i]));
+                    previous = cells[i];
+                }
+            }
+            out.flush();
+            encoded = bytes.toByteArray();
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes the encoded form of a map into {@link #cells} and {@link #counts}
+     */
+    private void decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte encoding = in.readByte();
+        int entries = readVarInt(in);
+
+        if (encoding == RUNS) {
+            int[] runLengths = new int[entries];
+            int[] runCounts = new int[entries];
+            int occupied = 0;
+            for (int i = 0; i < entries; i++) {
+                runLengths[i] = readVarInt(in);
+                runCounts[i] = unZigZag(readVarInt(in));
+                if (runCounts[i] != 0) {
+                    occupied += runLengths[i];
+                }
+            }
+
+            cells = new int[occupied];
+            counts = new int[occupied];
+            int cell = 0;
+            int j = 0;
+            for (int i = 0; i < entries; i++) {
+                if (runCounts[i] != 0) {
+                    for (int k = 0; k < runLengths[i]; k++) {
+                        cells[j] = cell + k;
+                        counts[j] = runCounts[i];
+                        j++;
+                    }
+                }
+                cell += runLengths[i];
+            }
+        } else {
+            cells = new int[entries];
+            counts = new int[entries];
+            int previous = -1;
+            for (int i = 0; i < entries; i++) {
+                cells[i] = previous + 1 + readVarInt(in);
+                counts[i] = unZigZag(readVarInt(in));
+                previous = cells[i];
+            }
+        }
+
+        encoded = bytes;
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        write(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        readFrom(in);
+    }
+
 }
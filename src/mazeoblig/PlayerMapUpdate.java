@@ -0,0 +1,38 @@
+package mazeoblig;
+
+import java.io.Serializable;
+
+/**
+ * The result of {@link IGameServer#getChangesSince}. It contains either a compacted {@link MapChangeEvent} with every
+ * change since the index the user asked for, or a {@link PlayerMap} if those changes are no longer retained by the
+ * server.
+ */
+public class PlayerMapUpdate implements Serializable {
+
+    private MapChangeEvent changes; //The changes since the requested index, or null if this update contains a map
+    private PlayerMap map; //The entire player map, or null if this update contains changes
+
+    public PlayerMapUpdate(MapChangeEvent changes) {
+        this.changes = changes;
+    }
+
+    public PlayerMapUpdate(PlayerMap map) {
+        this.map = map;
+    }
+
+    /**
+     * @return whether or not this update contains the entire player map instead of changes
+     */
+    public boolean isSnapshot() {
+        return map != null;
+    }
+
+    public MapChangeEvent getChanges() {
+        return changes;
+    }
+
+    public PlayerMap getMap() {
+        return map;
+    }
+
+}
@@ -15,9 +15,14 @@ package mazeoblig;
  */
 import paramaters.FunctionFlag;
 import paramaters.ListFlag;
+import paramaters.ParamaterException;
 import paramaters.ParameterInterpretation;
 import paramaters.ParameterInterpreter;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 import java.net.*;
 
 import java.rmi.*;
@@ -35,6 +40,7 @@ import java.util.logging.Logger;
 public class RMIServer
 {
     private final static int DEFAULT_PORT = 9000;
+    private final static int MAX_CHUNK_SIZE = 16; //The largest chunks of a chunked maze
     private final static String DEFAULT_HOST = "undefined";
     public static int    PORT = DEFAULT_PORT;
     private static String HOST_NAME;
@@ -44,20 +50,106 @@ public class RMIServer
     private static IGameServer gameServer;
     public static String MazeName = "Maze";
     public static String GameServerName = "GameServer";
+    public static String ShardName = "Shard";
 
     public RMIServer(String[] args) throws RemoteException, MalformedURLException,
             NotBoundException, AlreadyBoundException {
+        ParameterInterpreter interpreter = new ParameterInterpreter(
+                new FunctionFlag("data", "d", "The directory to persist the game state in, nothing is persisted if not set", String::new),
+                new FunctionFlag("record", "r", "The file to record every tick to, it can be played back with mazeoblig.Replay", String::new),
+                new ListFlag("moves", "m", "When moves are applied, right away or deterministically at the start of each tick", Arrays.asList("immediate", "tick")),
+                new FunctionFlag("port", "p", "The port of the RMI registry", Integer::new),
+                new FunctionFlag("shards", "ss", "The host:port of every server in the cluster separated by commas, the maze is split between them", String::new),
+                new FunctionFlag("shard", "s", "The index of this server in the cluster, 0 creates the maze", Integer::new),
+                new FunctionFlag("maze", "mz", "A square maze made by mazeoblig.EllerMaze to use instead of creating one", String::new),
+                new FunctionFlag("chunked", "ch", "The seed of a chunked maze to play a window of, moves are checked against its chunks", Long::new),
+                new FunctionFlag("buffer", "b", "The size of the socket buffers of remote calls in bytes, the system default if not set", Integer::new),
+                new FunctionFlag("compress", "z", "Compress remote calls and results of at least this many bytes, nothing is compressed if not set", Integer::new)
+        );
+        ParameterInterpretation intepretation = interpreter.intepret(args);
+
+        String data = intepretation.get("data", null); //Set data to the data argument or null to disable persistence
+        String record = intepretation.get("record", null); //Set record to the record argument or null to disable recording
+        String moves = intepretation.get("moves", "immediate"); //Set moves to the moves argument or immediate
+        PORT = intepretation.get("port", DEFAULT_PORT); //Set PORT to the port argument or the default port
+        String shards = intepretation.get("shards", null); //Set shards to the shards argument or null to own the whole maze
+        int shard = intepretation.get("shard", 0); //Set shard to the shard argument or the first shard
+        String maze = intepretation.get("maze", null); //Set maze to the maze argument or null to create a new maze
+        Long chunked = intepretation.get("chunked", null); //Set chunked to the chunked argument or null to not use a chunked maze
+        int buffer = intepretation.get("buffer", 0); //Set buffer to the buffer argument or 0 for the system default
+        int compress = intepretation.get("compress", TunedSocketFactory.NEVER); //Set compress to the compress argument or never
+
         getStaticInfo();
+        TunedSocketFactory.setDefault(new TunedSocketFactory(buffer, compress)); //Before any remote object is exported
+        if (compress != TunedSocketFactory.NEVER) {
+            System.out.println("Compressing remote calls of at least " + compress + " bytes");
+        }
 
         LocateRegistry.createRegistry(PORT);
         System.out.println("RMIRegistry created on host computer " + HOST_NAME + " on port " + Integer.toString(PORT));
 
-        IGameServer gameServer = new GameServer(4);
+        if (data != null) {
+            System.out.println("Persisting game state in " + data);
+        }
+        if (record != null) {
+            System.out.println("Recording every tick to " + record);
+        }
+        if (moves.equals("tick")) {
+            System.out.println("Applying moves at the start of each tick");
+        }
+        int[][] walls = null;
+        if (maze != null) {
+            walls = readMaze(maze);
+            System.out.println("Using the " + walls.length + " by " + walls.length + " maze in " + maze);
+        }
+        GameServer gameServer;
+        if (chunked != null) {
+            if (maze != null || data != null || record != null || shards != null) {
+                throw new ParamaterException("A chunked maze can not be combined with a maze file, persistence, recording or shards");
+            }
+            int width = BoxMaze.DEFAULT_SIZE;
+            int chunkSize = ChunkedMaze.getChunkSize(width - 2, MAX_CHUNK_SIZE);
+            int column = (width - 2) / chunkSize; //How many chunks a column of the window holds
+            //Only a column of chunks is kept, which is what fetching the walls of the window one column at a time needs
+            ChunkedMaze chunkedMaze = new ChunkedMaze(chunked, chunkSize, column);
+            System.out.println("Using a " + width + " by " + width + " window of the chunked maze " + chunked
+                    + " with chunks of " + chunkSize + " by " + chunkSize + ", keeping " + column + " of its "
+                    + column * column + " chunks");
+            gameServer = new GameServer(4, moves.equals("tick"), chunkedMaze.getWindow(width));
+        } else if (shards != null) {
+            if (data != null || record != null) {
+                throw new ParamaterException("A cluster of shards can not be persisted or recorded");
+            }
+            if (moves.equals("tick")) {
+                throw new ParamaterException("A cluster of shards can not apply moves at the start of each tick");
+            }
+            System.out.println("Running shard " + shard + " of " + shards);
+            gameServer = new GameServer(4, new ShardCluster(shard, shards.split(",")), walls);
+            Naming.rebind("//" + HOST_NAME + ":" + PORT + "/" + ShardName, gameServer.getShardEndpoint());
+        } else {
+            gameServer = new GameServer(4, data != null ? new File(data) : null, record != null ? new File(record) : null, moves.equals("tick"), walls);
+        }
         Naming.rebind("//" + HOST_NAME + ":" + PORT + "/" + GameServerName, gameServer);
 
         System.out.println( "Bindings Finished, waiting for client requests." );
     }
 
+    /**
+     * Reads a maze written by {@link EllerMaze}, the game server only supports square mazes
+     */
+    private static int[][] readMaze(String file) {
+        int[][] walls;
+        try (FileChannel channel = FileChannel.open(Paths.get(file))) {
+            walls = PackedMaze.readWalls(channel);
+        } catch (IOException e) {
+            throw new ParamaterException("Could not read the maze in " + file + ": " + e.getMessage());
+        }
+        if (walls.length == 0 || walls.length != walls[0].length) {
+            throw new ParamaterException("The maze in " + file + " is not square");
+        }
+        return walls;
+    }
+
     private static void getStaticInfo() {
         /**
          * Henter hostname p� min datamaskin
@@ -0,0 +1,28 @@
+package mazeoblig;
+
+import java.io.Serializable;
+
+/**
+ * The result of {@link IShard#getRegionCounts()}. It contains how many players are in every non-empty position of the
+ * region of a server, together with the sequence number of the last changes of that region the counts include, so
+ * that a {@link RegionMirror} can tell which of the changes it receives afterwards are already counted.
+ */
+public class RegionCounts implements Serializable {
+
+    private long sequence; //The sequence number of the last changes that are counted
+    private int[] counts; //The players in every non-empty position as (x * width + y, count) pairs
+
+    public RegionCounts(long sequence, int[] counts) {
+        this.sequence = sequence;
+        this.counts = counts;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+
+}
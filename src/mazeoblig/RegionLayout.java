@@ -0,0 +1,111 @@
+package mazeoblig;
+
+import java.util.Arrays;
+
+/**
+ * Splits a maze into regions of whole columns, so that each region can be owned by its own server process, see
+ * {@link ShardCluster}. Region r owns every position with an x-position from {@link #getStart(int)} up to but not
+ * including {@link #getEnd(int)}, and since the changes of a map are indexed by x * width + y the positions of a
+ * region are also one contiguous range of indexes.
+ *
+ * Every player that walks from one region to another has to be handed off between two servers, so each boundary is
+ * put where the fewest corridors cross it, searching a window around the boundary that would give every region the
+ * same amount of columns. The layout only depends on the maze, so every server of a cluster computes the same one.
+ */
+public class RegionLayout {
+
+    private static final int WINDOW = 4; //How much a region may be smaller or larger than an even split, as 1 / WINDOW
+
+    private int[] boundaries; //The first column of every region, followed by the width of the maze
+    private int[] crossings; //How many corridors cross the boundary at the start of every region
+
+    private RegionLayout(int[] boundaries, int[] crossings) {
+        this.boundaries = boundaries;
+        this.crossings = crossings;
+    }
+
+    /**
+     * Splits a maze into regions along the columns that the fewest corridors cross
+     *
+     * @param maze the maze
+     * @param regions the amount of regions
+     * @return the layout of the regions
+     */
+    public static RegionLayout split(Box[][] maze, int regions) {
+        int width = maze.length;
+        if (regions < 1 || regions * 2 > width) {
+            throw new IllegalArgumentException("Cannot split a maze of width " + width + " into " + regions + " regions");
+        }
+
+        int[] boundaries = new int[regions + 1];
+        int[] crossings = new int[regions];
+        boundaries[regions] = width;
+
+        int window = width / regions / WINDOW;
+        for (int r = 1; r < regions; r++) {
+            int even = r * width / regions;
+            int best = -1;
+            for (int x = Math.max(even - window, boundaries[r - 1] + 2); x <= even + window && x <= width - 2 * (regions - r); x++) {
+                int crossing = countCrossings(maze, x);
+                //Prefer the boundary closest to the even split among the ones with the fewest crossings
+                if (best < 0 || crossing < crossings[r] || (crossing == crossings[r] && Math.abs(x - even) < Math.abs(best - even))) {
+                    best = x;
+                    crossings[r] = crossing;
+                }
+            }
+            boundaries[r] = best >= 0 ? best : even;
+        }
+        return new RegionLayout(boundaries, crossings);
+    }
+
+    /**
+     * @return how many boxes in column x - 1 have no wall to their right
+     */
+    private static int countCrossings(Box[][] maze, int x) {
+        int count = 0;
+        for (int y = 0; y < maze[x - 1].length; y++) {
+            if (maze[x - 1][y].getRight() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the amount of regions
+     */
+    public int size() {
+        return boundaries.length - 1;
+    }
+
+    /**
+     * @param x an x-position in the maze
+     * @return the region that owns the x-position
+     */
+    public int getRegion(int x) {
+        int search = Arrays.binarySearch(boundaries, x);
+        return search >= 0 ? Math.min(search, size() - 1) : -search - 2;
+    }
+
+    /**
+     * @return the first column of a region
+     */
+    public int getStart(int region) {
+        return boundaries[region];
+    }
+
+    /**
+     * @return the column after the last column of a region
+     */
+    public int getEnd(int region) {
+        return boundaries[region + 1];
+    }
+
+    /**
+     * @return how many corridors cross from the previous region into a region, 0 for the first region
+     */
+    public int getCrossings(int region) {
+        return crossings[region];
+    }
+
+}
@@ -0,0 +1,107 @@
+package mazeoblig;
+
+import java.util.Arrays;
+
+/**
+ * What a server of a {@link ShardCluster} knows about the players in the region of another server. The server that
+ * owns a region numbers the changes it publishes one after another, so a mirror applies changes only if they follow
+ * the last ones it applied. Anything else, a gap, changes that the owner could not deliver or no changes applied yet,
+ * means the mirror has to be replaced by the current counts of the region with {@link #rebase}.
+ *
+ * Both methods return what has to be added to the player map to get from what the mirror knew to what it knows now,
+ * so the players of a region are always counted exactly once no matter which changes were lost.
+ */
+public class RegionMirror {
+
+    private static final long UNKNOWN = Long.MIN_VALUE; //The sequence number of a mirror that has no counts yet
+    private static final int[] NOTHING = new int[0];
+
+    private int offset; //The index of the first position of the region, its first column * width
+    private int[] counts; //The players in every position of the region, indexed by x * width + y - offset
+    private long sequence = UNKNOWN; //The sequence number of the last changes applied to the counts
+    private boolean asked; //Whether {@link #needsSync} has asked for the counts before
+    private long nextSync; //The time in nanoseconds before which {@link #needsSync} does not ask for the counts again
+
+    /**
+     * @param start the first column of the region
+     * @param end the column after the last column of the region
+     * @param width the width of the maze
+     */
+    public RegionMirror(int start, int end, int width) {
+        this.offset = start * width;
+        this.counts = new int[(end - start) * width];
+    }
+
+    /**
+     * Applies the changes of the region if they directly follow the last changes that were applied
+     *
+     * @param sequence the sequence number of the changes
+     * @param changes the changes as (x * width + y, difference) pairs, or null if the owner of the region has lost
+     *                some of its changes on the way here
+     * @return the changes to add to the player map, empty if the changes were already applied, or null if the mirror
+     *         has to be rebased first
+     */
+    public synchronized int[] accept(long sequence, int[] changes) {
+        if (this.sequence != UNKNOWN && sequence <= this.sequence) {
+            return NOTHING; //Arrived after newer changes or counts
+        }
+        if (changes == null || this.sequence == UNKNOWN || sequence != this.sequence + 1) {
+            return null;
+        }
+        for (int i = 0; i < changes.length; i += 2) {
+            counts[changes[i] - offset] += changes[i + 1];
+        }
+        this.sequence = sequence;
+        return changes;
+    }
+
+    /**
+     * Replaces what the mirror knows with the current counts of the region, unless it has already applied the changes
+     * that the counts include
+     *
+     * @param current the counts of the region, see {@link IShard#getRegionCounts()}
+     * @return the changes to add to the player map as (x * width + y, difference) pairs
+     */
+    public synchronized int[] rebase(RegionCounts current) {
+        if (sequence != UNKNOWN && current.getSequence() <= sequence) {
+            return NOTHING;
+        }
+
+        int[] next = new int[counts.length];
+        int[] pairs = current.getCounts();
+        for (int i = 0; i < pairs.length; i += 2) {
+            next[pairs[i] - offset] = pairs[i + 1];
+        }
+
+        int[] differences = new int[16];
+        int size = 0;
+        for (int i = 0; i < next.length; i++) {
+            if (next[i] != counts[i]) {
+                if (size == differences.length) {
+                    differences = Arrays.copyOf(differences, size * 2);
+                }
+                differences[size++] = i + offset;
+                differences[size++] = next[i] - counts[i];
+            }
+        }
+        counts = next;
+        sequence = current.getSequence();
+        return Arrays.copyOf(differences, size);
+    }
+
+    /**
+     * Whether the counts of the region should be fetched because none have been applied yet, at most once per interval
+     *
+     * @param now the current time in nanoseconds
+     * @param interval how many nanoseconds to wait before asking again
+     */
+    public synchronized boolean needsSync(long now, long interval) {
+        if (sequence != UNKNOWN || asked && now - nextSync < 0) {
+            return false;
+        }
+        asked = true;
+        nextSync = now + interval;
+        return true;
+    }
+
+}
@@ -0,0 +1,417 @@
+package mazeoblig;
+
+import client.IUser;
+import paramaters.FunctionFlag;
+import paramaters.ListFlag;
+import paramaters.ParameterInterpretation;
+import paramaters.ParameterInterpreter;
+import simulator.PositionInMaze;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays back a recording made by {@link TickRecorder}, either into a headless {@link GameServer} or to clients.
+ *
+ * When played into a headless server every recorded registration, move and disconnect is applied to the server the
+ * same way a user would, and the server is ticked once for every recorded tick. The changes of every tick are compared
+ * to the recorded changes, and the time spent applying and ticking is measured, so a recording of real traffic can be
+ * used as a repeatable performance regression test of a new build.
+ *
+ * When played to clients the recording is served by a {@link ReplayServer} that is bound in a RMI registry the same
+ * way as the {@link GameServer} is by {@link RMIServer}, so that any client can connect and watch the recorded game.
+ *
+ * The recording can be played at its original speed, at a multiple of it or as fast as possible, and can start from
+ * any keyframe.
+ */
+public class Replay {
+
+    /**
+     * Something a recording can be played into
+     */
+    private interface Target {
+
+        /**
+         * Sets the state to the one of a keyframe, called once before any tick
+         */
+        void restore(TickRecording.Frame keyframe) throws IOException;
+
+        void tick(TickRecording.Frame tick) throws IOException;
+
+        /**
+         * Called when every frame has been played
+         */
+        void finish();
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        ParameterInterpreter interpreter = new ParameterInterpreter(
+                new FunctionFlag("file", "f", "The recording to play", String::new, true),
+                new ListFlag("target", "t", "What to play the recording into", Arrays.asList("server", "clients")),
+                new FunctionFlag("speed", "s", "The speed to play at relative to the recording, 0 plays as fast as possible", Double::new),
+                new FunctionFlag("seek", "k", "The tick index to start playing from, rounded down to the nearest keyframe", Long::new),
+                new FunctionFlag("wait", "w", "How many seconds to wait for clients to connect before playing", Integer::new),
+                new FunctionFlag("localhost", "lh", "The outside facing ip of the local machine", String::new),
+                new FunctionFlag("buffer", "b", "The size of the socket buffers of remote calls in bytes, the system default if not set", Integer::new),
+                new FunctionFlag("compress", "z", "Compress remote calls and results of at least this many bytes, nothing is compressed if not set", Integer::new)
+        );
+        ParameterInterpretation intepretation = interpreter.intepret(args);
+
+        String file = intepretation.get("file");
+        String target = intepretation.get("target", "server"); //Set target to the target argument or server
+        double speed = intepretation.get("speed", 1.0); //Set speed to the speed argument or the original speed
+        long seek = intepretation.get("seek", 0L); //Set seek to the seek argument or the start of the recording
+        int wait = intepretation.get("wait", 5); //Set wait to the wait argument or 5 seconds
+        String localhost = intepretation.get("localhost", getLocalHostAddress()); //Set localhost to the localhost argument or local host
+        int buffer = intepretation.get("buffer", 0); //Set buffer to the buffer argument or 0 for the system default
+        int compress = intepretation.get("compress", TunedSocketFactory.NEVER); //Set compress to the compress argument or never
+        TunedSocketFactory.setDefault(new TunedSocketFactory(buffer, compress)); //Before any remote object is exported
+
+        try (TickRecording recording = new TickRecording(new File(file))) {
+            long keyframe = recording.seek(seek);
+            System.out.printf("Playing %s from tick %d (%d keyframes)\n", file, keyframe, recording.getKeyframes().length);
+
+            Target playback;
+            if (target.equals("clients")) {
+                System.setProperty("java.rmi.server.hostname", localhost);
+                ReplayServer server = new ReplayServer(recording.getWalls());
+                Registry registry = LocateRegistry.createRegistry(RMIServer.getRMIPort());
+                registry.rebind(RMIServer.GameServerName, server);
+                System.out.printf("Waiting %d seconds for clients to connect on port %d\n", wait, RMIServer.getRMIPort());
+                Thread.sleep(wait * 1000L);
+                playback = server;
+            } else {
+                playback = new ServerTarget(recording.getWalls());
+            }
+
+            play(recording, playback, speed);
+        }
+        System.exit(0); //Exported remote objects would keep the JVM running
+    }
+
+    /**
+     * Plays every frame from the current position of a recording into a target. Keyframes after the first are only
+     * used for seeking and are skipped.
+     *
+     * @param speed the speed relative to the recording, or 0 to play as fast as possible
+     */
+    private static void play(TickRecording recording, Target target, double speed) throws IOException, InterruptedException {
+        TickRecording.Frame frame = recording.next();
+        if (frame == null) {
+            System.out.println("The recording is empty");
+            return;
+        }
+        target.restore(frame);
+
+        int firstTime = frame.getTime();
+        long start = System.nanoTime();
+        while ((frame = recording.next()) != null) {
+            if (frame.isKeyframe()) {
+                continue;
+            }
+
+            if (speed > 0) {
+                long due = start + (long) ((frame.getTime() - firstTime) / speed * 1000000);
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                }
+            }
+            target.tick(frame);
+        }
+        target.finish();
+    }
+
+    private static String getLocalHostAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * Plays a recording into a headless {@link GameServer}, verifies that every tick produces the recorded changes and
+     * measures how long each tick takes.
+     */
+    private static class ServerTarget implements Target {
+
+        private GameServer server;
+
+        private int ticks; //The amount of ticks played
+        private int actions; //The amount of registrations, moves and disconnects applied
+        private int rejected; //The amount of recorded moves the server did not accept
+        private int mismatches; //The amount of ticks whose changes differed from the recorded changes
+        private long totalNanos; //The total time spent applying actions and ticking
+        private long maxNanos; //The longest time spent on a single tick
+
+        private ServerTarget(int[][] walls) throws RemoteException {
+            server = new GameServer(walls);
+        }
+
+        @Override
+        public void restore(TickRecording.Frame keyframe) throws IOException {
+            server.replayRestore(keyframe.getIndex(), keyframe.getPlayers());
+            System.out.printf("Restored %d players at tick %d\n", keyframe.getPlayers().length / 3, keyframe.getIndex());
+        }
+
+        @Override
+        public void tick(TickRecording.Frame tick) throws IOException {
+            int[] recorded = tick.getActions();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < recorded.length; i += 4) {
+                if (recorded[i] == TickRecorder.REGISTER) {
+                    server.replayRegister(recorded[i + 1], recorded[i + 2], recorded[i + 3]);
+                } else if (recorded[i] == TickRecorder.MOVE) {
+                    if (!server.replayMove(recorded[i + 1], recorded[i + 2], recorded[i + 3])) {
+                        rejected++;
+                    }
+                } else {
+                    server.replayDisconnect(recorded[i + 1]);
+                }
+            }
+            MapChangeEvent change = server.replayTick();
+            long elapsed = System.nanoTime() - start;
+
+            ticks++;
+            actions += recorded.length / 4;
+            totalNanos += elapsed;
+            maxNanos = Math.max(maxNanos, elapsed);
+
+            if (!sameChanges(change, tick.getChange())) {
+                mismatches++;
+                if (mismatches <= 10) {
+                    System.out.printf("Tick %d produced different changes than the recording\n", tick.getIndex());
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+            System.out.printf("Played %d ticks with %d actions in %.1f ms\n", ticks, actions, totalNanos / 1e6);
+            if (ticks > 0) {
+                System.out.printf("Average tick %.3f ms, longest tick %.3f ms, %.0f ticks per second\n",
+                        totalNanos / 1e6 / ticks, maxNanos / 1e6, ticks / (totalNanos / 1e9));
+            }
+            System.out.printf("%d rejected moves, %d ticks differed from the recording\n", rejected, mismatches);
+        }
+
+        /**
+         * Compares two MapChangeEvents regardless of the order of their changes
+         */
+        private static boolean sameChanges(MapChangeEvent a, MapChangeEvent b) {
+            return Arrays.equals(sorted(a), sorted(b));
+        }
+
+        /**
+         * @return the changes of a MapChangeEvent packed as ((x << 16 | y) << 32) | difference and sorted
+         */
+        private static long[] sorted(MapChangeEvent change) {
+            if (change == null) {
+                return new long[0];
+            }
+            long[] packed = new long[change.size()];
+            for (int i = 0; i < packed.length; i++) {
+                int[] entry = change.get(i);
+                packed[i] = ((long) ((entry[0] << 16) | entry[1]) << 32) | (entry[2] & 0xFFFFFFFFL);
+            }
+            Arrays.sort(packed);
+            return packed;
+        }
+
+    }
+
+    /**
+     * An {@link IGameServer} that serves a recording to clients. Clients register and fetch the player map as usual,
+     * and every recorded tick is broadcast to them, or returned to them by {@link #pollChanges} if they poll. Their
+     * player is a spectator in the middle of the maze that cannot move.
+     */
+    private static class ReplayServer extends UnicastRemoteObject implements IGameServer, Target {
+
+        private static final int HISTORY_SIZE = 256; //How many of the most recent MapChangeEvents to retain
+
+        private BoxMaze maze;
+        private volatile PlayerMap map; //The player map after the last played tick
+        private ChangeHistory history = new ChangeHistory(HISTORY_SIZE);
+        private TickSignal ticks = new TickSignal(); //Wakes the callers of {@link #pollChanges} after every tick
+
+        private Map<Remote, IUser> users = new ConcurrentHashMap<>(); //The user of every spectator, by the stub of the spectator
+        private ExecutorService executor = Executors.newCachedThreadPool();
+
+        private ReplayServer(int[][] walls) throws RemoteException {
+            super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
+            maze = new BoxMaze(walls);
+            map = new PlayerMap(new int[walls.length][walls.length], 0);
+        }
+
+        @Override
+        public void restore(TickRecording.Frame keyframe) {
+            int[] players = keyframe.getPlayers();
+            int[][] counts = new int[map.getWidth()][map.getWidth()];
+            for (int i = 0; i < players.length; i += 3) {
+                counts[players[i + 1]][players[i + 2]]++;
+            }
+            map = new PlayerMap(counts, keyframe.getIndex());
+            ticks.signal();
+
+            for (IUser user : users.values()) {
+                executor.execute(() -> {
+                    try {
+                        user.invalidateMap(); //Users that connected while waiting have an empty map
+                    } catch (RemoteException e) {
+                        users.values().remove(user);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void tick(TickRecording.Frame tick) {
+            MapChangeEvent change = tick.getChange();
+            history.add(change);
+            map = map.apply(change);
+            ticks.signal();
+
+            for (IUser user : users.values()) {
+                executor.execute(() -> {
+                    try {
+                        user.onPlayerMapChange(change);
+                    } catch (RemoteException e) {
+                        users.values().remove(user);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void finish() {
+            System.out.println("Finished playing the recording");
+        }
+
+        @Override
+        public BoxMazeInterface getMaze() throws RemoteException {
+            return maze;
+        }
+
+        @Override
+        public int[][] getWalls(int x, int y, int width, int height) throws RemoteException {
+            return MazeWalls.copy(maze.getWalls(), x, y, width, height);
+        }
+
+        @Override
+        public MazeInfo getMazeInfo() throws RemoteException {
+            return MazeInfo.of(maze.getWalls());
+        }
+
+        @Override
+        public PlayerMap getPlayerMap() throws RemoteException {
+            return map;
+        }
+
+        @Override
+        public MapChangeEvent[] getMapChanges(long fromIndex, long toIndex) throws RemoteException {
+            return history.get(fromIndex, toIndex);
+        }
+
+        @Override
+        public PlayerMapUpdate getChangesSince(long index) throws RemoteException {
+            MapChangeEvent changes = history.compactSince(index);
+            if (changes != null) {
+                return new PlayerMapUpdate(changes);
+            }
+            return new PlayerMapUpdate(map);
+        }
+
+        @Override
+        public PlayerMapUpdate pollChanges(IPlayer player, long index, long timeout) throws RemoteException {
+            ticks.await(index, () -> map.getIndex(), timeout);
+            return getChangesSince(index);
+        }
+
+        @Override
+        public void register(IUser user) throws RemoteException {
+            int middle = map.getWidth() / 2;
+            Spectator spectator = new Spectator(new PositionInMaze(middle, middle));
+            users.put(RemoteObject.toStub(spectator), user);
+            user.onGameReady(this, spectator);
+        }
+
+        @Override
+        public IPlayer[] registerAll(IUser[] users) throws RemoteException {
+            IPlayer[] players = new IPlayer[users.length];
+            int middle = map.getWidth() / 2;
+            for (int i = 0; i < users.length; i++) {
+                IUser user = users[i];
+                IPlayer player = new Spectator(new PositionInMaze(middle, middle));
+                players[i] = player;
+                Remote stub = RemoteObject.toStub(player);
+                this.users.put(stub, user);
+                executor.execute(() -> {
+                    try {
+                        user.onGameReady(this, player);
+                    } catch (RemoteException e) {
+                        this.users.remove(stub);
+                    }
+                });
+            }
+            return players;
+        }
+
+        @Override
+        public IPlayer registerPolling() throws RemoteException {
+            int middle = map.getWidth() / 2;
+            return new Spectator(new PositionInMaze(middle, middle));
+        }
+
+        @Override
+        public PlayerMap setView(IPlayer player, int fromX, int toX) throws RemoteException {
+            return null; //Every spectator is sent every change
+        }
+
+        @Override
+        public void disconnect(IPlayer player) throws RemoteException {
+            users.remove(player); //The stub of a spectator that is sent back here equals the one it was stored by
+        }
+
+    }
+
+    /**
+     * The {@link IPlayer} of a user watching a {@link ReplayServer}, it stays where it is placed
+     */
+    private static class Spectator extends UnicastRemoteObject implements IPlayer {
+
+        private PositionInMaze position;
+
+        private Spectator(PositionInMaze position) throws RemoteException {
+            super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
+            this.position = position;
+        }
+
+        @Override
+        public PositionInMaze getPosition() throws RemoteException {
+            return position;
+        }
+
+        @Override
+        public boolean moveTo(PositionInMaze position) throws RemoteException {
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package mazeoblig;
+
+/**
+ * Thrown by an {@link IPlayerEndpoint} when the player of a session has been handed off to the server of another
+ * region, see {@link ShardCluster}. It contains the endpoint and the token of the player in that region, and
+ * {@link PlayerHandle} follows it on its own so users never see it.
+ */
+public class SessionMovedException extends Exception {
+
+    private IPlayerEndpoint endpoint; //The endpoint of the region the player is in now
+    private long token; //The token of the player in that region
+    private boolean accepted; //Whether the move that was requested was accepted and caused the hand off
+
+    /**
+     * @param endpoint the endpoint of the region the player is in now
+     * @param token the token of the player in that region
+     * @param accepted whether the move that was requested was accepted and caused the hand off, if it is false the
+     *                 request should be made again to the new endpoint
+     */
+    public SessionMovedException(IPlayerEndpoint endpoint, long token, boolean accepted) {
+        super("The player has moved to another region", null, false, false);
+        this.endpoint = endpoint;
+        this.token = token;
+        this.accepted = accepted;
+    }
+
+    public IPlayerEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public boolean isAccepted() {
+        return accepted;
+    }
+
+}
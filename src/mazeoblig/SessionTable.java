@@ -0,0 +1,396 @@
+package mazeoblig;
+
+import client.IUser;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The state of every session of a {@link GameServer}, stored as a struct of arrays indexed by an int session id instead
+ * of as an object per session. Every session has a position, a timeout state, a lease deadline, a token and the user it
+ * belongs to. The arrays are split into pages that are never moved once they are created, so they can be read and
+ * written without holding a lock while new pages are added.
+ *
+ * The ids of closed sessions are reused, so every session also gets a random token that contains its id. A token is
+ * only valid as long as its session is open, so a stale token can never act on a new session with the same id.
+ *
+ * The lease of every session expires with a task on a {@link TimingWheel}, which is cancelled when the session is
+ * closed. Activity only moves the lease deadline of the session forward, and the task checks the deadline when it
+ * runs, so a busy session costs no more timer work than an idle one.
+ *
+ * The ids of the open sessions are also kept in a dense array, so that broadcasting to every session iterates exactly
+ * the open sessions without skipping holes. The array is published so that it can be iterated without a lock and
+ * without copying it, see {@link #getSubscriber}.
+ *
+ * Every session also has the state of its updates: the tier it is sent updates at, the index of the last map it was
+ * sent, whether a callback to it is still running, how long its callbacks take and how many fast callbacks it has
+ * answered in a row. These are used by {@link GameServer#broadcastPlayerMapChange} to send users that lag behind fewer
+ * and larger updates. Whether a callback is running is set by the tick and cleared by the thread that ran the callback,
+ * so it is kept in atomic arrays, and the rest of the update state is written before it is set or cleared so that it
+ * is seen by the other thread through it.
+ *
+ * The token, position, lease deadline and view of a session are read and written by any thread without a lock, so they
+ * are kept in atomic arrays as well. That way a reader always sees a whole long and the latest value, and the fields that
+ * {@link #open} writes before the token are seen by anyone who has read that token.
+ */
+public class SessionTable {
+
+    static final byte NOT_TIMED_OUT = 0;
+    static final byte TIMED_OUT = 1;
+    static final byte RECENTLY_TIMED_OUT = 2;
+
+    static final byte FULL_UPDATES = 0; //Sent every tick
+    static final byte REDUCED_UPDATES = 1; //Sent the merged changes of several ticks at a time
+    static final byte SNAPSHOT_UPDATES = 2; //Only told to fetch the map now and then
+    static final byte POLLED_UPDATES = 3; //Never called, fetches every update itself
+
+    static final long WHOLE_MAP = -1; //The view of a session that is sent the changes of every region
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; //The amount of sessions in a page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    //The pages of every array, indexed by id >>> PAGE_BITS and then by id & PAGE_MASK
+    private volatile AtomicIntegerArray[] positions = new AtomicIntegerArray[0]; //The position of each session as x << 16 | y
+    private volatile AtomicLongArray[] tokens = new AtomicLongArray[0]; //The token of each session, 0 if the session is closed
+    private volatile byte[][] timeOuts = new byte[0][]; //The timeout state of each session
+    private volatile AtomicLongArray[] leaseDeadlines = new AtomicLongArray[0]; //When the lease of each session expires, from {@link System#nanoTime()}
+    private volatile IUser[][] users = new IUser[0][]; //The user of each session
+    private volatile byte[][][] serializedUsers = new byte[0][][]; //The serialized user of each session, if persisted
+    private volatile TimingWheel.Task[][] timeOutTasks = new TimingWheel.Task[0][]; //The scheduled end of each timeout
+    private volatile TimingWheel.Task[][] leaseTasks = new TimingWheel.Task[0][]; //The scheduled expiry of each lease
+    private volatile byte[][] tiers = new byte[0][]; //The update tier of each session
+    private volatile long[][] sentIndexes = new long[0][]; //The index of the last map sent to each session, -1 if unknown
+    private volatile AtomicIntegerArray[] notifying = new AtomicIntegerArray[0]; //1 if a callback to each session is still running
+    private volatile int[][] latencies = new int[0][]; //The average time each session takes to answer a callback, in microseconds
+    private volatile byte[][] fastCallbacks = new byte[0][]; //How many fast callbacks each session has answered in a row
+    private volatile AtomicLongArray[] views = new AtomicLongArray[0]; //The regions each session is sent the changes of, one bit per region
+
+    //The ids of every open session, densely packed. It is only written while holding the lock, and replaced by a
+    //larger copy when it is full, so {@link #getSubscriber} can read it without the lock.
+    private volatile AtomicIntegerArray subscribers = new AtomicIntegerArray(PAGE_SIZE);
+    private int[] subscriberSlots = new int[0]; //The position of every open session in {@link #subscribers}
+    private volatile int size; //The amount of open sessions, written after {@link #subscribers}
+
+    private int[] free = new int[PAGE_SIZE]; //The ids of closed sessions that can be reused
+    private int freeCount;
+    private int nextId; //The lowest id that has never been used
+
+    private Random random = new SecureRandom();
+
+    /**
+     * Opens a session
+     *
+     * @param user the user of the session
+     * @param x the x-position of the session
+     * @param y the y-position of the session
+     * @param serializedUser the serialized user, or null if it is not persisted
+     * @param leaseDeadline when the lease of the session expires, from {@link System#nanoTime()}
+     * @return the token of the session, see {@link #getId}
+     */
+    public synchronized long open(IUser user, int x, int y, byte[] serializedUser, long leaseDeadline) {
+        int id;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            id = nextId++;
+            if ((id & PAGE_MASK) == 0) {
+                addPage();
+            }
+        }
+
+        long token;
+        do {
+            token = ((long) random.nextInt() << 32) | id;
+        } while (token == 0);
+
+        int page = id >>> PAGE_BITS;
+        int slot = id & PAGE_MASK;
+        positions[page].set(slot, x << 16 | y);
+        timeOuts[page][slot] = NOT_TIMED_OUT;
+        leaseDeadlines[page].set(slot, leaseDeadline);
+        users[page][slot] = user;
+        serializedUsers[page][slot] = serializedUser;
+        timeOutTasks[page][slot] = null;
+        leaseTasks[page][slot] = null;
+        tiers[page][slot] = FULL_UPDATES;
+        sentIndexes[page][slot] = -1;
+        notifying[page].set(slot, 0);
+        latencies[page][slot] = 0;
+        fastCallbacks[page][slot] = 0;
+        views[page].set(slot, WHOLE_MAP);
+        tokens[page].set(slot, token);
+
+        if (size == subscribers.length()) {
+            AtomicIntegerArray larger = new AtomicIntegerArray(size * 2);
+            for (int i = 0; i < size; i++) {
+                larger.set(i, subscribers.get(i));
+            }
+            subscribers = larger;
+        }
+        subscribers.set(size, id);
+        subscriberSlots[id] = size;
+        size++;
+
+        return token;
+    }
+
+    /**
+     * Closes a session if the token is still valid
+     *
+     * @param token the token of the session
+     * @return whether or not the session was open
+     */
+    public synchronized boolean close(long token) {
+        int id = getId(token);
+        if (id < 0) {
+            return false;
+        }
+
+        int page = id >>> PAGE_BITS;
+        int slot = id & PAGE_MASK;
+        tokens[page].set(slot, 0);
+        users[page][slot] = null;
+        serializedUsers[page][slot] = null;
+        TimingWheel.Task timeOutTask = timeOutTasks[page][slot];
+        if (timeOutTask != null) {
+            timeOutTask.cancel();
+            timeOutTasks[page][slot] = null;
+        }
+        TimingWheel.Task leaseTask = leaseTasks[page][slot];
+        if (leaseTask != null) {
+            leaseTask.cancel();
+            leaseTasks[page][slot] = null;
+        }
+
+        //Move the last subscriber into the hole left by this one
+        int last = subscribers.get(size - 1);
+        subscribers.set(subscriberSlots[id], last);
+        subscriberSlots[last] = subscriberSlots[id];
+        size--;
+
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+        return true;
+    }
+
+    private void addPage() {
+        int pages = positions.length + 1;
+        positions = Arrays.copyOf(positions, pages);
+        positions[pages - 1] = new AtomicIntegerArray(PAGE_SIZE);
+        tokens = Arrays.copyOf(tokens, pages);
+        tokens[pages - 1] = new AtomicLongArray(PAGE_SIZE);
+        timeOuts = Arrays.copyOf(timeOuts, pages);
+        timeOuts[pages - 1] = new byte[PAGE_SIZE];
+        leaseDeadlines = Arrays.copyOf(leaseDeadlines, pages);
+        leaseDeadlines[pages - 1] = new AtomicLongArray(PAGE_SIZE);
+        users = Arrays.copyOf(users, pages);
+        users[pages - 1] = new IUser[PAGE_SIZE];
+        serializedUsers = Arrays.copyOf(serializedUsers, pages);
+        serializedUsers[pages - 1] = new byte[PAGE_SIZE][];
+        timeOutTasks = Arrays.copyOf(timeOutTasks, pages);
+        timeOutTasks[pages - 1] = new TimingWheel.Task[PAGE_SIZE];
+        leaseTasks = Arrays.copyOf(leaseTasks, pages);
+        leaseTasks[pages - 1] = new TimingWheel.Task[PAGE_SIZE];
+        tiers = Arrays.copyOf(tiers, pages);
+        tiers[pages - 1] = new byte[PAGE_SIZE];
+        sentIndexes = Arrays.copyOf(sentIndexes, pages);
+        sentIndexes[pages - 1] = new long[PAGE_SIZE];
+        notifying = Arrays.copyOf(notifying, pages);
+        notifying[pages - 1] = new AtomicIntegerArray(PAGE_SIZE);
+        latencies = Arrays.copyOf(latencies, pages);
+        latencies[pages - 1] = new int[PAGE_SIZE];
+        fastCallbacks = Arrays.copyOf(fastCallbacks, pages);
+        fastCallbacks[pages - 1] = new byte[PAGE_SIZE];
+        views = Arrays.copyOf(views, pages);
+        views[pages - 1] = new AtomicLongArray(PAGE_SIZE);
+        subscriberSlots = Arrays.copyOf(subscriberSlots, pages * PAGE_SIZE);
+    }
+
+    /**
+     * Finds the session of a token
+     *
+     * @param token the token
+     * @return the id of the session, or -1 if the token is not valid
+     */
+    public int getId(long token) {
+        int id = (int) token;
+        AtomicLongArray[] tokens = this.tokens;
+        if (id < 0 || (id >>> PAGE_BITS) >= tokens.length || token == 0 || tokens[id >>> PAGE_BITS].get(id & PAGE_MASK) != token) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Copies the ids of every open session while holding the lock, so that the copy contains exactly the sessions that
+     * were open at one point in time. Use {@link #getSubscriber} to iterate them without a copy.
+     *
+     * @return the ids of every open session
+     */
+    public synchronized int[] getSubscribers() {
+        int[] ids = new int[size];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = subscribers.get(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the id of an open session by its position among the open sessions, from 0 to {@link #size()}, without a
+     * lock. While sessions are opened and closed an iteration may see a session that has just closed, see the same
+     * session twice, or miss a session until the next iteration, since closing a session moves the last open session
+     * into its place. Callers check the token of every id they see and must tolerate a session being missed once.
+     *
+     * @param index the position among the open sessions
+     * @return the id of the session at that position
+     */
+    public int getSubscriber(int index) {
+        return subscribers.get(index);
+    }
+
+    /**
+     * @return the amount of open sessions
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getToken(int id) {
+        return tokens[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    }
+
+    /**
+     * @return the position of a session as x << 16 | y
+     */
+    public int getPosition(int id) {
+        return positions[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    }
+
+    public void setPosition(int id, int position) {
+        positions[id >>> PAGE_BITS].set(id & PAGE_MASK, position);
+    }
+
+    public byte getTimeOut(int id) {
+        return timeOuts[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public void setTimeOut(int id, byte timeOut) {
+        timeOuts[id >>> PAGE_BITS][id & PAGE_MASK] = timeOut;
+    }
+
+    public void setTimeOutTask(int id, TimingWheel.Task task) {
+        timeOutTasks[id >>> PAGE_BITS][id & PAGE_MASK] = task;
+    }
+
+    /**
+     * Replaces the scheduled expiry of the lease of a session, or cancels the task if the session has been closed so
+     * that it is never attached to a new session with the same id
+     *
+     * @param token the token of the session
+     * @param task the scheduled expiry
+     * @return whether or not the session was open
+     */
+    public synchronized boolean setLeaseTask(long token, TimingWheel.Task task) {
+        int id = getId(token);
+        if (id < 0) {
+            task.cancel();
+            return false;
+        }
+        leaseTasks[id >>> PAGE_BITS][id & PAGE_MASK] = task;
+        return true;
+    }
+
+    public long getLeaseDeadline(int id) {
+        return leaseDeadlines[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    }
+
+    public void setLeaseDeadline(int id, long deadline) {
+        leaseDeadlines[id >>> PAGE_BITS].set(id & PAGE_MASK, deadline);
+    }
+
+    public IUser getUser(int id) {
+        return users[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public byte[] getSerializedUser(int id) {
+        return serializedUsers[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public byte getTier(int id) {
+        return tiers[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public void setTier(int id, byte tier) {
+        tiers[id >>> PAGE_BITS][id & PAGE_MASK] = tier;
+    }
+
+    public long getSentIndex(int id) {
+        return sentIndexes[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public void setSentIndex(int id, long index) {
+        sentIndexes[id >>> PAGE_BITS][id & PAGE_MASK] = index;
+    }
+
+    public boolean isNotifying(int id) {
+        return notifying[id >>> PAGE_BITS].get(id & PAGE_MASK) != 0;
+    }
+
+    /**
+     * Marks that a callback to a session is running
+     *
+     * @return false if a callback to the session was already running
+     */
+    public boolean startNotifying(int id) {
+        return notifying[id >>> PAGE_BITS].compareAndSet(id & PAGE_MASK, 0, 1);
+    }
+
+    /**
+     * Marks that the callback to a session has finished, after the state it changed has been written
+     */
+    public void finishNotifying(int id) {
+        notifying[id >>> PAGE_BITS].set(id & PAGE_MASK, 0);
+    }
+
+    /**
+     * @return the average time the session takes to answer a callback, in microseconds
+     */
+    public int getLatency(int id) {
+        return latencies[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public void setLatency(int id, int latency) {
+        latencies[id >>> PAGE_BITS][id & PAGE_MASK] = latency;
+    }
+
+    public byte getFastCallbacks(int id) {
+        return fastCallbacks[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    public void setFastCallbacks(int id, byte count) {
+        fastCallbacks[id >>> PAGE_BITS][id & PAGE_MASK] = count;
+    }
+
+    /**
+     * @return the regions the session is sent the changes of, one bit per region, or {@link #WHOLE_MAP}
+     */
+    public long getView(int id) {
+        return views[id >>> PAGE_BITS].get(id & PAGE_MASK);
+    }
+
+    /**
+     * Sets the regions the session is sent the changes of
+     *
+     * @return the regions the session was sent the changes of before
+     */
+    public long setView(int id, long view) {
+        return views[id >>> PAGE_BITS].getAndSet(id & PAGE_MASK, view);
+    }
+
+}
@@ -0,0 +1,170 @@
+package mazeoblig;
+
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.net.MalformedURLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The servers that together run one game world, each owning one region of the maze, see {@link RegionLayout}. Every
+ * server is started with the addresses of every server in the cluster in the same order and its own index among them,
+ * which is also the index of the region it owns. The first server creates the maze and the rest fetch it from the
+ * first with {@link #fetchWalls()}.
+ *
+ * The other servers are looked up lazily the first time they are needed, so the servers can be started in any order.
+ */
+public class ShardCluster {
+
+    private static final int FETCH_ATTEMPTS = 30; //How many times to try to reach the first server before giving up
+    private static final int FETCH_DELAY = 1000; //How many milliseconds to wait between each attempt
+    private static final int MAX_SHARDS = Long.SIZE; //The most servers a cluster can have, see {@link ShardRegion#getView}
+
+    private int index; //The index of this server and its region
+    private String[] addresses; //The host:port of the RMI registry of every server
+    private IShard[] shards; //The servers that have been looked up
+    private IPlayerEndpoint[] endpoints; //The player endpoints of the servers that have been looked up
+    private AtomicIntegerArray missing; //1 for every server that has missed changes since it was last sent some
+
+    /**
+     * @param index the index of this server among the addresses
+     * @param addresses the host:port of the RMI registry of every server in the cluster
+     */
+    public ShardCluster(int index, String[] addresses) {
+        if (index < 0 || index >= addresses.length) {
+            throw new IllegalArgumentException("The shard index " + index + " is not one of the " + addresses.length + " shards");
+        }
+        if (addresses.length > MAX_SHARDS) {
+            throw new IllegalArgumentException("A cluster can not have more than " + MAX_SHARDS + " shards");
+        }
+        this.index = index;
+        this.addresses = addresses;
+        this.shards = new IShard[addresses.length];
+        this.endpoints = new IPlayerEndpoint[addresses.length];
+        this.missing = new AtomicIntegerArray(addresses.length);
+    }
+
+    /**
+     * @return the index of this server and its region
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the amount of servers and regions
+     */
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+     * Looks up the server of a region, or returns it if it has already been looked up
+     *
+     * @param region the region
+     * @return the server
+     */
+    public IShard getShard(int region) throws RemoteException {
+        IShard shard = shards[region];
+        if (shard == null) {
+            try {
+                shard = (IShard) Naming.lookup("//" + addresses[region] + "/" + RMIServer.ShardName);
+            } catch (NotBoundException | MalformedURLException e) {
+                throw new RemoteException("Could not find the shard at " + addresses[region], e);
+            }
+            shards[region] = shard;
+        }
+        return shard;
+    }
+
+    /**
+     * @return the player endpoint of the server of a region
+     */
+    public IPlayerEndpoint getEndpoint(int region) throws RemoteException {
+        IPlayerEndpoint endpoint = endpoints[region];
+        if (endpoint == null) {
+            endpoint = getShard(region).getPlayerEndpoint();
+            endpoints[region] = endpoint;
+        }
+        return endpoint;
+    }
+
+    /**
+     * Fetches the maze from the first server, waiting for it to start if it has not yet
+     *
+     * @return the wall values of the maze
+     */
+    public int[][] fetchWalls() throws RemoteException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return getShard(0).getWalls();
+            } catch (RemoteException e) {
+                if (attempt == FETCH_ATTEMPTS) {
+                    throw e;
+                }
+                System.out.println("Waiting for the first shard at " + addresses[0]);
+                try {
+                    Thread.sleep(FETCH_DELAY);
+                } catch (InterruptedException interrupted) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the counts of the region of another server with {@link IShard#getRegionCounts()}
+     *
+     * @param region the region
+     * @return the counts of the region
+     */
+    public RegionCounts fetchCounts(int region) throws RemoteException {
+        try {
+            return getShard(region).getRegionCounts();
+        } catch (RemoteException e) {
+            forget(region);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the changes of the last tick of this region to every other server with {@link IShard#onRegionChanges}.
+     * Each server is called with the executor, and a server that cannot be reached misses the changes. It is then
+     * told so the next time this method is called, even if nothing has changed, so that it fetches the counts of this
+     * region instead of waiting for changes that may never come.
+     *
+     * @param sequence the sequence number of the changes
+     * @param changes the changes as (x * width + y, difference) pairs, empty if nothing changed
+     * @param executor the executor that calls each server
+     */
+    public void publish(long sequence, int[] changes, Executor executor) {
+        for (int region = 0; region < addresses.length; region++) {
+            boolean missed = missing.getAndSet(region, 0) != 0;
+            if (region == index || changes.length == 0 && !missed) {
+                continue;
+            }
+            int target = region;
+            executor.execute(() -> {
+                try {
+                    getShard(target).onRegionChanges(index, sequence, missed ? null : changes);
+                } catch (RemoteException e) {
+                    if (!missed) { //Only once until it can be reached again
+                        System.out.println("Could not send changes to the shard at " + addresses[target]);
+                    }
+                    missing.set(target, 1);
+                    forget(target);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets a server that could not be reached, so that it is looked up again next time since it may have restarted
+     */
+    private void forget(int region) {
+        shards[region] = null;
+        endpoints[region] = null;
+    }
+
+}
@@ -0,0 +1,476 @@
+package mazeoblig;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The part of a {@link GameServer} that owns one region of a maze shared by a {@link ShardCluster}. After every tick
+ * it publishes the changes of its region to the other servers, it adds the changes of their regions to the changes of
+ * its server, and it hands players off to the server of the region they walk into.
+ *
+ * A player keeps the session they registered with at their home server for as long as they play. While they are in
+ * another region the position of that session is {@link #AWAY} and the home remembers where they are, and the server
+ * of that region holds a session without a user for them, a guest, that remembers their home. Every change to the
+ * sessions of the server is made while holding its change lock, so a player is never moved and handed off at once.
+ */
+public class ShardRegion {
+
+    static final int AWAY = -1; //The position of a session whose player has been handed off to another region
+
+    private static final int REGION_SYNC_INTERVAL = 1000; //How many milliseconds between each attempt to fetch the counts of a region never heard from
+
+    private ShardCluster cluster; //The servers that own the other regions of the maze
+    private RegionLayout layout; //The regions of the maze
+    private int width; //The width and height of the maze
+    private int regionStart; //The first column of the region this server owns
+    private int regionEnd; //The column after the last column of the region this server owns
+    private byte[] columnRegions; //The region of every column
+
+    private SessionTable sessions; //The sessions of the server
+    private Object changeLock; //The lock the server holds while it changes its sessions and the changes of its tick
+    private Host host; //The server
+    private Executor executor; //Runs the calls to the other servers that nobody waits for
+
+    private ShardEndpoint endpoint; //The remote object the other servers of {@link #cluster} call
+    private RegionMirror[] mirrors; //What this server knows about the players in the region of every other server, by region
+    private int[] regionCounts; //The players in every position of the region this server owns, by x * width + y - regionStart * width
+    //The sequence number of the last changes of this region sent to the other servers, guarded by {@link #regionCounts}.
+    //It starts from the time the server started, so that the changes of a restarted server follow those it sent before.
+    private long regionSequence = System.currentTimeMillis() << 20;
+    private Map<Long, long[]> guests = new ConcurrentHashMap<>(); //The home region and home token of every player placed here by another server, by their token
+    private Map<Long, long[]> away = new ConcurrentHashMap<>(); //The region and token of every player of this server that is in another region, by their token
+
+    /**
+     * What a region needs from the server that owns it
+     */
+    interface Host {
+
+        /**
+         * @return whether a player may move from one position to another, see {@link GameServer#isValidMove}
+         */
+        boolean isValidMove(int from, int x, int y);
+
+        /**
+         * Adds a difference to the change of a cell since the last tick, must be called while holding the change lock
+         *
+         * @param cell the index of the cell, x * width + y
+         * @param difference the difference
+         */
+        void addChange(int cell, int difference);
+
+        /**
+         * Opens a session without a user
+         *
+         * @return the token of the session
+         */
+        long openSession(int x, int y);
+
+        /**
+         * Closes a session
+         *
+         * @return whether or not the session was open
+         */
+        boolean closeSession(long token);
+
+        /**
+         * @return the wall values of the maze, see {@link BoxMaze#getWalls()}
+         */
+        int[][] getWalls();
+
+        /**
+         * @return the remote object that serves the players of the server
+         */
+        IPlayerEndpoint getPlayerEndpoint();
+
+    }
+
+    /**
+     * @param cluster the servers of the cluster
+     * @param maze the maze, which is split into regions by {@link RegionLayout#split}
+     * @param sessions the sessions of the server
+     * @param changeLock the lock the server holds while it changes its sessions and the changes of its tick
+     * @param host the server
+     * @param executor runs the calls to the other servers that nobody waits for
+     */
+    public ShardRegion(ShardCluster cluster, Box[][] maze, SessionTable sessions, Object changeLock, Host host, Executor executor) throws RemoteException {
+        this.cluster = cluster;
+        this.sessions = sessions;
+        this.changeLock = changeLock;
+        this.host = host;
+        this.executor = executor;
+
+        width = maze.length;
+        layout = RegionLayout.split(maze, cluster.size());
+        regionStart = layout.getStart(cluster.getIndex());
+        regionEnd = layout.getEnd(cluster.getIndex());
+        regionCounts = new int[(regionEnd - regionStart) * width];
+        columnRegions = new byte[width];
+        for (int x = 0; x < width; x++) {
+            columnRegions[x] = (byte) layout.getRegion(x);
+        }
+        mirrors = new RegionMirror[cluster.size()];
+        for (int region = 0; region < cluster.size(); region++) {
+            if (region != cluster.getIndex()) {
+                mirrors[region] = new RegionMirror(layout.getStart(region), layout.getEnd(region), width);
+            }
+        }
+        endpoint = new ShardEndpoint();
+        System.out.printf("Owning columns %d to %d of region %d, crossed by %d corridors from the previous region\n",
+                regionStart, regionEnd - 1, cluster.getIndex(), layout.getCrossings(cluster.getIndex()));
+    }
+
+    /**
+     * @return the first column of the region this server owns
+     */
+    public int getStart() {
+        return regionStart;
+    }
+
+    /**
+     * @return the column after the last column of the region this server owns
+     */
+    public int getEnd() {
+        return regionEnd;
+    }
+
+    /**
+     * @return whether an x-position is in the region this server owns
+     */
+    public boolean contains(int x) {
+        return x >= regionStart && x < regionEnd;
+    }
+
+    /**
+     * Turns the columns that a user can see into the regions that they are sent the changes of, one bit per region,
+     * which is why a cluster has at most 64 servers
+     *
+     * @param fromX the first column the user can see
+     * @param toX the last column the user can see
+     * @return the regions of the columns, or {@link SessionTable#WHOLE_MAP} if the columns are in every region
+     */
+    public long getView(int fromX, int toX) {
+        fromX = Math.max(fromX, 0);
+        toX = Math.min(toX, width - 1);
+        long view = 0;
+        if (fromX <= toX) {
+            for (int region = columnRegions[fromX]; region <= columnRegions[toX]; region++) {
+                view |= 1L << region;
+            }
+        }
+        return Long.bitCount(view) == layout.size() ? SessionTable.WHOLE_MAP : view;
+    }
+
+    /**
+     * @param change the changes of one or more ticks
+     * @param view the regions to keep the changes of, see {@link #getView}
+     * @return the changes in the regions of the view
+     */
+    public MapChangeEvent filter(MapChangeEvent change, long view) {
+        return change.filter(x -> (view >>> columnRegions[x] & 1) != 0);
+    }
+
+    /**
+     * @return the remote object that the other servers of the cluster call
+     */
+    public IShard getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Sends the changes of the last tick that happened in the region of this server to the other servers of
+     * {@link #cluster}, numbered one after another so that they can tell if they have missed any. The changes are in
+     * order of their index, and the positions of a region are one range of indexes, so the changes of this region are
+     * one range of the changes. They are also added to {@link #regionCounts}, which is what the other servers fetch
+     * instead if they have missed any. Then the regions never heard from are fetched with {@link #syncRegions()}.
+     *
+     * @param packed the changes of the last tick as (x * width + y, difference) pairs
+     */
+    public void publish(int[] packed) {
+        int first = 0;
+        while (first < packed.length && packed[first] < regionStart * width) {
+            first += 2;
+        }
+        int last = first;
+        while (last < packed.length && packed[last] < regionEnd * width) {
+            last += 2;
+        }
+
+        int[] changes = Arrays.copyOfRange(packed, first, last);
+        long sequence;
+        synchronized (regionCounts) {
+            if (changes.length > 0) {
+                for (int i = 0; i < changes.length; i += 2) {
+                    regionCounts[changes[i] - regionStart * width] += changes[i + 1];
+                }
+                regionSequence++;
+            }
+            sequence = regionSequence;
+        }
+        cluster.publish(sequence, changes, executor); //Also tells the servers that missed changes, if nothing changed
+        syncRegions();
+    }
+
+    /**
+     * Fetches the counts of every region that this server has not heard from yet, such as the regions of servers that
+     * were started before this one and whose players have not moved since, see {@link #syncRegion}. Each region is
+     * fetched with {@link #executor} at most once every {@link #REGION_SYNC_INTERVAL} milliseconds.
+     */
+    private void syncRegions() {
+        long now = System.nanoTime();
+        for (int region = 0; region < mirrors.length; region++) {
+            if (mirrors[region] != null && mirrors[region].needsSync(now, TimeUnit.MILLISECONDS.toNanos(REGION_SYNC_INTERVAL))) {
+                int target = region;
+                executor.execute(() -> {
+                    try {
+                        syncRegion(target);
+                    } catch (RemoteException e) {
+                        //The server has not started yet, try again later
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Replaces what this server knows about the players in the region of another server with the current counts of
+     * the region, and adds the difference to the changes of the next tick
+     *
+     * @param region the region
+     */
+    private void syncRegion(int region) throws RemoteException {
+        addRegionChanges(mirrors[region].rebase(cluster.fetchCounts(region)));
+    }
+
+    /**
+     * Adds changes that happened in the region of another server to the changes of the next tick
+     *
+     * @param changes the changes as (x * width + y, difference) pairs
+     */
+    private void addRegionChanges(int[] changes) {
+        if (changes.length == 0) {
+            return;
+        }
+        synchronized (changeLock) {
+            for (int i = 0; i < changes.length; i += 2) {
+                host.addChange(changes[i], changes[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Moves a player into the region of another server of {@link #cluster}. The move is validated like any other, and
+     * the session is claimed by setting its position to {@link #AWAY} in the same step while holding
+     * {@link #changeLock}, so that no other move of the same session can get past this point until the player has been
+     * placed. Then the home of the player places them in the new region with {@link #relocate}, and if that fails the
+     * position is restored. If this server is not the home of the player then their session here is closed, since the
+     * home keeps track of where they are.
+     *
+     * @param id the id of the session
+     * @param token the token of the session
+     * @param x the x-position to move to
+     * @param y the y-position to move to
+     * @return false if the move is not valid, or if the player is being moved to another region by another call
+     * @throws SessionMovedException with the endpoint and token of the player in the new region if the move was valid,
+     *                               or if the player was already in another region
+     */
+    public boolean moveAcross(int id, long token, int x, int y) throws RemoteException, SessionMovedException {
+        int from;
+        synchronized (changeLock) {
+            if (sessions.getToken(id) != token) {
+                throw new NoSuchObjectException("The session is closed");
+            }
+            from = sessions.getPosition(id);
+            if (from != AWAY) {
+                if (!host.isValidMove(from, x, y)) {
+                    return false;
+                }
+                sessions.setPosition(id, AWAY);
+            }
+        }
+        if (from == AWAY) {
+            if (!away.containsKey(token)) {
+                return false; //Claimed by another move that has not placed the player yet
+            }
+            throw redirect(token);
+        }
+
+        long moved;
+        long[] guest = guests.get(token);
+        try {
+            moved = guest == null ? relocate(token, x, y) : cluster.getShard((int) guest[0]).relocate(guest[1], x, y);
+        } catch (RemoteException e) {
+            synchronized (changeLock) {
+                if (sessions.getToken(id) == token) {
+                    sessions.setPosition(id, from);
+                } else { //Closed while claimed, which did not remove the player from where they were
+                    host.addChange((from >>> 16) * width + (from & 0xFFFF), -1);
+                }
+            }
+            throw e;
+        }
+
+        synchronized (changeLock) {
+            host.addChange((from >>> 16) * width + (from & 0xFFFF), -1); //The player has left this region
+        }
+        if (guest != null) {
+            guests.remove(token);
+            host.closeSession(token);
+        }
+        throw new SessionMovedException(cluster.getEndpoint(layout.getRegion(x)), moved, true);
+    }
+
+    /**
+     * Places a player whose home is this server at a position in any region of {@link #cluster}. If the position is in
+     * another region then the server of that region opens a session for the player with {@link IShard#place}, and the
+     * position of the players session here is set to {@link #AWAY} while {@link #away} remembers where they are.
+     *
+     * @param homeToken the token of the session of the player at this server
+     * @param x the x-position of the player
+     * @param y the y-position of the player
+     * @return the token of the player in the region of the position
+     */
+    private long relocate(long homeToken, int x, int y) throws RemoteException {
+        int id = sessions.getId(homeToken);
+        if (id < 0) {
+            throw new NoSuchObjectException("The session is closed");
+        }
+
+        int region = layout.getRegion(x);
+        if (region == cluster.getIndex()) { //The player has come home
+            synchronized (changeLock) {
+                host.addChange(x * width + y, 1);
+                sessions.setPosition(id, x << 16 | y);
+            }
+            away.remove(homeToken);
+            return homeToken;
+        }
+
+        long token = cluster.getShard(region).place(cluster.getIndex(), homeToken, x, y);
+        away.put(homeToken, new long[]{region, token});
+        synchronized (changeLock) {
+            int from = sessions.getPosition(id);
+            if (from != AWAY) { //The player has left this region
+                host.addChange((from >>> 16) * width + (from & 0xFFFF), -1);
+                sessions.setPosition(id, AWAY);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * @param token the token of a session whose player is in another region
+     * @return an exception that tells the {@link PlayerHandle} of the player where they are
+     */
+    public SessionMovedException redirect(long token) throws RemoteException {
+        long[] elsewhere = away.get(token);
+        if (elsewhere == null) {
+            throw new NoSuchObjectException("The player is in no region");
+        }
+        return new SessionMovedException(cluster.getEndpoint((int) elsewhere[0]), elsewhere[1], false);
+    }
+
+    /**
+     * Called when a session of this server is closed. If its player is in the region of another server then that
+     * server is told to remove them.
+     *
+     * @param token the token of the session
+     */
+    public void leave(long token) {
+        long[] elsewhere = away.remove(token);
+        if (elsewhere != null) {
+            executor.execute(() -> {
+                try {
+                    cluster.getShard((int) elsewhere[0]).release(elsewhere[1]);
+                } catch (RemoteException e) {
+                    System.out.println("Could not remove a player from region " + elsewhere[0]);
+                }
+            });
+        }
+    }
+
+    /**
+     * This inner class is the remote object that the other servers of {@link #cluster} call, see {@link IShard}
+     */
+    private class ShardEndpoint extends UnicastRemoteObject implements IShard {
+
+        public ShardEndpoint() throws RemoteException {
+            super(0, TunedSocketFactory.getDefault(), TunedSocketFactory.getDefault());
+        }
+
+        @Override
+        public int[][] getWalls() throws RemoteException {
+            return host.getWalls();
+        }
+
+        @Override
+        public IPlayerEndpoint getPlayerEndpoint() throws RemoteException {
+            return host.getPlayerEndpoint();
+        }
+
+        /**
+         * Adds the changes of another region to the changes of the next tick, so that they are broadcast to the users
+         * of this server. If they do not follow the last changes of the region that were added then the counts of the
+         * region are fetched instead with {@link #syncRegion}.
+         */
+        @Override
+        public void onRegionChanges(int region, long sequence, int[] changes) throws RemoteException {
+            int[] accepted = mirrors[region].accept(sequence, changes);
+            if (accepted == null) {
+                syncRegion(region);
+            } else {
+                addRegionChanges(accepted);
+            }
+        }
+
+        @Override
+        public RegionCounts getRegionCounts() throws RemoteException {
+            synchronized (regionCounts) {
+                int size = 0;
+                for (int count : regionCounts) {
+                    if (count != 0) {
+                        size++;
+                    }
+                }
+                int[] counts = new int[size * 2];
+                int offset = regionStart * width;
+                for (int i = 0, j = 0; i < regionCounts.length; i++) {
+                    if (regionCounts[i] != 0) {
+                        counts[j++] = i + offset;
+                        counts[j++] = regionCounts[i];
+                    }
+                }
+                return new RegionCounts(regionSequence, counts);
+            }
+        }
+
+        /**
+         * Opens a session without a user for a player that walked into this region, the home of the player keeps the
+         * session of their user
+         */
+        @Override
+        public long place(int home, long homeToken, int x, int y) throws RemoteException {
+            long token = host.openSession(x, y);
+            guests.put(token, new long[]{home, homeToken});
+            return token;
+        }
+
+        @Override
+        public long relocate(long homeToken, int x, int y) throws RemoteException {
+            return ShardRegion.this.relocate(homeToken, x, y);
+        }
+
+        @Override
+        public void release(long token) throws RemoteException {
+            guests.remove(token);
+            host.closeSession(token);
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package mazeoblig;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records every tick of a {@link GameServer} to a file that can be played back with {@link Replay}. For every tick that
+ * had changes it writes the {@link MapChangeEvent} of the tick together with the registrations, moves and disconnects
+ * that the server accepted during the tick, and every {@link #KEYFRAME_INTERVAL} ticks it also writes a keyframe with
+ * the position of every player, so that a replay can start from any keyframe instead of from the beginning.
+ *
+ * The file starts with a header containing the walls of the maze, followed by frames that are each written as a type,
+ * a length and a payload of variable length integers. When the recorder is closed an index of the offset of every
+ * keyframe is appended, followed by the offset of the index itself. {@link TickRecording} uses the index to seek, and
+ * if the file was never closed it builds the index by scanning the frames instead.
+ *
+ * Accepted actions are added by movers while they hold the servers change lock, so that they end up in the same tick as
+ * the change they caused, see {@link #cut()}.
+ */
+public class TickRecorder {
+
+    static final int MAGIC = 0x4D5A5243; //"MZRC"
+    static final int INDEX_MAGIC = 0x4D5A4958; //"MZIX"
+
+    static final byte TICK = 1;
+    static final byte KEYFRAME = 2;
+    static final byte INDEX = 3;
+
+    static final byte REGISTER = 1;
+    static final byte MOVE = 2;
+    static final byte DISCONNECT = 3;
+
+    private static final int KEYFRAME_INTERVAL = 64; //How many ticks between each keyframe
+
+    private DataOutputStream out;
+    private long offset; //The offset in the file that the next frame is written to
+    private long start; //The time the recording started at, frames are stamped with the milliseconds since then
+
+    private int[] actions = new int[64]; //The actions accepted since the last cut, as (type, id, x, y) quadruples
+    private int actionCount;
+    private int[] cutActions = new int[64]; //The actions accepted before the last cut, waiting for a tick with changes
+    private int cutActionCount;
+
+    private Map<Integer, int[]> players = new LinkedHashMap<>(); //The position of every player as {x, y} by their id
+    private List<long[]> keyframes = new ArrayList<>(); //The index and offset of every keyframe
+    private ByteArrayOutputStream frame = new ByteArrayOutputStream(); //Reused to encode each frame
+
+    /**
+     * Creates a recording file and writes its header. The game must not contain any players when the recording
+     * starts, since the first keyframe is written as an empty map.
+     *
+     * @param file the file to record to, it is replaced if it exists
+     * @param walls the wall values of the maze, see {@link BoxMaze#getWalls()}
+     */
+    public TickRecorder(File file, int[][] walls) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        start = System.currentTimeMillis();
+
+        out.writeInt(MAGIC);
+        out.writeLong(start);
+        out.writeInt(walls.length);
+        for (int[] column : walls) {
+            for (int wall : column) {
+                out.writeByte(wall);
+            }
+        }
+        offset = 4 + 8 + 4 + walls.length * walls.length;
+    }
+
+    /**
+     * Records that a player has joined at a position. Must be called while holding the change lock.
+     */
+    public void register(int id, int x, int y) {
+        addAction(REGISTER, id, x, y);
+    }
+
+    /**
+     * Records that a player has moved to a position. Must be called while holding the change lock.
+     */
+    public void move(int id, int x, int y) {
+        addAction(MOVE, id, x, y);
+    }
+
+    /**
+     * Records that a player has left. Must be called while holding the change lock.
+     */
+    public void disconnect(int id) {
+        addAction(DISCONNECT, id, 0, 0);
+    }
+
+    private void addAction(int type, int id, int x, int y) {
+        if (actionCount + 4 > actions.length) {
+            actions = Arrays.copyOf(actions, actions.length * 2);
+        }
+        actions[actionCount++] = type;
+        actions[actionCount++] = id;
+        actions[actionCount++] = x;
+        actions[actionCount++] = y;
+    }
+
+    /**
+     * Marks the end of the actions that belong to the current tick. Called by the tick while it holds the change lock
+     * and swaps the change buffers, so the actions before the cut are exactly the ones that caused the changes it
+     * drains. If the tick turns out to have no changes then the actions are kept and written with the next tick.
+     */
+    public void cut() {
+        if (cutActionCount + actionCount > cutActions.length) {
+            cutActions = Arrays.copyOf(cutActions, Math.max(cutActions.length * 2, cutActionCount + actionCount));
+        }
+        System.arraycopy(actions, 0, cutActions, cutActionCount, actionCount);
+        cutActionCount += actionCount;
+        actionCount = 0;
+    }
+
+    /**
+     * Writes a tick frame with the changes of a tick and the actions before the last {@link #cut()}, followed by a
+     * keyframe if it is time for one. Only called by the tick, after {@link #cut()}.
+     *
+     * @param change the changes of the tick
+     */
+    public synchronized void record(MapChangeEvent change) throws IOException {
+        int time = (int) (System.currentTimeMillis() - start);
+
+        if (keyframes.isEmpty()) {
+            writeKeyframe(change.getBaseIndex(), time); //The state before the first tick, which is empty
+        }
+
+        DataOutputStream payload = begin();
+        payload.writeLong(change.getIndex());
+        PlayerMap.writeVarInt(payload, time);
+
+        PlayerMap.writeVarInt(payload, cutActionCount / 4);
+        for (int i = 0; i < cutActionCount; i += 4) {
+            int type = cutActions[i];
+            int id = cutActions[i + 1];
+            payload.writeByte(type);
+            PlayerMap.writeVarInt(payload, id);
+            if (type == DISCONNECT) {
+                players.remove(id);
+            } else {
+                PlayerMap.writeVarInt(payload, cutActions[i + 2]);
+                PlayerMap.writeVarInt(payload, cutActions[i + 3]);
+                players.put(id, new int[]{cutActions[i + 2], cutActions[i + 3]});
+            }
+        }
+        cutActionCount = 0;
+
+        PlayerMap.writeVarInt(payload, change.size());
+        for (int i = 0; i < change.size(); i++) {
+            int[] entry = change.get(i);
+            PlayerMap.writeVarInt(payload, entry[0]);
+            PlayerMap.writeVarInt(payload, entry[1]);
+            PlayerMap.writeVarInt(payload, PlayerMap.zigZag(entry[2]));
+        }
+        end(TICK);
+
+        if (change.getIndex() % KEYFRAME_INTERVAL == 0) {
+            writeKeyframe(change.getIndex(), time);
+        }
+    }
+
+    /**
+     * Writes a keyframe with the position of every player after the tick with the given index
+     */
+    private void writeKeyframe(long index, int time) throws IOException {
+        keyframes.add(new long[]{index, offset});
+
+        DataOutputStream payload = begin();
+        payload.writeLong(index);
+        PlayerMap.writeVarInt(payload, time);
+        PlayerMap.writeVarInt(payload, players.size());
+        for (Map.Entry<Integer, int[]> player : players.entrySet()) {
+            PlayerMap.writeVarInt(payload, player.getKey());
+            PlayerMap.writeVarInt(payload, player.getValue()[0]);
+            PlayerMap.writeVarInt(payload, player.getValue()[1]);
+        }
+        end(KEYFRAME);
+        out.flush(); //So that a recording that is never closed can still be played up to its last keyframe
+    }
+
+    private DataOutputStream begin() {
+        frame.reset();
+        return new DataOutputStream(frame);
+    }
+
+    /**
+     * Writes the frame that was encoded since {@link #begin()} with its type and length
+     */
+    private void end(byte type) throws IOException {
+        out.writeByte(type);
+        out.writeInt(frame.size());
+        frame.writeTo(out);
+        offset += 1 + 4 + frame.size();
+    }
+
+    /**
+     * Writes the index of the keyframes and closes the file
+     */
+    public synchronized void close() throws IOException {
+        long indexOffset = offset;
+
+        DataOutputStream payload = begin();
+        PlayerMap.writeVarInt(payload, keyframes.size());
+        for (long[] keyframe : keyframes) {
+            payload.writeLong(keyframe[0]);
+            payload.writeLong(keyframe[1]);
+        }
+        end(INDEX);
+
+        out.writeLong(indexOffset);
+        out.writeInt(INDEX_MAGIC);
+        out.close();
+    }
+
+}
@@ -0,0 +1,286 @@
+package mazeoblig;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a file written by {@link TickRecorder} one {@link Frame} at a time. The recording can be positioned at any
+ * keyframe with {@link #seek}, using the index at the end of the file, or if the recording was never closed properly,
+ * an index built by scanning every frame once.
+ */
+public class TickRecording implements Closeable {
+
+    private FileChannel channel;
+    private DataInputStream in; //Reads from {@link #channel} at the current position
+    private long end; //The offset where the frames end, the index and anything after it is not read as frames
+    private long position; //The offset of the next frame
+
+    private long start; //The time the recording started at
+    private int[][] walls;
+
+    private long[] keyframeIndexes; //The tick index of every keyframe in ascending order
+    private long[] keyframeOffsets; //The offset of the keyframe with the same position in {@link #keyframeIndexes}
+    private long firstOffset; //The offset of the first frame
+
+    /**
+     * Opens a recording and reads its header and index
+     *
+     * @param file the recording
+     */
+    public TickRecording(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        end = channel.size();
+
+        in = open(0);
+        if (in.readInt() != TickRecorder.MAGIC) {
+            throw new IOException(file + " is not a recording");
+        }
+        start = in.readLong();
+        walls = new int[in.readInt()][];
+        for (int x = 0; x < walls.length; x++) {
+            walls[x] = new int[walls.length];
+            for (int y = 0; y < walls.length; y++) {
+                walls[x][y] = in.readUnsignedByte();
+            }
+        }
+        firstOffset = 4 + 8 + 4 + walls.length * walls.length;
+
+        if (!readIndex()) {
+            scanIndex();
+        }
+        in = open(firstOffset);
+        position = firstOffset;
+    }
+
+    /**
+     * Reads the index that {@link TickRecorder#close()} appends to the file
+     *
+     * @return false if the file has no index
+     */
+    private boolean readIndex() throws IOException {
+        if (end < firstOffset + 12) {
+            return false;
+        }
+        DataInputStream trailer = open(end - 12);
+        long indexOffset = trailer.readLong();
+        if (trailer.readInt() != TickRecorder.INDEX_MAGIC) {
+            return false;
+        }
+
+        DataInputStream index = open(indexOffset);
+        index.readByte();
+        index.readInt();
+        int count = PlayerMap.readVarInt(index);
+        keyframeIndexes = new long[count];
+        keyframeOffsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            keyframeIndexes[i] = index.readLong();
+            keyframeOffsets[i] = index.readLong();
+        }
+        end = indexOffset;
+        return true;
+    }
+
+    /**
+     * Builds the index by reading the type and length of every frame, stopping at the first frame that is incomplete
+     */
+    private void scanIndex() throws IOException {
+        List<long[]> keyframes = new ArrayList<>();
+        DataInputStream scan = open(firstOffset);
+        long offset = firstOffset;
+        try {
+            while (offset + 5 <= end) {
+                byte type = scan.readByte();
+                int length = scan.readInt();
+                if (offset + 5 + length > end) {
+                    break;
+                }
+                if (type == TickRecorder.KEYFRAME) {
+                    keyframes.add(new long[]{scan.readLong(), offset});
+                    scan.skipBytes(length - 8);
+                } else {
+                    scan.skipBytes(length);
+                }
+                offset += 5 + length;
+            }
+        } catch (EOFException e) {
+            //The last frame is incomplete
+        }
+
+        end = offset;
+        keyframeIndexes = new long[keyframes.size()];
+        keyframeOffsets = new long[keyframes.size()];
+        for (int i = 0; i < keyframes.size(); i++) {
+            keyframeIndexes[i] = keyframes.get(i)[0];
+            keyframeOffsets[i] = keyframes.get(i)[1];
+        }
+    }
+
+    /**
+     * Positions the recording at the last keyframe at or before a tick index, so that the next frame read is that
+     * keyframe. If the index is before the first keyframe then the recording is positioned at the first keyframe.
+     *
+     * @param index the tick index to seek to
+     * @return the index of the keyframe that the recording is positioned at
+     */
+    public long seek(long index) throws IOException {
+        if (keyframeIndexes.length == 0) {
+            in = open(firstOffset);
+            position = firstOffset;
+            return 0;
+        }
+
+        int keyframe = 0;
+        while (keyframe + 1 < keyframeIndexes.length && keyframeIndexes[keyframe + 1] <= index) {
+            keyframe++;
+        }
+        in = open(keyframeOffsets[keyframe]);
+        position = keyframeOffsets[keyframe];
+        return keyframeIndexes[keyframe];
+    }
+
+    /**
+     * Reads the next frame
+     *
+     * @return the frame, or null if there are no more frames
+     */
+    public Frame next() throws IOException {
+        if (position + 5 > end) {
+            return null;
+        }
+
+        byte type = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        position += 5 + payload.length;
+
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+        if (type == TickRecorder.TICK) {
+            long index = frame.readLong();
+            int time = PlayerMap.readVarInt(frame);
+
+            int[] actions = new int[PlayerMap.readVarInt(frame) * 4];
+            for (int i = 0; i < actions.length; i += 4) {
+                actions[i] = frame.readByte();
+                actions[i + 1] = PlayerMap.readVarInt(frame);
+                if (actions[i] != TickRecorder.DISCONNECT) {
+                    actions[i + 2] = PlayerMap.readVarInt(frame);
+                    actions[i + 3] = PlayerMap.readVarInt(frame);
+                }
+            }
+
+            int size = PlayerMap.readVarInt(frame);
+            MapChangeEvent change = new MapChangeEvent(size);
+            for (int i = 0; i < size; i++) {
+                change.add(PlayerMap.readVarInt(frame), PlayerMap.readVarInt(frame), PlayerMap.unZigZag(PlayerMap.readVarInt(frame)));
+            }
+            change.setIndex(index);
+
+            return new Frame(false, index, time, actions, change);
+        } else if (type == TickRecorder.KEYFRAME) {
+            long index = frame.readLong();
+            int time = PlayerMap.readVarInt(frame);
+
+            int[] players = new int[PlayerMap.readVarInt(frame) * 3];
+            for (int i = 0; i < players.length; i++) {
+                players[i] = PlayerMap.readVarInt(frame);
+            }
+            return new Frame(true, index, time, players, null);
+        }
+        throw new IOException("Unknown frame type " + type);
+    }
+
+    private DataInputStream open(long offset) throws IOException {
+        channel.position(offset);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+    }
+
+    /**
+     * @return the wall values of the recorded maze, see {@link BoxMaze#getWalls()}
+     */
+    public int[][] getWalls() {
+        return walls;
+    }
+
+    /**
+     * @return the time the recording started at, in milliseconds since the epoch
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the tick index of every keyframe in ascending order
+     */
+    public long[] getKeyframes() {
+        return keyframeIndexes.clone();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A tick or a keyframe read from a recording
+     */
+    public static class Frame {
+
+        private boolean keyframe;
+        private long index; //The tick index of the frame
+        private int time; //The milliseconds since the recording started
+        private int[] data; //The actions of a tick as (type, id, x, y) or the players of a keyframe as (id, x, y)
+        private MapChangeEvent change; //The changes of a tick, or null if this is a keyframe
+
+        private Frame(boolean keyframe, long index, int time, int[] data, MapChangeEvent change) {
+            this.keyframe = keyframe;
+            this.index = index;
+            this.time = time;
+            this.data = data;
+            this.change = change;
+        }
+
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public int getTime() {
+            return time;
+        }
+
+        /**
+         * @return the actions the server accepted during the tick as (type, id, x, y) quadruples where the type is
+         * {@link TickRecorder#REGISTER}, {@link TickRecorder#MOVE} or {@link TickRecorder#DISCONNECT}
+         */
+        public int[] getActions() {
+            return data;
+        }
+
+        /**
+         * @return the position of every player at a keyframe as (id, x, y) triples
+         */
+        public int[] getPlayers() {
+            return data;
+        }
+
+        public MapChangeEvent getChange() {
+            return change;
+        }
+
+    }
+
+}
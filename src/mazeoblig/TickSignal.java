@@ -0,0 +1,55 @@
+package mazeoblig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Lets the callers of {@link IGameServer#pollChanges} wait for the next tick. Every caller waits on the same future,
+ * which is replaced and completed by {@link #signal()} once per tick, so a tick wakes every waiter with a single
+ * completion and a waiter needs no timer, queue entry or thread of its own other than the one its call arrived on.
+ */
+public class TickSignal {
+
+    private volatile CompletableFuture<Void> next = new CompletableFuture<>(); //Completed by the next tick
+
+    /**
+     * Wakes everyone that is waiting, must be called after the tick has been published so that the woken callers see it
+     */
+    public void signal() {
+        CompletableFuture<Void> current = next;
+        next = new CompletableFuture<>();
+        current.complete(null);
+    }
+
+    /**
+     * Waits until the index of the last tick is no longer the given index, or until a timeout passes
+     *
+     * @param index the index of the map that the caller has
+     * @param last gives the index of the last tick
+     * @param timeout how many milliseconds to wait at most
+     */
+    public void await(long index, LongSupplier last, long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            CompletableFuture<Void> tick = next; //Taken before the index is read, so a tick in between is not missed
+            long remaining = deadline - System.nanoTime();
+            if (last.getAsLong() != index || remaining <= 0) {
+                return;
+            }
+            try {
+                tick.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                return; //Never completed exceptionally
+            }
+        }
+    }
+
+}
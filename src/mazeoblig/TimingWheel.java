@@ -0,0 +1,189 @@
+package mazeoblig;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel that runs tasks after a delay. Time is divided into ticks of a fixed duration and the wheel has
+ * a fixed amount of slots, a task that is due in n ticks is put in the slot n ticks ahead of the current one together
+ * with how many full rotations of the wheel are left before it is due. Every tick a single thread expires every due
+ * task in the current slot at once and hands them to an {@link Executor}, so the amount of tasks that run at the same
+ * time is bounded by that executor.
+ *
+ * Scheduling and cancelling only add the task to a queue and take constant time regardless of how many tasks are
+ * scheduled. The slots are only touched by the wheel thread, which moves scheduled tasks into their slot and unlinks
+ * cancelled tasks from theirs at the start of every tick. Tasks are run at most one tick late.
+ */
+public class TimingWheel {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private long tickNanos; //The duration of a tick
+    private Task[] slots; //The head of the list of tasks in every slot
+    private long tick; //The amount of ticks since the wheel was started
+
+    private Queue<Task> scheduled = new ConcurrentLinkedQueue<>(); //Tasks waiting to be put in their slot
+    private Queue<Task> cancelled = new ConcurrentLinkedQueue<>(); //Tasks waiting to be unlinked from their slot
+    private Executor executor; //Runs the expired tasks
+
+    private long start; //The time the wheel was started at, from {@link System#nanoTime()}
+
+    /**
+     * Constructs and starts a timing wheel
+     *
+     * @param tickDuration the duration of a tick, which is the precision of the wheel
+     * @param unit the unit of the tick duration
+     * @param slots the amount of slots, a wheel rotation is this many ticks
+     * @param executor the executor that runs expired tasks
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int slots, Executor executor) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.slots = new Task[slots];
+        this.executor = executor;
+
+        start = System.nanoTime();
+        Thread thread = new Thread(this::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task to run after a delay
+     *
+     * @param runnable the task
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the scheduled task, which can be cancelled
+     */
+    public Task schedule(Runnable runnable, long delay, TimeUnit unit) {
+        Task task = new Task(runnable, System.nanoTime() + unit.toNanos(delay));
+        scheduled.add(task);
+        return task;
+    }
+
+    /**
+     * Run by the wheel thread. Sleeps until the end of each tick and then processes it.
+     */
+    private void run() {
+        while (true) {
+            long deadline = start + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            unlinkCancelled();
+            placeScheduled();
+            expire(slots[(int) (tick % slots.length)]);
+            tick++;
+        }
+    }
+
+    private void unlinkCancelled() {
+        Task task;
+        while ((task = cancelled.poll()) != null) {
+            if (task.slot >= 0) {
+                unlink(task);
+            }
+        }
+    }
+
+    /**
+     * Puts every newly scheduled task in the slot of the tick it is due in, or the current slot if it is already due
+     */
+    private void placeScheduled() {
+        Task task;
+        while ((task = scheduled.poll()) != null) {
+            if (task.state.get() != WAITING) {
+                continue; //Cancelled before it was placed
+            }
+
+            long due = Math.max((task.deadline - start) / tickNanos, tick);
+            task.rounds = (due - tick) / slots.length;
+            task.slot = (int) (due % slots.length);
+
+            task.next = slots[task.slot];
+            if (task.next != null) {
+                task.next.previous = task;
+            }
+            slots[task.slot] = task;
+        }
+    }
+
+    /**
+     * Runs every task in a slot that is due in this rotation, and counts down the rounds of the rest
+     */
+    private void expire(Task task) {
+        while (task != null) {
+            Task next = task.next;
+            if (task.rounds <= 0) {
+                unlink(task);
+                if (task.state.compareAndSet(WAITING, EXPIRED)) {
+                    executor.execute(task.runnable);
+                }
+            } else {
+                task.rounds--;
+            }
+            task = next;
+        }
+    }
+
+    private void unlink(Task task) {
+        if (task.previous != null) {
+            task.previous.next = task.next;
+        } else {
+            slots[task.slot] = task.next;
+        }
+        if (task.next != null) {
+            task.next.previous = task.previous;
+        }
+        task.previous = null;
+        task.next = null;
+        task.slot = -1;
+    }
+
+    /**
+     * A task scheduled in a {@link TimingWheel}
+     */
+    public class Task {
+
+        private Runnable runnable;
+        private long deadline; //When the task is due, from {@link System#nanoTime()}
+        private AtomicInteger state = new AtomicInteger(WAITING);
+
+        //Only accessed by the wheel thread
+        private long rounds; //How many more rotations of the wheel before the task is due
+        private int slot = -1; //The slot the task is in, or -1 if it is not in a slot
+        private Task previous;
+        private Task next;
+
+        private Task(Runnable runnable, long deadline) {
+            this.runnable = runnable;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this task so that it will not run, if it has not already run
+         *
+         * @return whether or not the task was cancelled before it ran
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+}
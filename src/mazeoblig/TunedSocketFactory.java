@@ -0,0 +1,415 @@
+package mazeoblig;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The sockets that every remote object of this program is exported with, both on the server and on the clients. The
+ * factory is sent to the other side inside every stub, so whoever calls a remote object connects to it with the
+ * settings it was exported with, no matter how the caller itself is configured.
+ *
+ * The sockets are created with TCP_NODELAY and SO_KEEPALIVE, which RMI also sets on its own connections, and with send
+ * and receive buffers of a given size so that large transfers like the maze need fewer round trips.
+ *
+ * The sockets can also compress large messages. Everything written to such a socket is collected until it is flushed,
+ * which RMI does after every call and every result, and is then written as a frame with its length in front. A frame
+ * that is at least as large as the threshold is compressed with deflate if that makes it smaller, so the small calls
+ * that make up most of the traffic are sent as they are while the maze and the player map shrink to a fraction.
+ *
+ * The settings used for new exports are set once at startup with {@link #setDefault}.
+ */
+public class TunedSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+
+    public static final int NEVER = -1; //The compression threshold that turns compression off
+
+    private static final int FRAME_SIZE = 1 << 16; //The largest amount of data in a frame, larger writes are split up
+    private static final int COMPRESSED = 0x80000000; //The bit of the length of a frame that marks it as compressed
+
+    private static TunedSocketFactory defaultFactory = new TunedSocketFactory(0, NEVER);
+
+    private int bufferSize; //The size of the send and receive buffers of each socket, or 0 for the system default
+    private int compressThreshold; //The smallest frame to compress, or NEVER
+
+    /**
+     * @param bufferSize the size of the send and receive buffers of each socket in bytes, or 0 for the system default
+     * @param compressThreshold the size in bytes of the smallest message to compress, or {@link #NEVER}
+     */
+    public TunedSocketFactory(int bufferSize, int compressThreshold) {
+        this.bufferSize = bufferSize;
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * @return the factory that remote objects are exported with
+     */
+    public static TunedSocketFactory getDefault() {
+        return defaultFactory;
+    }
+
+    /**
+     * Sets the factory that remote objects are exported with, must be called before any remote object is created
+     */
+    public static void setDefault(TunedSocketFactory factory) {
+        defaultFactory = factory;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = compressThreshold != NEVER ? new FramedSocket(compressThreshold) : new Socket();
+        configure(socket);
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket = compressThreshold != NEVER ? new FramedSocket(compressThreshold) : new Socket();
+                implAccept(socket);
+                configure(socket);
+                return socket;
+            }
+        };
+        if (bufferSize > 0) {
+            serverSocket.setReceiveBufferSize(bufferSize); //Must be set before binding to apply to accepted sockets
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    private void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        if (bufferSize > 0) {
+            socket.setSendBufferSize(bufferSize);
+            socket.setReceiveBufferSize(bufferSize);
+        }
+    }
+
+    /**
+     * RMI reuses the connections to an endpoint for every stub with an equal factory, so equal settings must be equal
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof TunedSocketFactory)) {
+            return false;
+        }
+        TunedSocketFactory factory = (TunedSocketFactory) other;
+        return factory.bufferSize == bufferSize && factory.compressThreshold == compressThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * bufferSize + compressThreshold;
+    }
+
+    /**
+     * A socket that writes and reads frames that are compressed if they are large enough
+     */
+    private static class FramedSocket extends Socket {
+
+        private int compressThreshold;
+        private FrameInputStream in;
+        private FrameOutputStream out;
+
+        private FramedSocket(int compressThreshold) {
+            this.compressThreshold = compressThreshold;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new FrameInputStream(super.getInputStream());
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new FrameOutputStream(super.getOutputStream(), compressThreshold);
+            }
+            return out;
+        }
+
+        /**
+         * Closes the socket and frees the native memory of the streams, RMI closes its connections by closing the
+         * socket rather than the streams
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (in != null) {
+                    in.release();
+                }
+                if (out != null) {
+                    out.release();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Collects what is written until it is flushed or a frame is full, and then writes it as one frame
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private OutputStream out;
+        private int compressThreshold;
+        private byte[] frame = new byte[4 + FRAME_SIZE]; //The length followed by what has been written so far
+        private int count; //How much has been written to the frame
+        private byte[] compressed = new byte[4 + FRAME_SIZE]; //The length followed by the compressed frame
+        private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private boolean released; //Whether the deflater has been ended
+
+        private FrameOutputStream(OutputStream out, int compressThreshold) {
+            this.out = out;
+            this.compressThreshold = compressThreshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == FRAME_SIZE) {
+                writeFrame();
+            }
+            frame[4 + count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == FRAME_SIZE) {
+                    writeFrame();
+                }
+                int n = Math.min(len, FRAME_SIZE - count);
+                System.arraycopy(b, off, frame, 4 + count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                out.close();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Frees the native memory of the deflater, which would otherwise only be freed when it is finalized
+         */
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                deflater.end();
+            }
+        }
+
+        /**
+         * Writes the frame with a single write, so it leaves in as few packets as possible
+         */
+        private void writeFrame() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            int length = count >= compressThreshold ? compress() : -1;
+            if (length >= 0) {
+                putLength(compressed, length | COMPRESSED);
+                out.write(compressed, 0, 4 + length);
+            } else {
+                putLength(frame, count);
+                out.write(frame, 0, 4 + count);
+            }
+            count = 0;
+        }
+
+        /**
+         * @return the length of the compressed frame, or -1 if it would not be smaller than the frame
+         */
+        private synchronized int compress() throws IOException {
+            if (released) {
+                throw new IOException("The connection is closed");
+            }
+            deflater.reset();
+            deflater.setInput(frame, 4, count);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < count) {
+                length += deflater.deflate(compressed, 4 + length, count - length);
+            }
+            return deflater.finished() && length < count ? length : -1;
+        }
+
+        private static void putLength(byte[] bytes, int length) {
+            bytes[0] = (byte) (length >>> 24);
+            bytes[1] = (byte) (length >>> 16);
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+        }
+
+    }
+
+    /**
+     * Reads the frames written by a {@link FrameOutputStream} and returns what was written to it
+     */
+    private static class FrameInputStream extends InputStream {
+
+        private InputStream in;
+        private byte[] frame = new byte[FRAME_SIZE]; //The frame that is being read
+        private int position; //How much of the frame has been read
+        private int limit; //The length of the frame
+        private byte[] compressed = new byte[FRAME_SIZE];
+        private byte[] header = new byte[4];
+        private Inflater inflater = new Inflater();
+        private boolean released; //Whether the inflater has been ended
+
+        private FrameInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !nextFrame()) {
+                return -1;
+            }
+            return frame[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !nextFrame()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(frame, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Frees the native memory of the inflater, which would otherwise only be freed when it is finalized
+         */
+        private synchronized void release() {
+            if (!released) {
+                released = true;
+                inflater.end();
+            }
+        }
+
+        /**
+         * Reads the next frame
+         *
+         * @return false if the connection was closed between frames
+         */
+        private boolean nextFrame() throws IOException {
+            do {
+                if (!readFully(header, 0, 4, true)) {
+                    return false;
+                }
+                int length = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+                boolean isCompressed = (length & COMPRESSED) != 0;
+                length &= ~COMPRESSED;
+                if (length > FRAME_SIZE) {
+                    throw new IOException("A frame of " + length + " bytes is larger than " + FRAME_SIZE);
+                }
+
+                if (isCompressed) {
+                    readFully(compressed, 0, length, false);
+                    inflate(length);
+                } else {
+                    readFully(frame, 0, length, false);
+                    limit = length;
+                }
+                position = 0;
+            } while (limit == 0);
+            return true;
+        }
+
+        /**
+         * Inflates a compressed frame of a given length from {@link #compressed} into {@link #frame}
+         */
+        private synchronized void inflate(int length) throws IOException {
+            if (released) {
+                throw new IOException("The connection is closed");
+            }
+            inflater.reset();
+            inflater.setInput(compressed, 0, length);
+            try {
+                limit = 0;
+                while (!inflater.finished() && limit < FRAME_SIZE) {
+                    int n = inflater.inflate(frame, limit, FRAME_SIZE - limit);
+                    if (n == 0 && inflater.needsInput()) {
+                        throw new IOException("A compressed frame ended early");
+                    }
+                    limit += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("A compressed frame is corrupt", e);
+            }
+        }
+
+        /**
+         * @param atFrame whether the read is at the start of a frame, where the connection may be closed
+         * @return false if the connection was closed before anything was read and atFrame is true
+         */
+        private boolean readFully(byte[] b, int off, int len, boolean atFrame) throws IOException {
+            int read = 0;
+            while (read < len) {
+                int n = in.read(b, off + read, len - read);
+                if (n < 0) {
+                    if (atFrame && read == 0) {
+                        return false;
+                    }
+                    throw new EOFException("The connection was closed in the middle of a frame");
+                }
+                read += n;
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package simulator;
+
+/**
+ * One shared {@link PositionInMaze} for every cell of a maze, so that code that moves players around can use the same
+ * instances over and over instead of creating a new position for every step. The positions are created the first time
+ * they are asked for.
+ */
+public class PositionCache {
+
+    private int width;
+    private int height;
+    private PositionInMaze[] positions; //The position of every cell by x * height + y, null if not created yet
+
+    /**
+     * @param width the width of the maze
+     * @param height the height of the maze
+     */
+    public PositionCache(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.positions = new PositionInMaze[width * height];
+    }
+
+    /**
+     * Returns the position of a cell, or a new position if the cell is outside of the maze
+     *
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the position
+     */
+    public PositionInMaze get(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return new PositionInMaze(x, y);
+        }
+        int index = x * height + y;
+        PositionInMaze position = positions[index];
+        if (position == null) { //Two threads may both create it, but they are equal so it does not matter which is kept
+            position = new PositionInMaze(x, y);
+            positions[index] = position;
+        }
+        return position;
+    }
+
+    /**
+     * @param packed packed coordinates, see {@link PositionInMaze#pack}
+     * @return the position of the coordinates
+     */
+    public PositionInMaze get(int packed) {
+        return get(PositionInMaze.getX(packed), PositionInMaze.getY(packed));
+    }
+
+}
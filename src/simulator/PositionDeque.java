@@ -0,0 +1,92 @@
+package simulator;
+
+/**
+ * A deque of positions packed into ints, see {@link PositionInMaze#pack}, stored in a ring buffer that only grows. A
+ * virtual user that keeps taking positions from the front and adding new loops at the back allocates nothing once the
+ * buffer is large enough for the longest loop.
+ */
+public class PositionDeque {
+
+    private int[] positions; //The ring buffer, its length is always a power of two
+    private int head; //The index of the first position
+    private int size;
+
+    public PositionDeque() {
+        positions = new int[16];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the first position without removing it
+     * @throws IllegalStateException if the deque is empty
+     */
+    public int peek() {
+        if (size == 0) {
+            throw new IllegalStateException("The deque is empty");
+        }
+        return positions[head];
+    }
+
+    /**
+     * @return the first position after removing it
+     * @throws IllegalStateException if the deque is empty
+     */
+    public int poll() {
+        int position = peek();
+        head = (head + 1) & (positions.length - 1);
+        size--;
+        return position;
+    }
+
+    /**
+     * Adds a position at the back
+     */
+    public void add(int position) {
+        ensureCapacity(size + 1);
+        positions[(head + size) & (positions.length - 1)] = position;
+        size++;
+    }
+
+    /**
+     * Adds every position of a path at the back, in order
+     */
+    public void addAll(int[] path) {
+        ensureCapacity(size + path.length);
+        for (int position : path) {
+            positions[(head + size) & (positions.length - 1)] = position;
+            size++;
+        }
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Grows the buffer to the next power of two that fits the capacity, moving the positions to the start of it
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= positions.length) {
+            return;
+        }
+        int length = positions.length;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        int[] grown = new int[length];
+        for (int i = 0; i < size; i++) {
+            grown[i] = positions[(head + i) & (positions.length - 1)];
+        }
+        positions = grown;
+        head = 0;
+    }
+
+}
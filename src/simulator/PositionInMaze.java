@@ -2,28 +2,78 @@ package simulator;
 
 import java.io.Serializable;
 
+/**
+ * A position in the maze. The coordinates are packed into a single int, with x in the upper and y in the lower 16 bits,
+ * so a position is one field and can be passed around as a plain int where no object is needed, see {@link #pack}.
+ *
+ * Positions are immutable and equal if their coordinates are equal, so the instances of a {@link PositionCache} can be
+ * shared instead of creating a new position for every step.
+ */
 public class PositionInMaze implements Serializable {
-	private int xpos, ypos;
+	private final int packed; //x << 16 | y
 	
 	public PositionInMaze(int xp, int yp) {
-		xpos = xp;
-		ypos = yp;
+		packed = pack(xp, yp);
+	}
+
+	/**
+	 * @return the position of packed coordinates, see {@link #pack}
+	 */
+	public static PositionInMaze unpack(int packed) {
+		return new PositionInMaze(getX(packed), getY(packed));
+	}
+
+	/**
+	 * Packs the coordinates of a position into a single int
+	 *
+	 * @param x the x coordinate, between 0 and 65535
+	 * @param y the y coordinate, between 0 and 65535
+	 * @return the packed coordinates
+	 */
+	public static int pack(int x, int y) {
+		return x << 16 | y & 0xFFFF;
+	}
+
+	/**
+	 * @return the x coordinate of packed coordinates
+	 */
+	public static int getX(int packed) {
+		return packed >>> 16;
+	}
+
+	/**
+	 * @return the y coordinate of packed coordinates
+	 */
+	public static int getY(int packed) {
+		return packed & 0xFFFF;
 	}
 
 	public int getXpos() {
-		return xpos;
+		return getX(packed);
 	}
 
 	public int getYpos() {
-		return ypos;
+		return getY(packed);
+	}
+
+	/**
+	 * @return the coordinates of this position packed into a single int, see {@link #pack}
+	 */
+	public int getPacked() {
+		return packed;
 	}
 	
 	public String toString() {
-		return "xpos: " + xpos + "\typos: " + ypos;
+		return "xpos: " + getXpos() + "\typos: " + getYpos();
 	}
 
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PositionInMaze && ((PositionInMaze) other).packed == packed;
+    }
+
     @Override
     public int hashCode() {
-        return (xpos + "" + ypos).hashCode();
+        return packed;
     }
 }
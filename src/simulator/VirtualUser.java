@@ -4,7 +4,6 @@ import mazeoblig.Box;
 import mazeoblig.BoxMazeInterface;
 
 import java.util.Random;
-import java.util.Stack;
 import java.util.Arrays;
 /**
  * Instansen av denne klassen tilbyr i praksis tre metoder til programmereren. Disse er:
@@ -34,12 +33,12 @@ public class VirtualUser {
 
 	int xp;
 	int yp;
-	boolean found = false;
 
 	
-	private Stack <PositionInMaze> myWay = new Stack<PositionInMaze>();
 	private PositionInMaze [] FirstIteration; 
 	private PositionInMaze [] NextIteration; 
+	private int [] FirstPath; //FirstIteration packed, see PositionInMaze.pack
+	private int [] NextPath; //NextIteration packed
 
 	/**
 	 * Konstrukt�r
@@ -87,72 +86,46 @@ public class VirtualUser {
 	
 	/**
 	 * L�ser maze ut fra en tilfeldig posisjon i maze
+	 *
+	 * A depth-first search that keeps its own stack instead of recursing, so a large maze cannot overflow the stack of
+	 * the thread, and that walks the boxes with {@link Box#getOpenDirections()} so it creates nothing per box.
+	 * @return the path from (xp, yp) to the exit as packed positions, or only (xp, yp) if there is no way out
 	 */
-	private void solveMaze() {
-		found = false;
-		// Siden posisjonen er tilfeldig valgt risikerer man at man kj�rer i en br�nn
-		// Av denne grunn .... det er noe galt med kallet under
-		myWay.push(new PositionInMaze(xp, yp));
-		backtrack(maze[xp][yp], maze[1][0]);
-	}
+	private int [] solveMaze() {
+		int [] path = new int[64]; // The positions from the start to the current box
+		int [] next = new int[64]; // The next direction to try from each box on the path
+		int [] back = new int[64]; // The direction each box on the path was entered from, or -1 for the start
+		int depth = 0;
 
-	/**
-	 * Selve backtracking-algoritmen som brukes for � finne l�sningen
-	 * @param b Box
-	 * @param from Box
-	 */
-	private void backtrack(Box b, Box from) {
-		// Aller f�rst - basistilfellet, slik at vi kan returnere
-		// Under returen skrives det med R�dt
-		if ((xp == dim - 2) && (yp == dim - 2)) {
-			found = true;
-			// Siden vi tegner den "riktige" veien under returen opp gjennom
-			// Java's runtime-stack, s� legger vi utgang inn sist ...
-			return;
-		}
-		// Henter boksene som det finnes veier til fra den boksen jeg st�r i
-		Box [] adj = b.getAdjecent();
-		// Og sjekker om jeg kan g� de veiene
-		for (int i = 0; i < adj.length; i++) {
-			// Hvis boksen har en utganger som ikke er lik den jeg kom fra ...
-			if (!(adj[i].equals(from))) {
-				adjustXYBeforeBacktrack(b, adj[i]);
-				myWay.push(new PositionInMaze(xp, yp));
-				backtrack(adj[i], b);
-				// Hvis algoritmen har funnet veien ut av labyrinten, s� inneholder stacken (myWay) 
-				// veien fra det tilfeldige startpunktet og ut av labyrinten
-				if (!found) myWay.pop();
-				adjustXYAfterBacktrack(b, adj[i]);
+		path[0] = PositionInMaze.pack(xp, yp);
+		back[0] = (xp == 1 && yp == 1) ? Box.UP : -1; // Never walk out of the entrance
+		while (depth >= 0) {
+			int x = PositionInMaze.getX(path[depth]);
+			int y = PositionInMaze.getY(path[depth]);
+			if ((x == dim - 2) && (y == dim - 2)) {
+				return Arrays.copyOf(path, depth + 1);
 			}
-			// Hvis veien er funnet, er det ingen grunn til � fortsette
-			if (found) {
-				break;
-			}
-		}
-	}
 
-	/**
-	 * Oppdatere x og y i labyrinten f�r backtracking kalles
-	 * @param from Box
-	 * @param to Box
-	 */
-	private void adjustXYBeforeBacktrack(Box from, Box to) {
-		if ((from.getUp() != null) && (to.equals(from.getUp()))) yp--;
-		if ((from.getDown() != null) && (to.equals(from.getDown()))) yp++;
-		if ((from.getLeft() != null) && (to.equals(from.getLeft()))) xp--;
-		if ((from.getRight() != null) && (to.equals(from.getRight()))) xp++;
-	}
+			int open = maze[x][y].getOpenDirections();
+			if (back[depth] >= 0) open &= ~(1 << back[depth]);
+			int direction = next[depth];
+			while (direction <= Box.LEFT && (open & 1 << direction) == 0) direction++;
+			if (direction > Box.LEFT) {
+				depth--; // A dead end, go back
+				continue;
+			}
+			next[depth] = direction + 1;
 
-	/**
-	 * Oppdatere x og y i labyrinten etter at backtracking er kalt
-	 * @param from Box
-	 * @param to Box
-	 */
-	private void adjustXYAfterBacktrack(Box from, Box to) {
-		if ((from.getUp() != null) && (to.equals(from.getUp()))) yp++;
-		if ((from.getDown() != null) && (to.equals(from.getDown()))) yp--;
-		if ((from.getLeft() != null) && (to.equals(from.getLeft()))) xp++;
-		if ((from.getRight() != null) && (to.equals(from.getRight()))) xp--;
+			if (++depth == path.length) {
+				path = Arrays.copyOf(path, depth * 2);
+				next = Arrays.copyOf(next, depth * 2);
+				back = Arrays.copyOf(back, depth * 2);
+			}
+			path[depth] = PositionInMaze.pack(x + Box.getDeltaX(direction), y + Box.getDeltaY(direction));
+			next[depth] = Box.DOWN;
+			back[depth] = direction ^ 2;
+		}
+		return new int[] { PositionInMaze.pack(xp, yp) };
 	}
 
 	/**
@@ -160,10 +133,10 @@ public class VirtualUser {
 	 * @return [] PositionInMaze 
 	 */
 	private PositionInMaze [] solve() {
-		solveMaze();
-		PositionInMaze [] pos = new PositionInMaze[myWay.size()];
-		for (int i = 0; i < myWay.size(); i++)
-			pos[i] = myWay.get(i);
+		int [] way = solveMaze();
+		PositionInMaze [] pos = new PositionInMaze[way.length];
+		for (int i = 0; i < way.length; i++)
+			pos[i] = PositionInMaze.unpack(way[i]);
 		return pos;
 	}
 
@@ -199,11 +172,7 @@ public class VirtualUser {
 	 */
 	@SuppressWarnings("unused")
 	private PositionInMaze [] solveFull() {
-		solveMaze();
-		PositionInMaze [] pos = new PositionInMaze[myWay.size()];
-		for (int i = 0; i < myWay.size(); i++)
-			pos[i] = myWay.get(i);
-		return pos;
+		return solve();
 	}
 
 	/**
@@ -214,6 +183,7 @@ public class VirtualUser {
 		PositionInMaze [] outOfMaze = solve();
 		PositionInMaze [] backToStart = roundAbout();
 		FirstIteration = VirtualUser.concat(outOfMaze, backToStart);
+		FirstPath = VirtualUser.pack(FirstIteration);
 	}
 
 	/**
@@ -223,10 +193,10 @@ public class VirtualUser {
 	private void makeNextIteration() {
 		// Tvinger posisjonen til � v�re ved inngang av Maze
 		xp = 1; yp = 1;
-		myWay = new Stack<PositionInMaze>();
 		PositionInMaze [] outOfMaze = solve();
 		PositionInMaze [] backToStart = roundAbout();
 		NextIteration = VirtualUser.concat(outOfMaze, backToStart);
+		NextPath = VirtualUser.pack(NextIteration);
 	}
 
 	/**
@@ -242,6 +212,18 @@ public class VirtualUser {
 		return result;
 	}
 
+	/**
+	 * Packs every position of a path into an int, see {@link PositionInMaze#pack}
+	 * @param path
+	 * @return
+	 */
+	private static int [] pack(PositionInMaze [] path) {
+		int [] packed = new int[path.length];
+		for (int i = 0; i < path.length; i++)
+			packed[i] = path[i].getPacked();
+		return packed;
+	}
+
 	/**
 	 * Returnerer en PositionInMaze [] som inneholder x- og y-posisjonene som 
 	 * en virituell spiller benytter for � finne veien ut av labyrinten ut fra
@@ -261,4 +243,22 @@ public class VirtualUser {
 	public PositionInMaze [] getFirstIterationLoop() {
 		return FirstIteration;
 	}
+
+	/**
+	 * The same path as {@link #getIterationLoop()}, with each position packed into an int. The array is shared, so it
+	 * must not be changed.
+	 * @return
+	 */
+	public int [] getIterationPath() {
+		return NextPath;
+	}
+
+	/**
+	 * The same path as {@link #getFirstIterationLoop()}, with each position packed into an int. The array is shared,
+	 * so it must not be changed.
+	 * @return
+	 */
+	public int [] getFirstIterationPath() {
+		return FirstPath;
+	}
 }
@@ -0,0 +1,74 @@
+package client;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OccupancyPyramidTest {
+
+    /**
+     * @return the sum of the cells of the maze that a block on a level covers
+     */
+    private static int sum(int[][] map, int level, int x, int y) {
+        int sum = 0;
+        for (int i = x << level; i < Math.min((x + 1) << level, map.length); i++) {
+            for (int j = y << level; j < Math.min((y + 1) << level, map.length); j++) {
+                sum += map[i][j];
+            }
+        }
+        return sum;
+    }
+
+    private static void assertSums(int[][] map, OccupancyPyramid pyramid) {
+        for (int l = 0; l < pyramid.getLevels(); l++) {
+            for (int x = 0; x < pyramid.getWidth(l); x++) {
+                for (int y = 0; y < pyramid.getWidth(l); y++) {
+                    assertEquals(sum(map, l, x, y), pyramid.get(l, x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void theLevelsHalveUntilOneBlockCoversTheMaze() {
+        OccupancyPyramid pyramid = new OccupancyPyramid(50);
+
+        assertEquals(7, pyramid.getLevels());
+        assertEquals(50, pyramid.getWidth(0));
+        assertEquals(25, pyramid.getWidth(1));
+        assertEquals(13, pyramid.getWidth(2));
+        assertEquals(1, pyramid.getWidth(6));
+    }
+
+    @Test
+    public void everyBlockIsTheSumOfTheCellsItCovers() {
+        int[][] map = new int[37][37];
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            map[random.nextInt(37)][random.nextInt(37)] += 1;
+        }
+        OccupancyPyramid pyramid = new OccupancyPyramid(37);
+        pyramid.setMap(copy(map));
+        assertSums(map, pyramid);
+
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(37);
+            int y = random.nextInt(37);
+            map[x][y] = random.nextInt(4);
+            pyramid.set(x, y, map[x][y]);
+        }
+        assertSums(map, pyramid);
+        assertEquals(sum(map, 6, 0, 0), pyramid.get(pyramid.getLevels() - 1, 0, 0));
+    }
+
+    private static int[][] copy(int[][] map) {
+        int[][] copy = new int[map.length][];
+        for (int x = 0; x < map.length; x++) {
+            copy[x] = map[x].clone();
+        }
+        return copy;
+    }
+
+}
@@ -0,0 +1,112 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChangeHistoryTest {
+
+    private static MapChangeEvent event(long index, int x, int y, int difference) {
+        MapChangeEvent event = new MapChangeEvent(1);
+        event.add(x, y, difference);
+        event.setIndex(index);
+        return event;
+    }
+
+    @Test
+    public void getReturnsTheEventsInOrder() {
+        ChangeHistory history = new ChangeHistory(4);
+        MapChangeEvent[] added = new MapChangeEvent[3];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = event(i + 1, i, i, 1);
+            history.add(added[i]);
+        }
+
+        assertArrayEquals(added, history.get(1, 3));
+        assertArrayEquals(new MapChangeEvent[]{added[1]}, history.get(2, 2));
+        assertEquals(3, history.getNewestIndex());
+    }
+
+    @Test
+    public void getReturnsNullForEventsThatHaveNotHappened() {
+        ChangeHistory history = new ChangeHistory(4);
+        history.add(event(1, 0, 0, 1));
+
+        assertNull(history.get(1, 2));
+        assertNull(history.get(2, 2));
+        assertNull(history.get(2, 1));
+    }
+
+    @Test
+    public void theOldestEventsAreEvictedOnceTheRingIsFull() {
+        ChangeHistory history = new ChangeHistory(4);
+        for (int i = 1; i <= 6; i++) {
+            history.add(event(i, 0, i, 1));
+        }
+
+        assertNull(history.get(2, 6));
+        MapChangeEvent[] retained = history.get(3, 6);
+        assertNotNull(retained);
+        for (int i = 0; i < retained.length; i++) {
+            assertEquals(i + 3, retained[i].getIndex());
+        }
+    }
+
+    @Test
+    public void aRecoveredHistoryStartsAtItsFirstIndex() {
+        ChangeHistory history = new ChangeHistory(4);
+        history.add(event(100, 0, 0, 1));
+        history.add(event(101, 0, 0, 1));
+
+        assertNull(history.get(99, 101)); //Before the server was recovered, not evicted from the ring
+        assertEquals(2, history.get(100, 101).length);
+    }
+
+    @Test
+    public void compactSinceMergesEveryLaterEvent() {
+        ChangeHistory history = new ChangeHistory(8);
+        history.add(event(1, 1, 1, 1));
+        history.add(event(2, 1, 1, -1)); //Cancels out the first
+        history.add(event(3, 2, 3, 1));
+        history.add(event(4, 2, 3, 1));
+
+        MapChangeEvent compacted = history.compactSince(1);
+        assertEquals(1, compacted.getBaseIndex());
+        assertEquals(4, compacted.getIndex());
+        assertEquals(2, compacted.size()); //(1, 1) -1 and (2, 3) +2
+        int[] total = new int[2];
+        for (int i = 0; i < compacted.size(); i++) {
+            int[] change = compacted.get(i);
+            total[change[0] - 1] += change[2];
+        }
+        assertArrayEquals(new int[]{-1, 2}, total);
+
+        MapChangeEvent all = history.compactSince(0);
+        assertEquals(1, all.size()); //Everything on (1, 1) cancels out
+        assertArrayEquals(new int[]{2, 3, 2}, all.get(0));
+    }
+
+    @Test
+    public void compactSinceTheNewestIndexIsEmpty() {
+        ChangeHistory history = new ChangeHistory(4);
+        history.add(event(1, 0, 0, 1));
+
+        MapChangeEvent compacted = history.compactSince(1);
+        assertEquals(0, compacted.size());
+        assertEquals(1, compacted.getIndex());
+        assertEquals(1, compacted.getBaseIndex());
+    }
+
+    @Test
+    public void compactSinceReturnsNullOnceEventsAreEvictedOrInTheFuture() {
+        ChangeHistory history = new ChangeHistory(2);
+        for (int i = 1; i <= 4; i++) {
+            history.add(event(i, 0, 0, 1));
+        }
+
+        assertNull(history.compactSince(1)); //Event 2 has been evicted
+        assertNotNull(history.compactSince(2));
+        assertNull(history.compactSince(5));
+    }
+
+}
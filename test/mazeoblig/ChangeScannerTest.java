@@ -0,0 +1,66 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ChangeScannerTest {
+
+    @Test
+    public void theChangedCellsOfABufferAreScannedInOrder() {
+        ChangeScanner scanner = new ChangeScanner(10, ForkJoinPool.commonPool());
+        ChangeBuffer buffer = new ChangeBuffer(100, 50);
+        buffer.add(42, 1);
+        buffer.add(7, -1);
+        buffer.add(42, 2);
+        buffer.add(13, 1);
+        buffer.add(13, -1); //Goes back to 0
+        buffer.add(13, 1); //And leaves it again, so it is remembered twice
+
+        assertArrayEquals(new int[]{7, -1, 13, 1, 42, 3}, scanner.scan(buffer));
+        assertArrayEquals(new int[100], buffer.getCells());
+        assertEquals(0, buffer.getDirtyCount());
+        assertEquals(0, scanner.scan(buffer).length);
+    }
+
+    @Test
+    public void aBufferThatOverflowsIsScannedWhole() {
+        ChangeScanner scanner = new ChangeScanner(10, ForkJoinPool.commonPool());
+        ChangeBuffer buffer = new ChangeBuffer(100, 2);
+        buffer.add(99, 1);
+        buffer.add(50, 1);
+        buffer.add(3, 1);
+
+        assertTrue(buffer.isOverflowed());
+        assertArrayEquals(new int[]{3, 1, 50, 1, 99, 1}, scanner.scan(buffer));
+        assertFalse(buffer.isOverflowed());
+        assertArrayEquals(new int[100], buffer.getCells());
+    }
+
+    @Test
+    public void aLargeMapIsScannedTheSameAsOnOneThread() {
+        int width = 1000;
+        int[] changes = new int[width * width];
+        int[] expected = new int[2000];
+        Random random = new Random(1);
+        int cell = 0;
+        for (int i = 0; i < expected.length; i += 2) {
+            cell += 1 + random.nextInt(900);
+            changes[cell] = random.nextBoolean() ? 1 : -2;
+            expected[i] = cell;
+            expected[i + 1] = changes[cell];
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(expected, new ChangeScanner(width, pool).scan(changes));
+        } finally {
+            pool.shutdown();
+        }
+        assertArrayEquals(new int[width * width], changes);
+    }
+
+}
@@ -0,0 +1,65 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkedMazeTest {
+
+    private static ChunkedMaze.Window window(int width, long seed, int capacity) {
+        int chunkSize = ChunkedMaze.getChunkSize(width - 2, 16);
+        return new ChunkedMaze(seed, chunkSize, capacity).getWindow(width);
+    }
+
+    @Test
+    public void aWindowIsAMazeOfItsOwn() {
+        for (int width : new int[]{18, 34, 50, 66}) {
+            for (long seed = 1; seed < 6; seed++) {
+                EllerMazeTest.assertPerfect(window(width, seed, 9).getWalls(0, 0, width, width));
+            }
+        }
+    }
+
+    @Test
+    public void theBoxesOfAWindowMatchTheBoxesBuiltFromItsWalls() {
+        ChunkedMaze.Window window = window(50, 3, 9);
+        int[][] walls = window.getWalls(0, 0, 50, 50);
+        Box[][] boxes = BoxMaze.build(walls);
+
+        for (int x = 0; x < 50; x++) {
+            for (int y = 0; y < 50; y++) {
+                assertEquals("(" + x + ", " + y + ")", boxes[x][y].getOpenDirections(), window.getOpenDirections(x, y));
+            }
+        }
+        assertEquals(MazeInfo.of(walls).getHash(), window.getInfo().getHash());
+    }
+
+    @Test
+    public void chunksThatAreThrownAwayAreGeneratedAgainAsTheyWere() {
+        int[][] kept = window(66, 4, 64).getWalls(0, 0, 66, 66);
+        ChunkedMaze small = new ChunkedMaze(4, ChunkedMaze.getChunkSize(64, 16), 2);
+        int[][] regenerated = small.getWindow(66).getWalls(0, 0, 66, 66);
+
+        assertArrayEquals(kept, regenerated);
+        assertTrue(small.getChunkCount() <= 2);
+    }
+
+    @Test
+    public void aPieceOfTheWallsIsTheSameAsTheWholeWalls() {
+        ChunkedMaze.Window window = window(34, 2, 9);
+        int[][] walls = window.getWalls(0, 0, 34, 34);
+        int[][] piece = window.getWalls(3, 5, 7, 9);
+
+        for (int x = 0; x < 7; x++) {
+            for (int y = 0; y < 9; y++) {
+                assertEquals(walls[3 + x][5 + y], piece[x][y]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aPieceOutsideOfTheWindowIsRejected() {
+        window(18, 1, 9).getWalls(10, 10, 9, 1);
+    }
+
+}
@@ -0,0 +1,124 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EllerMazeTest {
+
+    private static final int BORDER = 32;
+
+    /**
+     * Generates every row of a maze into wall values indexed by x and then y
+     */
+    static int[][] generate(int width, int height, long seed) {
+        EllerMaze maze = new EllerMaze(width, height, new Random(seed));
+        int[][] walls = new int[width][height];
+        int[] row = new int[width];
+        for (int y = 0; maze.hasNextRow(); y++) {
+            maze.nextRow(row);
+            for (int x = 0; x < width; x++) {
+                walls[x][y] = row[x];
+            }
+        }
+        return walls;
+    }
+
+    /**
+     * Checks that the walls of neighbouring boxes agree and that every box of the maze is reached from the entrance by
+     * exactly one way, which is the case if every box is reached and there is one opening less than there are boxes
+     */
+    static void assertPerfect(int[][] walls) {
+        int width = walls.length;
+        int height = walls[0].length;
+        for (int x = 0; x < width; x++) {
+            assertEquals(BORDER, walls[x][0]);
+            assertEquals(BORDER, walls[x][height - 1]);
+        }
+        for (int y = 0; y < height; y++) {
+            assertEquals(BORDER, walls[0][y]);
+            assertEquals(BORDER, walls[width - 1][y]);
+        }
+
+        int openings = 0;
+        for (int x = 1; x < width - 1; x++) {
+            for (int y = 1; y < height - 1; y++) {
+                if (x < width - 2) {
+                    assertEquals("(" + x + ", " + y + ")", (walls[x][y] & 8) != 0, (walls[x + 1][y] & 4) != 0);
+                    openings += (walls[x][y] & 8) == 0 ? 1 : 0;
+                }
+                if (y < height - 2) {
+                    assertEquals("(" + x + ", " + y + ")", (walls[x][y] & 2) != 0, (walls[x][y + 1] & 1) != 0);
+                    openings += (walls[x][y] & 2) == 0 ? 1 : 0;
+                }
+            }
+        }
+        int boxes = (width - 2) * (height - 2);
+        assertEquals(boxes - 1, openings);
+
+        boolean[][] reached = new boolean[width][height];
+        Deque<int[]> queue = new ArrayDeque<>();
+        queue.add(new int[]{1, 1});
+        reached[1][1] = true;
+        int count = 0;
+        while (!queue.isEmpty()) {
+            int[] box = queue.poll();
+            int x = box[0];
+            int y = box[1];
+            count++;
+            int[][] neighbours = {{x, y - 1, 1}, {x, y + 1, 2}, {x - 1, y, 4}, {x + 1, y, 8}};
+            for (int[] neighbour : neighbours) {
+                int nx = neighbour[0];
+                int ny = neighbour[1];
+                if ((walls[x][y] & neighbour[2]) == 0 && walls[nx][ny] != BORDER && !reached[nx][ny]) {
+                    reached[nx][ny] = true;
+                    queue.add(new int[]{nx, ny});
+                }
+            }
+        }
+        assertEquals(boxes, count);
+    }
+
+    @Test
+    public void everyBoxIsReachedByExactlyOneWay() {
+        int[][] sizes = {{3, 3}, {4, 7}, {12, 5}, {50, 50}, {101, 33}};
+        for (int[] size : sizes) {
+            for (long seed = 0; seed < 10; seed++) {
+                assertPerfect(generate(size[0], size[1], seed));
+            }
+        }
+    }
+
+    @Test
+    public void theMazeHasAnEntranceAndAnExit() {
+        int[][] walls = generate(20, 30, 1);
+
+        assertEquals(0, walls[1][1] & 1);
+        assertEquals(0, walls[18][28] & 2);
+    }
+
+    @Test
+    public void theSameSeedGivesTheSameMaze() {
+        assertArrayEquals(generate(40, 40, 7), generate(40, 40, 7));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noRowsAreGeneratedAfterTheLast() {
+        EllerMaze maze = new EllerMaze(3, 3, new Random(0));
+        int[] row = new int[3];
+        while (maze.hasNextRow()) {
+            maze.nextRow(row);
+        }
+        maze.nextRow(row);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aMazeWithoutRoomForItsBorderIsRejected() {
+        new EllerMaze(2, 10, new Random(0));
+    }
+
+}
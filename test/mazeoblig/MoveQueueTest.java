@@ -0,0 +1,79 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MoveQueueTest {
+
+    private static final long LONG_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Submits a move from a new thread and returns once the thread is waiting for it to be applied
+     */
+    private static Thread submit(MoveQueue queue, int id, int x, AtomicBoolean accepted) throws InterruptedException {
+        Thread thread = new Thread(() -> accepted.set(queue.submit(id, id, x, 0, LONG_TIMEOUT)));
+        thread.start();
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    @Test
+    public void movesAreAppliedBySessionIdAndThenInTheOrderTheyWereSubmitted() throws InterruptedException {
+        MoveQueue queue = new MoveQueue();
+        int[][] submitted = {{7, 1}, {3, 1}, {10000, 1}, {7, 2}, {3, 2}, {7, 3}};
+        List<Thread> threads = new ArrayList<>();
+        for (int[] move : submitted) {
+            threads.add(submit(queue, move[0], move[1], new AtomicBoolean()));
+        }
+
+        List<String> applied = new ArrayList<>();
+        int moves = queue.apply((id, token, x, y) -> {
+            assertEquals(id, token);
+            applied.add(id + ":" + x);
+            return true;
+        });
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(submitted.length, moves);
+        assertEquals("[3:1, 3:2, 7:1, 7:2, 7:3, 10000:1]", applied.toString());
+        assertEquals(0, queue.apply((id, token, x, y) -> true));
+    }
+
+    @Test
+    public void theSubmitterGetsTheResultOfTheMove() throws InterruptedException {
+        MoveQueue queue = new MoveQueue();
+        AtomicBoolean first = new AtomicBoolean();
+        AtomicBoolean second = new AtomicBoolean(true);
+        Thread firstThread = submit(queue, 1, 1, first);
+        Thread secondThread = submit(queue, 2, 2, second);
+
+        queue.apply((id, token, x, y) -> id == 1);
+        firstThread.join();
+        secondThread.join();
+
+        assertTrue(first.get());
+        assertFalse(second.get());
+    }
+
+    @Test
+    public void aMoveThatTimesOutIsWithdrawnAndNeverApplied() {
+        MoveQueue queue = new MoveQueue();
+
+        assertFalse(queue.submit(4, 4, 1, 1, TimeUnit.MILLISECONDS.toNanos(5)));
+        assertEquals(0, queue.apply((id, token, x, y) -> {
+            fail("a withdrawn move was applied");
+            return true;
+        }));
+    }
+
+}
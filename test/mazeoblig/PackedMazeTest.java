@@ -0,0 +1,66 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PackedMazeTest {
+
+    private static byte[] write(int width, int height, long seed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PackedMaze.write(new EllerMaze(width, height, new Random(seed)), Channels.newChannel(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static int[][] read(byte[] bytes) throws IOException {
+        return PackedMaze.readWalls(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void aMazeSurvivesARoundTrip() throws IOException {
+        int[][] sizes = {{3, 3}, {10, 4}, {15, 21}}; //Including an odd width that leaves half a byte unused
+        for (int[] size : sizes) {
+            byte[] bytes = write(size[0], size[1], 3);
+
+            assertEquals(12 + (size[0] + 1) / 2 * size[1], bytes.length);
+            assertArrayEquals(EllerMazeTest.generate(size[0], size[1], 3), read(bytes));
+        }
+    }
+
+    @Test
+    public void theReaderReadsOneRowAtATime() throws IOException {
+        PackedMaze.Reader reader = new PackedMaze.Reader(Channels.newChannel(new ByteArrayInputStream(write(9, 6, 5))));
+        int[][] walls = EllerMazeTest.generate(9, 6, 5);
+
+        assertEquals(9, reader.getWidth());
+        assertEquals(6, reader.getHeight());
+        int[] row = new int[9];
+        for (int y = 0; y < 6; y++) {
+            assertTrue(reader.nextRow(row));
+            for (int x = 0; x < 9; x++) {
+                assertEquals(walls[x][y], row[x]);
+            }
+        }
+        assertFalse(reader.nextRow(row));
+    }
+
+    @Test(expected = EOFException.class)
+    public void aTruncatedMazeIsRejected() throws IOException {
+        byte[] bytes = write(10, 10, 0);
+        read(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void somethingElseThanAMazeIsRejected() throws IOException {
+        read(new byte[64]);
+    }
+
+}
@@ -0,0 +1,132 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.*;
+
+public class PlayerMapTest {
+
+    private static byte[] write(PlayerMap map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        map.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PlayerMap read(byte[] bytes) throws IOException {
+        return PlayerMap.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static void assertSameMap(int[][] expected, PlayerMap actual) {
+        assertEquals(expected.length, actual.getWidth());
+        for (int x = 0; x < expected.length; x++) {
+            assertArrayEquals(expected[x], actual.getMap()[x]);
+        }
+    }
+
+    @Test
+    public void aSparseMapSurvivesARoundTrip() throws IOException {
+        int[][] map = new int[100][100];
+        map[0][0] = 1;
+        map[3][97] = 5;
+        map[99][99] = 200;
+
+        PlayerMap read = read(write(new PlayerMap(map, 42)));
+
+        assertSameMap(map, read);
+        assertEquals(42, read.getIndex());
+        assertEquals(3, read.size());
+    }
+
+    @Test
+    public void aDenseMapIsEncodedAsRuns() throws IOException {
+        int[][] map = new int[100][100];
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                map[x][y] = x < 50 ? 1 : 2;
+            }
+        }
+        map[70][30] = 0;
+
+        byte[] bytes = write(new PlayerMap(map, 7));
+        PlayerMap read = read(bytes);
+
+        assertSameMap(map, read);
+        assertEquals(100 * 100 - 1, read.size());
+        assertTrue("runs should be far smaller than one entry per cell", bytes.length < 100);
+    }
+
+    @Test
+    public void anEmptyMapSurvivesARoundTrip() throws IOException {
+        int[][] map = new int[10][10];
+
+        PlayerMap read = read(write(new PlayerMap(map, 0)));
+
+        assertSameMap(map, read);
+        assertEquals(0, read.size());
+    }
+
+    @Test
+    public void aMapSurvivesJavaSerialization() throws IOException, ClassNotFoundException {
+        int[][] map = new int[20][20];
+        map[1][2] = 3;
+        map[19][0] = 1;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new PlayerMap(map, 9));
+        out.close();
+        PlayerMap read = (PlayerMap) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertSameMap(map, read);
+        assertEquals(9, read.getIndex());
+    }
+
+    @Test
+    public void applyMergesTheChangesWithTheOccupiedCells() {
+        int[][] map = new int[10][10];
+        map[2][2] = 1;
+        map[5][5] = 2;
+        MapChangeEvent change = new MapChangeEvent(3);
+        change.add(5, 5, -2);
+        change.add(0, 9, 1);
+        change.add(2, 2, 3);
+        change.setIndex(11);
+
+        PlayerMap applied = new PlayerMap(map, 10).apply(change);
+
+        int[][] expected = new int[10][10];
+        expected[2][2] = 4;
+        expected[0][9] = 1;
+        assertSameMap(expected, applied);
+        assertEquals(11, applied.getIndex());
+        assertEquals(2, applied.size());
+        assertEquals(2, map[5][5]);
+    }
+
+    @Test
+    public void varIntsAndZigZagSurviveARoundTrip() throws IOException {
+        int[] values = {0, 1, -1, 63, -64, 127, 128, 300, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : values) {
+            PlayerMap.writeVarInt(out, PlayerMap.zigZag(value));
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int value : values) {
+            assertEquals(value, PlayerMap.unZigZag(PlayerMap.readVarInt(in)));
+        }
+        assertEquals(0, in.available());
+    }
+
+}
@@ -0,0 +1,80 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RegionLayoutTest {
+
+    private static final int BORDER = 32;
+    private static final int WALLS = 1 | 2 | 4 | 8;
+
+    /**
+     * @return the wall values of a maze where every box is closed off from every other box
+     */
+    private static int[][] closed(int size) {
+        int[][] walls = new int[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                walls[x][y] = x == 0 || y == 0 || x == size - 1 || y == size - 1 ? BORDER : WALLS;
+            }
+        }
+        return walls;
+    }
+
+    /**
+     * Opens a corridor from (x - 1, y) to (x, y)
+     */
+    private static void open(int[][] walls, int x, int y) {
+        walls[x - 1][y] &= ~8;
+        walls[x][y] &= ~4;
+    }
+
+    @Test
+    public void aBoundaryIsPutWhereTheFewestCorridorsCrossIt() {
+        int[][] walls = closed(20);
+        for (int x : new int[]{8, 10, 11, 12}) {
+            open(walls, x, 5);
+        }
+
+        RegionLayout layout = RegionLayout.split(BoxMaze.build(walls), 2);
+
+        assertEquals(2, layout.size());
+        assertEquals(0, layout.getStart(0));
+        assertEquals(9, layout.getEnd(0));
+        assertEquals(9, layout.getStart(1));
+        assertEquals(20, layout.getEnd(1));
+        assertEquals(2, layout.getCrossings(1)); //The border boxes above and below are always connected
+    }
+
+    @Test
+    public void anEvenSplitIsPreferredAmongEqualBoundaries() {
+        RegionLayout layout = RegionLayout.split(BoxMaze.build(closed(40)), 4);
+
+        int[] starts = new int[layout.size()];
+        for (int r = 0; r < starts.length; r++) {
+            starts[r] = layout.getStart(r);
+        }
+        assertEquals("[0, 10, 20, 30]", Arrays.toString(starts));
+    }
+
+    @Test
+    public void everyColumnBelongsToTheRegionThatContainsIt() {
+        int[][] walls = closed(20);
+        open(walls, 10, 3);
+        RegionLayout layout = RegionLayout.split(BoxMaze.build(walls), 3);
+
+        for (int x = 0; x < 20; x++) {
+            int region = layout.getRegion(x);
+            assertTrue(layout.getStart(region) <= x && x < layout.getEnd(region));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void regionsNarrowerThanTwoColumnsAreRejected() {
+        RegionLayout.split(BoxMaze.build(closed(10)), 6);
+    }
+
+}
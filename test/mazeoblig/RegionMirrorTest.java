@@ -0,0 +1,53 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RegionMirrorTest {
+
+    //A region of columns 2 and 3 of a maze of width 10, so it holds the cells 20 to 39
+
+    @Test
+    public void changesAreOnlyAcceptedOnceTheMirrorHasBeenRebased() {
+        RegionMirror mirror = new RegionMirror(2, 4, 10);
+
+        assertNull(mirror.accept(1, new int[]{21, 1}));
+        assertArrayEquals(new int[]{21, 1, 35, 2}, mirror.rebase(new RegionCounts(1, new int[]{21, 1, 35, 2})));
+        assertArrayEquals(new int[]{21, -1, 22, 1}, mirror.accept(2, new int[]{21, -1, 22, 1}));
+    }
+
+    @Test
+    public void aGapOrLostChangesRequireARebase() {
+        RegionMirror mirror = new RegionMirror(2, 4, 10);
+        mirror.rebase(new RegionCounts(5, new int[]{20, 1}));
+
+        assertNull(mirror.accept(7, new int[]{20, -1}));
+        assertNull(mirror.accept(6, null));
+        assertArrayEquals(new int[]{20, 1, 39, 1}, mirror.rebase(new RegionCounts(7, new int[]{20, 2, 39, 1})));
+    }
+
+    @Test
+    public void changesAndCountsThatAreAlreadyAppliedAreIgnored() {
+        RegionMirror mirror = new RegionMirror(2, 4, 10);
+        mirror.rebase(new RegionCounts(3, new int[]{25, 1}));
+        mirror.accept(4, new int[]{25, -1, 26, 1});
+
+        assertEquals(0, mirror.accept(4, new int[]{25, -1, 26, 1}).length);
+        assertEquals(0, mirror.accept(2, new int[]{30, 1}).length);
+        assertEquals(0, mirror.rebase(new RegionCounts(4, new int[]{30, 5})).length);
+        assertArrayEquals(new int[]{26, -1}, mirror.rebase(new RegionCounts(5, new int[0])));
+    }
+
+    @Test
+    public void theCountsAreAskedForAtMostOncePerIntervalUntilTheyArrive() {
+        RegionMirror mirror = new RegionMirror(2, 4, 10);
+
+        assertTrue(mirror.needsSync(0, 100));
+        assertFalse(mirror.needsSync(99, 100));
+        assertTrue(mirror.needsSync(100, 100));
+        mirror.rebase(new RegionCounts(1, new int[0]));
+        assertFalse(mirror.needsSync(1000, 100));
+    }
+
+}
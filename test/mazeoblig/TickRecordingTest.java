@@ -0,0 +1,128 @@
+package mazeoblig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class TickRecordingTest {
+
+    private static final int[][] WALLS = {{1, 2, 3}, {4, 5, 6}, {7, 8, 9}};
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("recording", ".mzr");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * Records a player that joins before the first tick and then moves one column every tick
+     */
+    private TickRecorder record(int ticks) throws IOException {
+        TickRecorder recorder = new TickRecorder(file, WALLS);
+        recorder.register(1, 0, 0);
+        for (int i = 1; i <= ticks; i++) {
+            if (i > 1) {
+                recorder.move(1, i % 3, 0);
+            }
+            recorder.cut();
+            MapChangeEvent change = new MapChangeEvent(2);
+            if (i > 1) {
+                change.add((i - 1) % 3, 0, -1);
+            }
+            change.add(i % 3, 0, 1);
+            change.setIndex(i);
+            recorder.record(change);
+        }
+        return recorder;
+    }
+
+    @Test
+    public void aClosedRecordingReadsBackItsFrames() throws IOException {
+        record(3).close();
+
+        try (TickRecording recording = new TickRecording(file)) {
+            assertArrayEquals(WALLS, recording.getWalls());
+
+            TickRecording.Frame keyframe = recording.next();
+            assertTrue(keyframe.isKeyframe());
+            assertEquals(0, keyframe.getIndex());
+            assertEquals(0, keyframe.getPlayers().length);
+
+            TickRecording.Frame first = recording.next();
+            assertFalse(first.isKeyframe());
+            assertEquals(1, first.getIndex());
+            assertArrayEquals(new int[]{TickRecorder.REGISTER, 1, 0, 0}, first.getActions());
+            assertEquals(1, first.getChange().size());
+            assertArrayEquals(new int[]{1, 0, 1}, first.getChange().get(0));
+
+            TickRecording.Frame second = recording.next();
+            assertArrayEquals(new int[]{TickRecorder.MOVE, 1, 2, 0}, second.getActions());
+            assertEquals(2, second.getChange().size());
+
+            assertNotNull(recording.next());
+            assertNull(recording.next());
+        }
+    }
+
+    @Test
+    public void seekPositionsTheRecordingAtTheLastKeyframeBeforeAnIndex() throws IOException {
+        record(130).close();
+
+        try (TickRecording recording = new TickRecording(file)) {
+            assertArrayEquals(new long[]{0, 64, 128}, recording.getKeyframes());
+            assertEquals(64, recording.seek(100));
+
+            TickRecording.Frame keyframe = recording.next();
+            assertTrue(keyframe.isKeyframe());
+            assertEquals(64, keyframe.getIndex());
+            assertArrayEquals(new int[]{1, 64 % 3, 0}, keyframe.getPlayers());
+            assertEquals(65, recording.next().getIndex());
+
+            assertEquals(0, recording.seek(-1));
+            assertEquals(0, recording.next().getIndex());
+        }
+    }
+
+    @Test
+    public void theIndexIsScannedIfTheRecordingWasNeverClosed() throws IOException {
+        record(130); //Only flushed up to the keyframe after tick 128
+
+        try (TickRecording recording = new TickRecording(file)) {
+            assertArrayEquals(new long[]{0, 64, 128}, recording.getKeyframes());
+            assertEquals(128, recording.seek(130));
+            assertEquals(128, recording.next().getIndex());
+            assertNull(recording.next());
+        }
+    }
+
+    @Test
+    public void theScanStopsAtAnIncompleteFrame() throws IOException {
+        record(130);
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 3); //Cuts the keyframe after tick 128 short
+        }
+
+        try (TickRecording recording = new TickRecording(file)) {
+            assertArrayEquals(new long[]{0, 64}, recording.getKeyframes());
+            recording.seek(64);
+            long last = -1;
+            for (TickRecording.Frame frame = recording.next(); frame != null; frame = recording.next()) {
+                last = frame.getIndex();
+            }
+            assertEquals(128, last);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package mazeoblig;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static TimingWheel wheel() {
+        return new TimingWheel(1, TimeUnit.MILLISECONDS, 8, Runnable::run);
+    }
+
+    private static Runnable append(StringBuffer order, char name, CountDownLatch done) {
+        return () -> {
+            order.append(name);
+            done.countDown();
+        };
+    }
+
+    @Test
+    public void aTaskRunsAfterItsDelayEvenIfThatIsSeveralRotations() throws InterruptedException {
+        TimingWheel wheel = wheel();
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long scheduledAt = System.nanoTime();
+
+        wheel.schedule(() -> {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }, 30, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(29)); //Within a tick of its delay
+    }
+
+    @Test
+    public void aCancelledTaskNeverRuns() throws InterruptedException {
+        TimingWheel wheel = wheel();
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+
+        TimingWheel.Task task = wheel.schedule(() -> cancelledRan.set(true), 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 40, TimeUnit.MILLISECONDS);
+
+        assertTrue(task.cancel());
+        assertFalse(task.cancel());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+
+    @Test
+    public void aTaskCannotBeCancelledOnceItHasRun() throws InterruptedException {
+        TimingWheel wheel = wheel();
+        CountDownLatch ran = new CountDownLatch(1);
+
+        TimingWheel.Task task = wheel.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(task.cancel());
+    }
+
+    @Test
+    public void tasksRunInTheOrderOfTheirDelays() throws InterruptedException {
+        TimingWheel wheel = wheel();
+        StringBuffer order = new StringBuffer();
+        CountDownLatch done = new CountDownLatch(3);
+
+        wheel.schedule(append(order, 'c', done), 25, TimeUnit.MILLISECONDS);
+        wheel.schedule(append(order, 'a', done), 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(append(order, 'b', done), 15, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", order.toString());
+    }
+
+}
@@ -0,0 +1,38 @@
+package simulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PositionCacheTest {
+
+    @Test
+    public void theSamePositionIsReturnedForACellEveryTime() {
+        PositionCache cache = new PositionCache(10, 20);
+        PositionInMaze position = cache.get(3, 17);
+
+        assertSame(position, cache.get(3, 17));
+        assertSame(position, cache.get(PositionInMaze.pack(3, 17)));
+        assertEquals(3, position.getXpos());
+        assertEquals(17, position.getYpos());
+    }
+
+    @Test
+    public void aPositionOutsideOfTheMazeIsCreatedEveryTime() {
+        PositionCache cache = new PositionCache(10, 10);
+
+        assertNotSame(cache.get(10, 0), cache.get(10, 0));
+        assertEquals(new PositionInMaze(10, 0), cache.get(10, 0));
+    }
+
+    @Test
+    public void positionsWithTheSameCoordinatesAreEqual() {
+        PositionInMaze position = new PositionInMaze(65535, 2);
+
+        assertEquals(position, new PositionInMaze(65535, 2));
+        assertEquals(position.hashCode(), new PositionInMaze(65535, 2).hashCode());
+        assertNotEquals(position, new PositionInMaze(2, 65535));
+        assertEquals(position, PositionInMaze.unpack(position.getPacked()));
+    }
+
+}
@@ -0,0 +1,67 @@
+package simulator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PositionDequeTest {
+
+    @Test
+    public void positionsComeOutInTheOrderTheyWereAdded() {
+        PositionDeque deque = new PositionDeque();
+        deque.add(1);
+        deque.addAll(new int[]{2, 3});
+
+        assertEquals(3, deque.size());
+        assertEquals(1, deque.peek());
+        assertEquals(1, deque.poll());
+        assertEquals(2, deque.poll());
+        assertEquals(3, deque.poll());
+        assertTrue(deque.isEmpty());
+    }
+
+    @Test
+    public void theOrderSurvivesGrowingAWrappedBuffer() {
+        PositionDeque deque = new PositionDeque();
+        int next = 0;
+        int expected = 0;
+        for (int i = 0; i < 10; i++) { //Move the head into the middle of the initial buffer
+            deque.add(next++);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(expected++, deque.poll());
+        }
+
+        for (int i = 0; i < 12; i++) { //Wraps around the end of the buffer
+            deque.add(next++);
+        }
+        int[] path = new int[100];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = next++;
+        }
+        deque.addAll(path); //Grows the buffer while it is wrapped
+
+        assertEquals(112, deque.size());
+        while (!deque.isEmpty()) {
+            assertEquals(expected++, deque.poll());
+        }
+        assertEquals(next, expected);
+    }
+
+    @Test
+    public void clearEmptiesTheDeque() {
+        PositionDeque deque = new PositionDeque();
+        deque.addAll(new int[]{1, 2, 3});
+        deque.clear();
+
+        assertTrue(deque.isEmpty());
+        deque.add(4);
+        assertEquals(4, deque.poll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pollingAnEmptyDequeThrows() {
+        new PositionDeque().poll();
+    }
+
+}